@@ -34,6 +34,23 @@ public class EtcdApiMetadata extends BaseHttpApiMetadata<EtcdApi> {
     public static final String API_VERSION = "v2";
     public static final String BUILD_VERSION = "2.3.3";
 
+    /**
+     * Property naming the HTTP transport requests are sent over, either
+     * {@link #TRANSPORT_OKHTTP}, the default, or {@link #TRANSPORT_JAVA_URL}.
+     */
+    public static final String HTTP_TRANSPORT = "etcd.rest.http-transport";
+
+    /**
+     * Send requests with OkHttp.
+     */
+    public static final String TRANSPORT_OKHTTP = "okhttp";
+
+    /**
+     * Send requests with the JDK's own HttpURLConnection, which keeps
+     * connections alive between requests and needs no further dependencies.
+     */
+    public static final String TRANSPORT_JAVA_URL = "java-url";
+
     @Override
     public Builder toBuilder() {
         return new Builder().fromApiMetadata(this);
@@ -47,8 +64,15 @@ public class EtcdApiMetadata extends BaseHttpApiMetadata<EtcdApi> {
         super(builder);
     }
 
+    /**
+     * The jclouds defaults along with the etcd specific ones, such as the
+     * {@link #HTTP_TRANSPORT} to use.
+     * 
+     * @return default properties
+     */
     public static Properties defaultProperties() {
         Properties properties = BaseHttpApiMetadata.defaultProperties();
+        properties.setProperty(HTTP_TRANSPORT, TRANSPORT_OKHTTP);
         return properties;
     }
 
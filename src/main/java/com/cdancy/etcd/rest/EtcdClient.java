@@ -20,10 +20,24 @@ package com.cdancy.etcd.rest;
 import java.io.IOException;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.util.List;
+import java.util.Properties;
 
+import org.jclouds.Constants;
 import org.jclouds.ContextBuilder;
+import org.jclouds.domain.Credentials;
 import org.jclouds.javax.annotation.Nullable;
 
+import com.cdancy.etcd.rest.async.AsyncApis;
+import com.cdancy.etcd.rest.async.EtcdAsyncApi;
+import com.cdancy.etcd.rest.cluster.EtcdCluster;
+import com.google.common.base.Supplier;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.inject.Injector;
+import com.google.inject.Key;
+import com.google.inject.name.Names;
+
 public class EtcdClient {
 
     private static final String[] ENDPOINT_PROPERTIES = { "etcd.rest.endpoint", "etcdRestEndpoint", "ETCD_REST_ENDPOINT",
@@ -31,7 +45,9 @@ public class EtcdClient {
     private static final String[] CREDENTIALS_PROPERTIES = { "etcd.rest.credentials", "etcdRestCredentials",
             "ETCD_REST_CREDENTIALS" };
     private final String endPoint;
+    private final List<String> endPoints;
     private final String credentials;
+    private final EtcdCluster cluster;
     private final EtcdApi etcdApi;
 
     /**
@@ -40,7 +56,9 @@ public class EtcdClient {
      */
     public EtcdClient() {
         this.endPoint = initEndPoint();
+        this.endPoints = ImmutableList.of(this.endPoint);
         this.credentials = initCredentials();
+        this.cluster = null;
         this.etcdApi = createApi(this.endPoint(), this.credentials());
     }
 
@@ -52,7 +70,9 @@ public class EtcdClient {
      */
     public EtcdClient(@Nullable final String endPoint) {
         this.endPoint = endPoint != null ? endPoint : initEndPoint();
+        this.endPoints = ImmutableList.of(this.endPoint);
         this.credentials = initCredentials();
+        this.cluster = null;
         this.etcdApi = createApi(this.endPoint(), this.credentials());
     }
 
@@ -66,10 +86,39 @@ public class EtcdClient {
      */
     public EtcdClient(@Nullable final String endPoint, @Nullable final String credentials) {
         this.endPoint = endPoint != null ? endPoint : initEndPoint();
+        this.endPoints = ImmutableList.of(this.endPoint);
         this.credentials = credentials != null ? credentials : initCredentials();
+        this.cluster = null;
         this.etcdApi = createApi(this.endPoint(), this.credentials());
     }
 
+    /**
+     * Create an EtcdClient spread over several members of the same cluster.
+     * Calls go to the first healthy endPoint and fail over to the next one
+     * should it become unreachable.
+     * 
+     * @param endPoints
+     *            urls of the etcd instances, in order of preference
+     * @param credentials
+     *            the optional credentials for the etcd instances
+     */
+    public EtcdClient(final List<String> endPoints, @Nullable final String credentials) {
+        if (endPoints == null || endPoints.isEmpty()) {
+            throw new IllegalArgumentException("endPoints must not be empty");
+        }
+        this.endPoint = endPoints.get(0);
+        this.endPoints = ImmutableList.copyOf(endPoints);
+        this.credentials = credentials != null ? credentials : initCredentials();
+        if (endPoints.size() == 1) {
+            this.cluster = null;
+            this.etcdApi = createApi(this.endPoint(), this.credentials());
+        } else {
+            this.cluster = EtcdCluster.builder(this.endPoints, this.credentials).discover(false).balanceReads(false)
+                    .build();
+            this.etcdApi = cluster.api();
+        }
+    }
+
     /**
      * Initialize endPoint.
      * 
@@ -95,6 +144,59 @@ public class EtcdClient {
                 .credentials("N/A", credentials).buildApi(EtcdApi.class);
     }
 
+    /**
+     * Create an EtcdApi for a single etcd instance.
+     * 
+     * @param endPoint
+     *            url of etcd instance
+     * @param credentials
+     *            the credentials for the etcd instance
+     * @param overrides
+     *            jclouds properties to override
+     * @return EtcdApi instance
+     */
+    public static EtcdApi createApi(String endPoint, String credentials, Properties overrides) {
+        return ContextBuilder.newBuilder(new EtcdApiMetadata.Builder().build()).endpoint(endPoint)
+                .credentials("N/A", credentials).overrides(overrides).buildApi(EtcdApi.class);
+    }
+
+    /**
+     * Create an EtcdApi for a single etcd instance whose credentials are taken
+     * from credentials on each request, so that they can be rotated without
+     * creating a new EtcdApi.
+     * 
+     * @param endPoint
+     *            url of etcd instance
+     * @param credentials
+     *            supplies the current credentials for the etcd instance
+     * @return EtcdApi instance
+     */
+    public static EtcdApi createApi(String endPoint, Supplier<Credentials> credentials) {
+        return ContextBuilder.newBuilder(new EtcdApiMetadata.Builder().build()).endpoint(endPoint)
+                .credentialsSupplier(credentials).buildApi(EtcdApi.class);
+    }
+
+    /**
+     * Create an EtcdAsyncApi for a single etcd instance. Calls are made on the
+     * jclouds user executor, so overriding
+     * {@link org.jclouds.Constants#PROPERTY_USER_THREADS} bounds how many
+     * requests are in flight at once.
+     * 
+     * @param endPoint
+     *            url of etcd instance
+     * @param credentials
+     *            the credentials for the etcd instance
+     * @param overrides
+     *            jclouds properties to override
+     * @return EtcdAsyncApi instance
+     */
+    public static EtcdAsyncApi createAsyncApi(String endPoint, String credentials, Properties overrides) {
+        Injector injector = ContextBuilder.newBuilder(new EtcdApiMetadata.Builder().build()).endpoint(endPoint)
+                .credentials("N/A", credentials).overrides(overrides).buildInjector();
+        return AsyncApis.create(injector.getInstance(EtcdApi.class), injector.getInstance(
+                Key.get(ListeningExecutorService.class, Names.named(Constants.PROPERTY_USER_THREADS))));
+    }
+
     /**
      * Retrieve property value from list of keys.
      * 
@@ -137,10 +239,24 @@ public class EtcdClient {
         return endPoint;
     }
 
+    public List<String> endPoints() {
+        return endPoints;
+    }
+
     public String credentials() {
         return credentials;
     }
 
+    /**
+     * The cluster calls are routed across when created with more than one
+     * endPoint.
+     * 
+     * @return EtcdCluster or null for a single endPoint
+     */
+    public EtcdCluster cluster() {
+        return cluster;
+    }
+
     public EtcdApi api() {
         return etcdApi;
     }
@@ -151,6 +267,7 @@ public class EtcdClient {
 
     public static class Builder {
         private String endPoint;
+        private List<String> endPoints;
         private String credentials;
 
         public Builder() {
@@ -166,13 +283,18 @@ public class EtcdClient {
             return this;
         }
 
+        public Builder endPoints(List<String> endPoints) {
+            this.endPoints = endPoints;
+            return this;
+        }
+
         public Builder credentials(String credentials) {
             this.credentials = credentials;
             return this;
         }
 
         public EtcdClient build() {
-            return new EtcdClient(endPoint, credentials);
+            return endPoints != null ? new EtcdClient(endPoints, credentials) : new EtcdClient(endPoint, credentials);
         }
     }
 
@@ -0,0 +1,43 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cdancy.etcd.rest.annotations;
+
+import static java.lang.annotation.ElementType.METHOD;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+
+/**
+ * The etcd error codes, such as ErrorMessage.KEY_NOT_FOUND, a method expects
+ * as a normal outcome. An error response carrying one of them is handed to the
+ * method's response parser as is, to be decoded into the returned object,
+ * rather than being turned into an exception and then back into a result by a
+ * fallback.
+ */
+@Retention(RUNTIME)
+@Target(METHOD)
+public @interface ExpectedErrors {
+
+    /**
+     * The expected etcd error codes.
+     * 
+     * @return error codes
+     */
+    int[] value();
+}
@@ -0,0 +1,179 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cdancy.etcd.rest.async;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import org.jclouds.rest.annotations.Delegate;
+
+import com.cdancy.etcd.rest.EtcdApi;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+
+/**
+ * Creates {@link EtcdAsyncApi}s. Every call made on one is handed to an
+ * executor which makes the same call of the wrapped EtcdApi, and the future
+ * returned completes with its result or the exception it threw. Requests are
+ * still made one per thread, so the executor bounds how many are in flight at
+ * once; the jclouds user executor an EtcdApi was created with, sized by
+ * {@link org.jclouds.Constants#PROPERTY_USER_THREADS}, is a natural choice,
+ * see {@link com.cdancy.etcd.rest.EtcdClient#createAsyncApi}.
+ */
+public final class AsyncApis {
+
+    private AsyncApis() {
+    }
+
+    /**
+     * Create an EtcdAsyncApi making its calls with api on executor.
+     * 
+     * @param api
+     *            the EtcdApi to make calls with
+     * @param executor
+     *            the executor to make calls on
+     * @return EtcdAsyncApi instance
+     */
+    public static EtcdAsyncApi create(EtcdApi api, ListeningExecutorService executor) {
+        checkNotNull(api, "api");
+        checkNotNull(executor, "executor");
+        ImmutableMap.Builder<Method, Object> features = ImmutableMap.builder();
+        for (Method method : EtcdAsyncApi.class.getMethods()) {
+            if (method.isAnnotationPresent(Delegate.class)) {
+                Method delegate = syncMethod(EtcdApi.class, method);
+                Object target = invokeQuietly(api, delegate);
+                features.put(method, newFeature(method.getReturnType(), delegate.getReturnType(), target, executor));
+            }
+        }
+        return (EtcdAsyncApi) Proxy.newProxyInstance(EtcdAsyncApi.class.getClassLoader(),
+                new Class<?>[] { EtcdAsyncApi.class }, new ApiHandler(api, features.build()));
+    }
+
+    /**
+     * Proxy asyncApi with calls of target, a syncApi, made on executor.
+     * Every method of asyncApi is matched up front with the method of syncApi
+     * taking the same parameters, so that a missing counterpart fails here
+     * rather than on first call.
+     */
+    private static Object newFeature(Class<?> asyncApi, Class<?> syncApi, Object target,
+            ListeningExecutorService executor) {
+        ImmutableMap.Builder<Method, Method> calls = ImmutableMap.builder();
+        for (Method method : asyncApi.getMethods()) {
+            checkArgument(method.getReturnType() == ListenableFuture.class, "%s does not return a ListenableFuture",
+                    method);
+            calls.put(method, syncMethod(syncApi, method));
+        }
+        return Proxy.newProxyInstance(asyncApi.getClassLoader(), new Class<?>[] { asyncApi },
+                new FeatureHandler(target, calls.build(), executor));
+    }
+
+    private static Method syncMethod(Class<?> syncApi, Method asyncMethod) {
+        try {
+            return syncApi.getMethod(asyncMethod.getName(), asyncMethod.getParameterTypes());
+        } catch (NoSuchMethodException e) {
+            throw new IllegalArgumentException(syncApi.getSimpleName() + " has no counterpart of " + asyncMethod, e);
+        }
+    }
+
+    private static Object invokeQuietly(Object target, Method method) {
+        try {
+            return method.invoke(target);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        } catch (InvocationTargetException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    private static Object invokeObjectMethod(Object proxy, Method method, Object[] args, String name) {
+        if (method.getName().equals("equals")) {
+            return proxy == args[0];
+        } else if (method.getName().equals("hashCode")) {
+            return System.identityHashCode(proxy);
+        }
+        return name + "@" + Integer.toHexString(System.identityHashCode(proxy));
+    }
+
+    /**
+     * Hands out the feature apis and closes the wrapped EtcdApi.
+     */
+    private static final class ApiHandler implements InvocationHandler {
+        private final EtcdApi api;
+        private final Map<Method, Object> features;
+
+        ApiHandler(EtcdApi api, Map<Method, Object> features) {
+            this.api = api;
+            this.features = features;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (method.getDeclaringClass() == Object.class) {
+                return invokeObjectMethod(proxy, method, args, "EtcdAsyncApi");
+            } else if (method.getName().equals("close")) {
+                api.close();
+                return null;
+            }
+            return features.get(method);
+        }
+    }
+
+    /**
+     * Submits the calls made on a single feature api.
+     */
+    private static final class FeatureHandler implements InvocationHandler {
+        private final Object target;
+        private final Map<Method, Method> calls;
+        private final ListeningExecutorService executor;
+
+        FeatureHandler(Object target, Map<Method, Method> calls, ListeningExecutorService executor) {
+            this.target = target;
+            this.calls = calls;
+            this.executor = executor;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, final Object[] args) throws Throwable {
+            if (method.getDeclaringClass() == Object.class) {
+                return invokeObjectMethod(proxy, method, args, proxy.getClass().getInterfaces()[0].getSimpleName());
+            }
+            final Method call = calls.get(method);
+            return executor.submit(new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    try {
+                        return call.invoke(target, args);
+                    } catch (InvocationTargetException e) {
+                        if (e.getCause() instanceof Exception) {
+                            throw (Exception) e.getCause();
+                        }
+                        throw (Error) e.getCause();
+                    }
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cdancy.etcd.rest.async;
+
+import java.io.Closeable;
+
+import org.jclouds.rest.annotations.Delegate;
+
+/**
+ * Asynchronous counterpart of {@link com.cdancy.etcd.rest.EtcdApi}. Each call
+ * returns straight away with a future of its result, see {@link AsyncApis}.
+ * Closing it closes the EtcdApi it was created from.
+ */
+public interface EtcdAsyncApi extends Closeable {
+
+    @Delegate
+    AuthAsyncApi authApi();
+
+    @Delegate
+    KeysAsyncApi keysApi();
+
+    @Delegate
+    MembersAsyncApi membersApi();
+
+    @Delegate
+    MiscellaneousAsyncApi miscellaneousApi();
+
+    @Delegate
+    RolesAsyncApi rolesApi();
+
+    @Delegate
+    StatisticsAsyncApi statisticsApi();
+
+    @Delegate
+    UsersAsyncApi usersApi();
+}
@@ -0,0 +1,82 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cdancy.etcd.rest.async;
+
+import java.io.InputStream;
+
+import org.jclouds.http.HttpResponse;
+
+import com.cdancy.etcd.rest.domain.keys.Key;
+import com.cdancy.etcd.rest.features.KeysApi;
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * Asynchronous counterpart of {@link KeysApi}, see it for what each call does.
+ */
+public interface KeysAsyncApi {
+
+    ListenableFuture<Key> createKey(String key, String value);
+
+    ListenableFuture<Key> createKey(String key, String value, int seconds);
+
+    ListenableFuture<Key> refreshKey(String key, int seconds);
+
+    ListenableFuture<Key> refreshKey(String key, String prevValue, int seconds);
+
+    ListenableFuture<Key> createInOrderKey(String key, String value);
+
+    ListenableFuture<Key> createInOrderKey(String key, String value, int seconds);
+
+    ListenableFuture<Key> listInOrderKey(String key);
+
+    ListenableFuture<Key> getKey(String key);
+
+    ListenableFuture<Key> getKey(String key, boolean quorum);
+
+    ListenableFuture<Key> deleteKey(String key);
+
+    ListenableFuture<Key> waitKey(String key);
+
+    ListenableFuture<Key> waitKey(String key, int waitIndex);
+
+    ListenableFuture<Key> waitKey(String key, boolean recursive, int waitIndex);
+
+    ListenableFuture<InputStream> streamKey(String key, boolean recursive, int waitIndex);
+
+    ListenableFuture<Key> compareAndDeleteKey(String key, String prevValue);
+
+    ListenableFuture<Key> compareAndDeleteKey(String key, int prevIndex);
+
+    ListenableFuture<Key> compareAndSwapKeyValue(String key, String prevValue, String value);
+
+    ListenableFuture<Key> compareAndSwapKeyIndex(String key, int prevIndex, String value);
+
+    ListenableFuture<Key> compareAndSwapKeyExist(String key, boolean prevExist, String value);
+
+    ListenableFuture<Key> compareAndSwapKeyExist(String key, boolean prevExist, String value, int seconds);
+
+    ListenableFuture<Key> createDir(String dir);
+
+    ListenableFuture<Key> createDir(String dir, int seconds);
+
+    ListenableFuture<Key> listDir(String dir, boolean recursive);
+
+    ListenableFuture<HttpResponse> streamDir(String dir, boolean recursive);
+
+    ListenableFuture<Key> deleteDir(String dir);
+}
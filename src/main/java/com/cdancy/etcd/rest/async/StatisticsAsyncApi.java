@@ -0,0 +1,36 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cdancy.etcd.rest.async;
+
+import com.cdancy.etcd.rest.domain.statistics.Leader;
+import com.cdancy.etcd.rest.domain.statistics.Self;
+import com.cdancy.etcd.rest.domain.statistics.Store;
+import com.cdancy.etcd.rest.features.StatisticsApi;
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * Asynchronous counterpart of {@link StatisticsApi}, see it for what each call does.
+ */
+public interface StatisticsAsyncApi {
+
+    ListenableFuture<Leader> leader();
+
+    ListenableFuture<Self> self();
+
+    ListenableFuture<Store> store();
+}
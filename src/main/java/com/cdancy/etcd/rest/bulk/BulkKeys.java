@@ -0,0 +1,271 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cdancy.etcd.rest.bulk;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.Closeable;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+
+import com.cdancy.etcd.rest.domain.keys.Key;
+import com.cdancy.etcd.rest.error.ErrorMessage;
+import com.cdancy.etcd.rest.error.EtcdError;
+import com.cdancy.etcd.rest.fallbacks.EtcdFallbacks;
+import com.cdancy.etcd.rest.features.KeysApi;
+import com.google.common.base.Function;
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Runs many KeysApi calls at once rather than one round trip after another.
+ * At most maxInFlight calls are outstanding at any time, across all callers
+ * sharing the instance, optionally no more than a given number are started
+ * per second, and every key gets its own result: the Key etcd returned or,
+ * should the call have failed, a Key whose ErrorMessage describes the
+ * failure.
+ */
+public class BulkKeys implements Closeable {
+
+    public static final int DEFAULT_MAX_IN_FLIGHT = 64;
+
+    private static final ThreadFactory BULK_THREADS = new ThreadFactoryBuilder().setNameFormat("etcd-bulk-%d")
+            .setDaemon(true).build();
+
+    private final KeysApi keysApi;
+    private final Semaphore inFlight;
+    private final RateLimiter rateLimiter;
+    private final Executor executor;
+    private final ExecutorService ownedExecutor;
+
+    BulkKeys(KeysApi keysApi, int maxInFlight, double permitsPerSecond, Executor executor) {
+        checkArgument(maxInFlight > 0, "maxInFlight must be positive");
+        checkArgument(permitsPerSecond >= 0, "permitsPerSecond must not be negative");
+        this.keysApi = checkNotNull(keysApi, "keysApi");
+        this.inFlight = new Semaphore(maxInFlight);
+        this.rateLimiter = permitsPerSecond > 0 ? RateLimiter.create(permitsPerSecond) : null;
+        if (executor != null) {
+            this.executor = executor;
+            this.ownedExecutor = null;
+        } else {
+            this.ownedExecutor = Executors.newCachedThreadPool(BULK_THREADS);
+            this.executor = ownedExecutor;
+        }
+    }
+
+    /**
+     * Set every key of values to its value.
+     * 
+     * @param values
+     *            the keys to set and their values
+     * @return the result of each key, in the order of values
+     */
+    public Map<String, Key> createKeys(final Map<String, String> values) {
+        return execute(values.keySet(), new Function<String, Key>() {
+            @Override
+            public Key apply(String key) {
+                return keysApi.createKey(key, values.get(key));
+            }
+        });
+    }
+
+    /**
+     * Set every key of values to its value, expiring each after seconds.
+     * 
+     * @param values
+     *            the keys to set and their values
+     * @param seconds
+     *            time to live of every key
+     * @return the result of each key, in the order of values
+     */
+    public Map<String, Key> createKeys(final Map<String, String> values, final int seconds) {
+        return execute(values.keySet(), new Function<String, Key>() {
+            @Override
+            public Key apply(String key) {
+                return keysApi.createKey(key, values.get(key), seconds);
+            }
+        });
+    }
+
+    /**
+     * Get every key at once. Keys asked for more than once are only fetched
+     * once, and keys that do not exist come back as the not found Key
+     * getKey returns for them.
+     * 
+     * @param keys
+     *            the keys to get
+     * @return the result of each distinct key, in the order first asked for
+     */
+    public Map<String, Key> getKeys(Collection<String> keys) {
+        return execute(new LinkedHashSet<String>(keys), new Function<String, Key>() {
+            @Override
+            public Key apply(String key) {
+                return keysApi.getKey(key);
+            }
+        });
+    }
+
+    /**
+     * Apply operation to every key, keeping at most maxInFlight calls
+     * outstanding along with those of concurrent callers, and wait for all
+     * of them to finish.
+     * 
+     * @param keys
+     *            the keys to operate on
+     * @param operation
+     *            the call to make for a single key
+     * @return the result of each key, in the order of keys
+     */
+    public Map<String, Key> execute(Collection<String> keys, final Function<String, Key> operation) {
+        checkNotNull(operation, "operation");
+        final ConcurrentMap<String, Key> results = new ConcurrentHashMap<String, Key>(keys.size());
+        final CountDownLatch done = new CountDownLatch(keys.size());
+        try {
+            for (final String key : keys) {
+                if (rateLimiter != null) {
+                    rateLimiter.acquire();
+                }
+                inFlight.acquire();
+                try {
+                    executor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                results.put(key, call(operation, key));
+                            } finally {
+                                inFlight.release();
+                                done.countDown();
+                            }
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    results.put(key, failed(e));
+                    inFlight.release();
+                    done.countDown();
+                }
+            }
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw Throwables.propagate(e);
+        }
+        Map<String, Key> ordered = new LinkedHashMap<String, Key>();
+        for (String key : keys) {
+            ordered.put(key, results.get(key));
+        }
+        return ordered;
+    }
+
+    @Override
+    public void close() {
+        if (ownedExecutor != null) {
+            ownedExecutor.shutdown();
+        }
+    }
+
+    private static Key call(Function<String, Key> operation, String key) {
+        try {
+            Key result = operation.apply(key);
+            return result != null ? result : failed(new IllegalStateException("No response for " + key));
+        } catch (RuntimeException e) {
+            return failed(e);
+        }
+    }
+
+    /**
+     * Create a Key carrying the failure of a call that did not return one.
+     * An etcd error keeps its errorCode and index, see {@link EtcdError},
+     * anything else, such as a transport error, is described by its message
+     * alone.
+     * 
+     * @param failure
+     *            the exception the call failed with
+     * @return Key holding only an ErrorMessage
+     */
+    public static Key failed(Throwable failure) {
+        ErrorMessage error = EtcdError.errorMessage(failure);
+        if (error != null) {
+            return EtcdFallbacks.createKeyFromErrorMessage(error);
+        }
+        String message = failure.getMessage() != null ? failure.getMessage() : failure.getClass().getName();
+        return Key.create(null, null, null, ErrorMessage.create(-1, message, null, -1));
+    }
+
+    public static Builder builder(KeysApi keysApi) {
+        return new Builder(keysApi);
+    }
+
+    public static class Builder {
+        private final KeysApi keysApi;
+        private int maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+        private double permitsPerSecond;
+        private Executor executor;
+
+        Builder(KeysApi keysApi) {
+            this.keysApi = keysApi;
+        }
+
+        public Builder maxInFlight(int maxInFlight) {
+            this.maxInFlight = maxInFlight;
+            return this;
+        }
+
+        /**
+         * Start no more than permitsPerSecond calls per second. 0, the
+         * default, leaves calls bounded only by maxInFlight.
+         * 
+         * @param permitsPerSecond
+         *            calls to start per second
+         * @return this builder
+         */
+        public Builder rate(double permitsPerSecond) {
+            this.permitsPerSecond = permitsPerSecond;
+            return this;
+        }
+
+        /**
+         * Executor calls are made on. Defaults to a cached pool owned by the
+         * instance, which never grows past maxInFlight threads.
+         * 
+         * @param executor
+         *            executor to make calls on
+         * @return this builder
+         */
+        public Builder executor(Executor executor) {
+            this.executor = executor;
+            return this;
+        }
+
+        public BulkKeys build() {
+            return new BulkKeys(keysApi, maxInFlight, permitsPerSecond, executor);
+        }
+    }
+}
@@ -0,0 +1,267 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cdancy.etcd.rest.cache;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+import static org.jclouds.util.Closeables2.closeQuietly;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.SortedMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import org.jclouds.http.HttpResponse;
+
+import com.cdancy.etcd.rest.domain.keys.Key;
+import com.cdancy.etcd.rest.domain.keys.Node;
+import com.cdancy.etcd.rest.features.KeysApi;
+import com.cdancy.etcd.rest.parsers.NodeStreamReader;
+import com.cdancy.etcd.rest.watch.EventIndexClearedException;
+import com.cdancy.etcd.rest.watch.KeyWatcher;
+import com.cdancy.etcd.rest.watch.WatchListener;
+import com.cdancy.etcd.rest.watch.WatchMultiplexer;
+
+/**
+ * Keeps an in-memory copy of every key beneath a directory. The tree is
+ * loaded once, then the changes etcd reports from the X-Etcd-Index of that
+ * load onward are applied to it, so reads never leave the process and the
+ * bandwidth used follows the rate of change rather than the size of the tree.
+ * Should etcd no longer hold the changes needed to catch up, the tree is
+ * loaded again. Loads are read off the wire a node at a time, so a large tree
+ * is never held in memory twice.
+ */
+public class DirectoryMirror implements Closeable {
+
+    private final KeysApi keysApi;
+    private final String dir;
+    private final boolean stream;
+    private volatile Tree tree = new Tree();
+    private volatile int index;
+    private volatile KeyWatcher watcher;
+    private volatile boolean closed;
+
+    DirectoryMirror(KeysApi keysApi, String dir, boolean stream) {
+        this.keysApi = checkNotNull(keysApi, "keysApi");
+        this.dir = WatchMultiplexer.normalize(checkNotNull(dir, "dir"));
+        this.stream = stream;
+    }
+
+    public String dir() {
+        return dir;
+    }
+
+    /**
+     * The etcd index the mirror is up to date with.
+     * 
+     * @return last applied etcd index
+     */
+    public int index() {
+        return index;
+    }
+
+    public int size() {
+        return tree.nodes.size();
+    }
+
+    /**
+     * Get the mirrored value of key.
+     * 
+     * @param key
+     *            the key to look up
+     * @return Node of key or null if not present
+     */
+    public Node get(String key) {
+        return tree.nodes.get(WatchMultiplexer.normalize(key));
+    }
+
+    /**
+     * Get every mirrored key beneath prefix, in key order.
+     * 
+     * @param prefix
+     *            the directory to list
+     * @return read-only view of the keys beneath prefix
+     */
+    public SortedMap<String, Node> list(String prefix) {
+        String normalized = WatchMultiplexer.normalize(prefix);
+        ConcurrentSkipListMap<String, Node> sorted = tree.sorted;
+        if (normalized.equals("/")) {
+            return Collections.unmodifiableSortedMap(sorted);
+        }
+        return Collections.unmodifiableSortedMap(sorted.subMap(normalized + "/", normalized + "0"));
+    }
+
+    synchronized void load() {
+        checkState(!closed, "mirror of %s has been closed", dir);
+        if (watcher != null) {
+            watcher.close();
+        }
+        Tree loaded = new Tree();
+        int snapshotIndex = 0;
+        HttpResponse response = keysApi.streamDir(dir.substring(1), true);
+        if (response != null) {
+            Integer etcdIndex = loaded.load(response);
+            if (etcdIndex != null) {
+                snapshotIndex = etcdIndex;
+            }
+        } else {
+            // dir does not exist (yet), the error carries the index to watch from
+            Key missing = keysApi.getKey(dir.substring(1));
+            if (missing != null && missing.etcdIndex() != null) {
+                snapshotIndex = missing.etcdIndex();
+            }
+        }
+        tree = loaded;
+        index = snapshotIndex;
+        watcher = KeyWatcher.builder(keysApi, dir.substring(1)).recursive(true).stream(stream)
+                .fromIndex(snapshotIndex + 1).build().addListener(new Applier(loaded)).start();
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+        if (watcher != null) {
+            watcher.close();
+        }
+    }
+
+    /**
+     * Applies the changes watched beneath dir to the tree they were watched
+     * for, in index order.
+     */
+    private final class Applier implements WatchListener {
+        private final Tree target;
+
+        Applier(Tree target) {
+            this.target = target;
+        }
+
+        @Override
+        public void onEvent(Key event) {
+            Node node = event.node();
+            String action = event.action();
+            if ("delete".equals(action) || "expire".equals(action) || "compareAndDelete".equals(action)) {
+                target.remove(node.key());
+            } else if (!node.dir()) {
+                target.put(node);
+            }
+            if (target == tree) {
+                index = node.modifiedIndex();
+            }
+        }
+
+        @Override
+        public void onError(Throwable error) {
+            if (error instanceof EventIndexClearedException && target == tree && !closed) {
+                try {
+                    load();
+                } catch (RuntimeException e) {
+                    // the watch keeps going from where etcd left it, try again on the next clear
+                }
+            }
+        }
+    }
+
+    /**
+     * The mirrored keys, hashed for point lookups and sorted for listings.
+     */
+    private static final class Tree {
+        private final ConcurrentMap<String, Node> nodes = new ConcurrentHashMap<String, Node>();
+        private final ConcurrentSkipListMap<String, Node> sorted = new ConcurrentSkipListMap<String, Node>();
+
+        /**
+         * Fill the tree from a listing, one node at a time so that the
+         * listing itself is never held in memory whole.
+         * 
+         * @return the X-Etcd-Index of the listing
+         */
+        Integer load(HttpResponse response) {
+            NodeStreamReader reader = null;
+            try {
+                reader = new NodeStreamReader(response);
+                for (Node node = reader.next(); node != null; node = reader.next()) {
+                    if (!node.dir()) {
+                        put(node);
+                    }
+                }
+                return reader.etcdIndex();
+            } catch (IOException e) {
+                throw new IllegalStateException("Could not read listing", e);
+            } finally {
+                closeQuietly(reader);
+                closeQuietly(response.getPayload());
+            }
+        }
+
+        void put(Node node) {
+            nodes.put(node.key(), node);
+            sorted.put(node.key(), node);
+        }
+
+        void remove(String key) {
+            nodes.remove(key);
+            sorted.remove(key);
+            for (String child : sorted.subMap(key + "/", key + "0").keySet()) {
+                nodes.remove(child);
+                sorted.remove(child);
+            }
+        }
+    }
+
+    public static Builder builder(KeysApi keysApi, String dir) {
+        return new Builder(keysApi, dir);
+    }
+
+    public static class Builder {
+        private final KeysApi keysApi;
+        private final String dir;
+        private boolean stream;
+
+        Builder(KeysApi keysApi, String dir) {
+            this.keysApi = keysApi;
+            this.dir = dir;
+        }
+
+        /**
+         * Follow changes over a single streaming response rather than a
+         * long-poll per change.
+         * 
+         * @param stream
+         *            whether to stream changes
+         * @return this builder
+         */
+        public Builder stream(boolean stream) {
+            this.stream = stream;
+            return this;
+        }
+
+        /**
+         * Build the mirror, load the tree and start following changes.
+         * 
+         * @return loaded DirectoryMirror
+         */
+        public DirectoryMirror build() {
+            DirectoryMirror mirror = new DirectoryMirror(keysApi, dir, stream);
+            mirror.load();
+            return mirror;
+        }
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cdancy.etcd.rest.cache;
+
+/**
+ * Decides which key a KeyNearCache gives up once it is full. Calls are made
+ * while holding the cache's eviction lock so implementations need not be
+ * thread safe themselves.
+ */
+public interface EvictionPolicy {
+
+    /**
+     * A key has been added to the cache.
+     * 
+     * @param key
+     *            the added key
+     */
+    void onInsert(String key);
+
+    /**
+     * A cached key has been read.
+     * 
+     * @param key
+     *            the read key
+     */
+    void onAccess(String key);
+
+    /**
+     * A key has left the cache for any reason other than eviction.
+     * 
+     * @param key
+     *            the removed key
+     */
+    void onRemove(String key);
+
+    /**
+     * Pick the next key to evict and stop tracking it.
+     * 
+     * @return key to evict or null if none are tracked
+     */
+    String evict();
+}
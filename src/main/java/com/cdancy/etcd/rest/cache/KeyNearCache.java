@@ -0,0 +1,379 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cdancy.etcd.rest.cache;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.cdancy.etcd.rest.domain.keys.Key;
+import com.cdancy.etcd.rest.domain.keys.Node;
+import com.cdancy.etcd.rest.error.ErrorMessage;
+import com.cdancy.etcd.rest.features.KeysApi;
+import com.cdancy.etcd.rest.watch.EventIndexClearedException;
+import com.cdancy.etcd.rest.watch.OverflowPolicy;
+import com.cdancy.etcd.rest.watch.WatchListener;
+import com.cdancy.etcd.rest.watch.WatchMultiplexer;
+import com.cdancy.etcd.rest.watch.WatchRegistration;
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Serves {@link KeysApi#getKey(String)} for keys beneath a set of prefixes
+ * from memory. Every entry remembers the etcd index it was read or changed
+ * at, and a recursive watch on each prefix applies changes as they happen,
+ * so an entry is only ever replaced by a newer one. Keys outside the prefixes
+ * and directories are always read from etcd.
+ */
+public class KeyNearCache implements Closeable {
+
+    public static final int KEY_NOT_FOUND = ErrorMessage.KEY_NOT_FOUND;
+
+    private final KeysApi keysApi;
+    private final List<String> prefixes;
+    private final int maxSize;
+    private final EvictionPolicy evictionPolicy;
+    private final WatchMultiplexer multiplexer;
+    private final boolean ownsMultiplexer;
+    private final List<WatchRegistration> registrations = new ArrayList<WatchRegistration>();
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+    private final AtomicLong evictions = new AtomicLong(0);
+
+    KeyNearCache(KeysApi keysApi, List<String> prefixes, int maxSize, EvictionPolicy evictionPolicy,
+            WatchMultiplexer multiplexer) {
+        checkArgument(!prefixes.isEmpty(), "at least one prefix must be cached");
+        checkArgument(maxSize > 0, "maxSize must be positive");
+        this.keysApi = checkNotNull(keysApi, "keysApi");
+        this.maxSize = maxSize;
+        this.evictionPolicy = checkNotNull(evictionPolicy, "evictionPolicy");
+        this.ownsMultiplexer = multiplexer == null;
+        this.multiplexer = multiplexer != null ? multiplexer : WatchMultiplexer.builder(keysApi).build();
+        ImmutableList.Builder<String> normalized = ImmutableList.builder();
+        for (String prefix : prefixes) {
+            normalized.add(WatchMultiplexer.normalize(prefix));
+        }
+        this.prefixes = normalized.build();
+    }
+
+    private void start() {
+        for (String prefix : prefixes) {
+            registrations.add(multiplexer.register(prefix, true, new CoherenceListener(prefix), Integer.MAX_VALUE,
+                    OverflowPolicy.DISCONNECT));
+        }
+    }
+
+    /**
+     * Get key, from memory if it has been read before.
+     * 
+     * @param key
+     *            the key to get
+     * @return the cached or freshly read Key
+     */
+    public Key getKey(String key) {
+        return getKey(key, false);
+    }
+
+    /**
+     * Get key, optionally skipping the cache and reading it from etcd.
+     * 
+     * @param key
+     *            the key to get
+     * @param fresh
+     *            whether to always read from etcd
+     * @return the cached or freshly read Key
+     */
+    public Key getKey(String key, boolean fresh) {
+        String normalized = WatchMultiplexer.normalize(key);
+        if (!cached(normalized)) {
+            return keysApi.getKey(key);
+        }
+        if (!fresh) {
+            Entry entry = entries.get(normalized);
+            if (entry != null) {
+                hits.incrementAndGet();
+                synchronized (evictionPolicy) {
+                    evictionPolicy.onAccess(normalized);
+                }
+                return entry.key;
+            }
+        }
+        misses.incrementAndGet();
+        Key loaded = keysApi.getKey(key);
+        Integer version = version(loaded);
+        if (version != null) {
+            store(normalized, loaded, version);
+        }
+        return loaded;
+    }
+
+    /**
+     * Drop key from the cache so the next read goes to etcd.
+     * 
+     * @param key
+     *            the key to drop
+     */
+    public void invalidate(String key) {
+        String normalized = WatchMultiplexer.normalize(key);
+        synchronized (evictionPolicy) {
+            if (entries.remove(normalized) != null) {
+                evictionPolicy.onRemove(normalized);
+            }
+        }
+    }
+
+    /**
+     * Drop every key at or beneath prefix from the cache.
+     * 
+     * @param prefix
+     *            the directory to drop
+     */
+    public void invalidateAll(String prefix) {
+        String normalized = WatchMultiplexer.normalize(prefix);
+        for (String key : entries.keySet()) {
+            if (beneath(key, normalized)) {
+                invalidate(key);
+            }
+        }
+    }
+
+    public NearCacheStats stats() {
+        return NearCacheStats.create(hits.get(), misses.get(), evictions.get(), entries.size());
+    }
+
+    @Override
+    public void close() {
+        for (WatchRegistration registration : registrations) {
+            registration.close();
+        }
+        registrations.clear();
+        entries.clear();
+        if (ownsMultiplexer) {
+            multiplexer.close();
+        }
+    }
+
+    private boolean cached(String key) {
+        for (String prefix : prefixes) {
+            if (beneath(key, prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean beneath(String key, String prefix) {
+        return key.equals(prefix) || prefix.equals("/") || key.startsWith(prefix + "/");
+    }
+
+    /**
+     * The etcd index a read reflects, or null when it should not be cached.
+     * Directory listings change with every child so are never cached.
+     */
+    private static Integer version(Key key) {
+        if (key == null) {
+            return null;
+        }
+        ErrorMessage error = key.errorMessage();
+        if (error != null) {
+            return error.errorCode() == KEY_NOT_FOUND ? error.index() : null;
+        }
+        if (key.node() == null || key.node().dir()) {
+            return null;
+        }
+        return key.etcdIndex() != null ? key.etcdIndex() : key.node().modifiedIndex();
+    }
+
+    /**
+     * Store value unless an entry at the same or a newer index is already held.
+     * Keys are added and removed under the eviction lock, so that the
+     * EvictionPolicy tracks exactly the keys held.
+     */
+    private void store(String key, Key value, int version) {
+        Entry next = new Entry(value, version);
+        for (;;) {
+            Entry current = entries.get(key);
+            if (current == null) {
+                synchronized (evictionPolicy) {
+                    if (entries.putIfAbsent(key, next) == null) {
+                        inserted(key);
+                        return;
+                    }
+                }
+            } else if (current.version >= version || entries.replace(key, current, next)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Track key and evict down to maxSize. Called holding the eviction lock.
+     */
+    private void inserted(String key) {
+        evictionPolicy.onInsert(key);
+        while (entries.size() > maxSize) {
+            String victim = evictionPolicy.evict();
+            if (victim == null) {
+                break;
+            }
+            if (entries.remove(victim) != null) {
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    private static Key notFound(String key, int index) {
+        return Key.create(null, null, null, ErrorMessage.create(KEY_NOT_FOUND, "Key not found", key, index), index);
+    }
+
+    private static boolean removed(Key event) {
+        return "delete".equals(event.action()) || "expire".equals(event.action())
+                || "compareAndDelete".equals(event.action());
+    }
+
+    /**
+     * Applies the changes seen on a cached prefix.
+     */
+    private final class CoherenceListener implements WatchListener {
+        private final String prefix;
+
+        CoherenceListener(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public void onEvent(Key event) {
+            Node node = event.node();
+            int index = node.modifiedIndex();
+            if (node.dir()) {
+                if (removed(event)) {
+                    for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                        if (beneath(entry.getKey(), node.key())) {
+                            store(entry.getKey(), notFound(entry.getKey(), index), index);
+                        }
+                    }
+                }
+            } else if (removed(event)) {
+                store(node.key(), notFound(node.key(), index), index);
+            } else {
+                store(node.key(), Key.create("get", node, null, null, index), index);
+            }
+        }
+
+        @Override
+        public void onError(Throwable error) {
+            // changes may have been missed, nothing cached beneath prefix can be trusted
+            if (error instanceof EventIndexClearedException) {
+                invalidateAll(prefix);
+            }
+        }
+    }
+
+    private static final class Entry {
+        private final Key key;
+        private final int version;
+
+        Entry(Key key, int version) {
+            this.key = key;
+            this.version = version;
+        }
+    }
+
+    public static Builder builder(KeysApi keysApi) {
+        return new Builder(keysApi);
+    }
+
+    public static class Builder {
+        private final KeysApi keysApi;
+        private final List<String> prefixes = new ArrayList<String>();
+        private int maxSize = 10000;
+        private EvictionPolicy evictionPolicy;
+        private WatchMultiplexer multiplexer;
+
+        Builder(KeysApi keysApi) {
+            this.keysApi = keysApi;
+        }
+
+        /**
+         * Cache keys at or beneath prefix.
+         * 
+         * @param prefix
+         *            directory to cache
+         * @return this builder
+         */
+        public Builder prefix(String prefix) {
+            this.prefixes.add(checkNotNull(prefix, "prefix"));
+            return this;
+        }
+
+        public Builder maxSize(int maxSize) {
+            this.maxSize = maxSize;
+            return this;
+        }
+
+        /**
+         * How to choose a key to give up once maxSize is reached. Defaults to
+         * LruEvictionPolicy.
+         * 
+         * @param evictionPolicy
+         *            policy to evict with
+         * @return this builder
+         */
+        public Builder evictionPolicy(EvictionPolicy evictionPolicy) {
+            this.evictionPolicy = evictionPolicy;
+            return this;
+        }
+
+        /**
+         * Share the watches of an existing WatchMultiplexer. Defaults to one
+         * owned by the cache.
+         * 
+         * @param multiplexer
+         *            multiplexer to watch prefixes with
+         * @return this builder
+         */
+        public Builder multiplexer(WatchMultiplexer multiplexer) {
+            this.multiplexer = multiplexer;
+            return this;
+        }
+
+        /**
+         * Build the cache and start watching its prefixes.
+         * 
+         * @return started KeyNearCache
+         */
+        public KeyNearCache build() {
+            KeyNearCache cache = new KeyNearCache(keysApi, prefixes, maxSize,
+                    evictionPolicy != null ? evictionPolicy : new LruEvictionPolicy(), multiplexer);
+            try {
+                cache.start();
+            } catch (RuntimeException e) {
+                cache.close();
+                throw e;
+            }
+            return cache;
+        }
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cdancy.etcd.rest.cache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Evicts the least recently read key.
+ */
+public class LruEvictionPolicy implements EvictionPolicy {
+
+    private final LinkedHashMap<String, Boolean> keys;
+
+    public LruEvictionPolicy() {
+        this(true);
+    }
+
+    LruEvictionPolicy(boolean accessOrder) {
+        this.keys = new LinkedHashMap<String, Boolean>(16, 0.75f, accessOrder);
+    }
+
+    @Override
+    public void onInsert(String key) {
+        keys.put(key, Boolean.TRUE);
+    }
+
+    @Override
+    public void onAccess(String key) {
+        keys.get(key);
+    }
+
+    @Override
+    public void onRemove(String key) {
+        keys.remove(key);
+    }
+
+    @Override
+    public String evict() {
+        Iterator<String> eldest = keys.keySet().iterator();
+        if (!eldest.hasNext()) {
+            return null;
+        }
+        String key = eldest.next();
+        eldest.remove();
+        return key;
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cdancy.etcd.rest.cache;
+
+import com.google.auto.value.AutoValue;
+
+@AutoValue
+public abstract class NearCacheStats {
+
+    public abstract long hits();
+
+    public abstract long misses();
+
+    public abstract long evictions();
+
+    public abstract long size();
+
+    NearCacheStats() {
+    }
+
+    public static NearCacheStats create(long hits, long misses, long evictions, long size) {
+        return new AutoValue_NearCacheStats(hits, misses, evictions, size);
+    }
+
+    /**
+     * Fraction of reads served locally.
+     * 
+     * @return hit rate between 0 and 1
+     */
+    public double hitRate() {
+        long requests = hits() + misses();
+        return requests == 0 ? 1.0 : (double) hits() / requests;
+    }
+}
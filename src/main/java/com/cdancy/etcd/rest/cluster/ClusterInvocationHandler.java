@@ -0,0 +1,164 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cdancy.etcd.rest.cluster;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.ws.rs.GET;
+
+import org.jclouds.rest.annotations.Delegate;
+import org.jclouds.rest.annotations.QueryParams;
+
+import com.cdancy.etcd.rest.EtcdApi;
+import com.google.common.base.Throwables;
+
+/**
+ * Backs the EtcdApi handed out by {@link EtcdCluster}. Every call made on one
+ * of its feature apis is passed on to the same call of the endpoint the
+ * cluster routes it to, moving on to the next endpoint should that one not be
+ * reachable.
+ */
+final class ClusterInvocationHandler implements InvocationHandler {
+
+    private final EtcdCluster cluster;
+    private final ConcurrentMap<Method, Object> features = new ConcurrentHashMap<Method, Object>();
+
+    private ClusterInvocationHandler(EtcdCluster cluster) {
+        this.cluster = cluster;
+    }
+
+    static EtcdApi newProxy(EtcdCluster cluster) {
+        return (EtcdApi) Proxy.newProxyInstance(EtcdApi.class.getClassLoader(), new Class<?>[] { EtcdApi.class },
+                new ClusterInvocationHandler(cluster));
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        if (method.getDeclaringClass() == Object.class) {
+            return invokeObjectMethod(proxy, method, args, cluster);
+        } else if (method.isAnnotationPresent(Delegate.class)) {
+            Object feature = features.get(method);
+            if (feature == null) {
+                feature = Proxy.newProxyInstance(method.getReturnType().getClassLoader(),
+                        new Class<?>[] { method.getReturnType() }, new FeatureHandler(method));
+                Object existing = features.putIfAbsent(method, feature);
+                if (existing != null) {
+                    feature = existing;
+                }
+            }
+            return feature;
+        } else if (method.getName().equals("close")) {
+            cluster.close();
+            return null;
+        }
+        throw new UnsupportedOperationException(method.toString());
+    }
+
+    private static Object invokeObjectMethod(Object proxy, Method method, Object[] args, Object owner) {
+        if (method.getName().equals("equals")) {
+            return proxy == args[0];
+        } else if (method.getName().equals("hashCode")) {
+            return System.identityHashCode(proxy);
+        }
+        return owner.toString();
+    }
+
+    /**
+     * Whether a call failing with error may be tried again on another member.
+     * Calls which never reached their member always may, idempotent calls
+     * also may after any other I/O error. Timeouts are left alone as long
+     * polls time out on purpose.
+     * 
+     * @param error
+     *            the error the call failed with
+     * @param idempotent
+     *            whether the call can safely be made twice
+     * @return true to try the next member
+     */
+    static boolean shouldFailOver(Throwable error, boolean idempotent) {
+        for (Throwable cause : Throwables.getCausalChain(error)) {
+            if (cause instanceof ConnectException || cause instanceof NoRouteToHostException
+                    || cause instanceof UnknownHostException) {
+                return true;
+            } else if (idempotent && cause instanceof IOException && !(cause instanceof SocketTimeoutException)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Whether method waits for changes, and so takes as long as it takes for
+     * a change to be made rather than as long as the member takes to answer.
+     * 
+     * @param method
+     *            the feature api method being called
+     * @return true for watches
+     */
+    static boolean isWatch(Method method) {
+        QueryParams queryParams = method.getAnnotation(QueryParams.class);
+        return queryParams != null && Arrays.asList(queryParams.keys()).contains("wait");
+    }
+
+    /**
+     * Passes calls made on one feature api on to the endpoint chosen for them.
+     */
+    private final class FeatureHandler implements InvocationHandler {
+        private final Method delegate;
+
+        FeatureHandler(Method delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (method.getDeclaringClass() == Object.class) {
+                return invokeObjectMethod(proxy, method, args, delegate.getReturnType().getSimpleName() + "@" + cluster);
+            }
+            boolean idempotent = method.isAnnotationPresent(GET.class);
+            boolean watch = isWatch(method);
+            Throwable failure = null;
+            for (Endpoint endpoint : cluster.route(method)) {
+                try {
+                    long start = System.nanoTime();
+                    Object result = method.invoke(endpoint.delegate(delegate), args);
+                    cluster.succeeded(endpoint, result, watch ? -1 : System.nanoTime() - start);
+                    return result;
+                } catch (InvocationTargetException e) {
+                    failure = e.getCause();
+                    if (!shouldFailOver(failure, idempotent)) {
+                        throw failure;
+                    }
+                    cluster.failed(endpoint);
+                }
+            }
+            throw failure;
+        }
+    }
+}
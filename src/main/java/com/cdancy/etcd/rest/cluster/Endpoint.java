@@ -0,0 +1,134 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cdancy.etcd.rest.cluster;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.cdancy.etcd.rest.EtcdApi;
+import com.google.common.base.Throwables;
+
+/**
+ * A single cluster member requests can be routed to, along with the EtcdApi
+ * talking to it.
+ */
+public final class Endpoint {
+
+    public static final double LATENCY_WEIGHT = 0.3;
+
+    private final String url;
+    private final EtcdApi api;
+    private final boolean owned;
+    private final ConcurrentMap<Method, Object> delegates = new ConcurrentHashMap<Method, Object>();
+    private volatile boolean healthy = true;
+    private double latency = -1;
+
+    Endpoint(String url, EtcdApi api, boolean owned) {
+        this.url = checkNotNull(url, "url");
+        this.api = checkNotNull(api, "api");
+        this.owned = owned;
+    }
+
+    public String url() {
+        return url;
+    }
+
+    public EtcdApi api() {
+        return api;
+    }
+
+    /**
+     * Whether the member passed its last health check and has not failed to
+     * answer a call since.
+     * 
+     * @return true if healthy
+     */
+    public boolean healthy() {
+        return healthy;
+    }
+
+    void healthy(boolean healthy) {
+        this.healthy = healthy;
+    }
+
+    /**
+     * Exponentially weighted moving average of how long calls to the member
+     * have taken, giving the latest call a weight of
+     * {@link #LATENCY_WEIGHT}.
+     * 
+     * @return average latency in milliseconds or -1 if not yet measured
+     */
+    public synchronized double latency() {
+        return latency;
+    }
+
+    /**
+     * Add a measured call to the average latency.
+     * 
+     * @param nanos
+     *            how long the call took
+     */
+    synchronized void recordLatency(long nanos) {
+        double millis = nanos / 1000000.0;
+        latency = latency < 0 ? millis : LATENCY_WEIGHT * millis + (1 - LATENCY_WEIGHT) * latency;
+    }
+
+    /**
+     * Whether the EtcdApi was created for, and so should be closed with, the
+     * cluster.
+     * 
+     * @return true if owned by the cluster
+     */
+    boolean owned() {
+        return owned;
+    }
+
+    /**
+     * The feature api, such as KeysApi, EtcdApi hands back from delegate.
+     * 
+     * @param delegate
+     *            the EtcdApi method returning the feature api
+     * @return feature api of this endpoint
+     */
+    Object delegate(Method delegate) {
+        Object feature = delegates.get(delegate);
+        if (feature == null) {
+            try {
+                feature = delegate.invoke(api);
+            } catch (InvocationTargetException e) {
+                throw Throwables.propagate(e.getCause());
+            } catch (IllegalAccessException e) {
+                throw Throwables.propagate(e);
+            }
+            Object existing = delegates.putIfAbsent(delegate, feature);
+            if (existing != null) {
+                feature = existing;
+            }
+        }
+        return feature;
+    }
+
+    @Override
+    public String toString() {
+        return url;
+    }
+}
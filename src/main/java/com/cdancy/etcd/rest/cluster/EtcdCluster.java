@@ -0,0 +1,573 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cdancy.etcd.rest.cluster;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static org.jclouds.util.Closeables2.closeQuietly;
+
+import java.io.Closeable;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.ws.rs.GET;
+
+import org.jclouds.Constants;
+
+import com.cdancy.etcd.rest.EtcdApi;
+import com.cdancy.etcd.rest.EtcdClient;
+import com.cdancy.etcd.rest.domain.keys.Key;
+import com.cdancy.etcd.rest.domain.members.Member;
+import com.cdancy.etcd.rest.domain.statistics.Self;
+import com.cdancy.etcd.rest.features.KeysApi;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Routes calls across the members of a cluster. Members are either given up
+ * front or learned from MembersApi.list(), and each of them gets its own
+ * EtcdApi. Every KeysApi GET, such as getKey, goes to the healthy member the
+ * {@link EndpointSelector} picks, by default each in turn. Everything else
+ * goes straight to the leader, saving the hop a follower would otherwise make
+ * to forward it, or to the seed endpoint, or the first healthy member should
+ * the seed be down, while the leader is not known.
+ * 
+ * <p>
+ * The leader is found through StatisticsApi.self() and MembersApi.list(). It
+ * is looked up again on every health check, as soon as a write to it fails,
+ * and as soon as a keys response carries a higher X-Raft-Term than seen
+ * before, meaning a new leader has been elected.
+ * </p>
+ * 
+ * <p>
+ * Members are health checked in the background with MiscellaneousApi.health(),
+ * and their latency measured with MiscellaneousApi.version() as well as on
+ * every call other than a watch. A call failing because its member could not
+ * be reached is retried on the next healthy member, as is a GET failing with
+ * any other I/O error, so a member restart only costs the calls in flight to
+ * it a second attempt.
+ * </p>
+ * 
+ * <p>
+ * Reads served by a follower may lag slightly behind the leader. Calls which
+ * must see the latest committed value can ask for a quorum read, for example
+ * with {@link KeysApi#getKey(String, boolean)}.
+ * </p>
+ */
+public class EtcdCluster implements Closeable {
+
+    public static final long DEFAULT_HEALTH_CHECK_INTERVAL = 5000;
+
+    private static final ThreadFactory MAINTENANCE_THREADS = new ThreadFactoryBuilder()
+            .setNameFormat("etcd-cluster-%d").setDaemon(true).build();
+
+    private final String credentials;
+    private final Endpoint seed;
+    private final boolean balanceReads;
+    private final boolean leaderAware;
+    private final EndpointSelector selector;
+    private final AtomicInteger raftTerm = new AtomicInteger();
+    private final AtomicBoolean leaderLookupPending = new AtomicBoolean();
+    private final EtcdApi api;
+    private final ScheduledExecutorService maintenance;
+    private final Map<String, Endpoint> others = new HashMap<String, Endpoint>();
+    private volatile List<Endpoint> readers;
+    private volatile Endpoint leader;
+    private volatile boolean closed;
+
+    EtcdCluster(Endpoint seed, List<Endpoint> endpoints, String credentials, boolean discover, boolean balanceReads,
+            boolean leaderAware, EndpointSelector selector, long healthCheckInterval) {
+        checkArgument(healthCheckInterval >= 0, "healthCheckInterval must not be negative");
+        this.seed = checkNotNull(seed, "seed");
+        this.credentials = credentials;
+        this.balanceReads = balanceReads;
+        this.leaderAware = leaderAware;
+        this.selector = checkNotNull(selector, "selector");
+        this.readers = Collections.unmodifiableList(new ArrayList<Endpoint>(endpoints));
+        this.api = ClusterInvocationHandler.newProxy(this);
+        this.maintenance = Executors.newSingleThreadScheduledExecutor(MAINTENANCE_THREADS);
+        if (discover) {
+            refresh();
+        }
+        if (leaderAware) {
+            findLeader();
+        }
+        if (healthCheckInterval > 0) {
+            this.maintenance.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    checkHealth();
+                    if (EtcdCluster.this.leaderAware) {
+                        findLeader();
+                    }
+                }
+            }, healthCheckInterval, healthCheckInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Learn the members of the cluster again, creating an EtcdApi for new
+     * members and closing those of members which have gone. The current
+     * members are kept should the cluster not answer.
+     * 
+     * @return the endpoints reads are now spread over
+     */
+    public synchronized List<Endpoint> refresh() {
+        List<Member> members = api.membersApi().list();
+        if (closed || members == null || members.isEmpty()) {
+            return readers;
+        }
+        Map<String, Endpoint> current = new HashMap<String, Endpoint>();
+        for (Endpoint endpoint : readers) {
+            current.put(endpoint.url(), endpoint);
+        }
+        List<Endpoint> discovered = new ArrayList<Endpoint>();
+        for (Member member : members) {
+            if (member.clientURLs().isEmpty()) {
+                continue;
+            }
+            String url = stripSlash(member.clientURLs().get(0));
+            Endpoint endpoint = current.remove(url);
+            if (endpoint == null) {
+                endpoint = url.equals(seed.url()) ? seed : others.remove(url);
+            }
+            if (endpoint == null) {
+                endpoint = newEndpoint(url, credentials);
+            }
+            if (!discovered.contains(endpoint)) {
+                discovered.add(endpoint);
+            }
+        }
+        if (discovered.isEmpty()) {
+            return readers;
+        }
+        readers = Collections.unmodifiableList(discovered);
+        for (Endpoint gone : current.values()) {
+            if (gone == leader) {
+                others.put(gone.url(), gone);
+            } else if (gone.owned() && gone != seed) {
+                closeQuietly(gone.api());
+            }
+        }
+        return readers;
+    }
+
+    /**
+     * Look up the current leader, creating an EtcdApi for it should it not
+     * be one of the known members.
+     * 
+     * @return the leader or null if it could not be found
+     */
+    public synchronized Endpoint findLeader() {
+        Endpoint found = null;
+        try {
+            Self self = api.statisticsApi().self();
+            String leaderId = self.leaderInfo() != null ? self.leaderInfo().leader() : null;
+            if (leaderId != null && !closed) {
+                for (Member member : api.membersApi().list()) {
+                    if (leaderId.equals(member.id()) && !member.clientURLs().isEmpty()) {
+                        found = endpoint(stripSlash(member.clientURLs().get(0)));
+                        break;
+                    }
+                }
+            }
+        } catch (RuntimeException e) {
+            found = null;
+        }
+        leader = found;
+        return found;
+    }
+
+    /**
+     * The leader writes are sent to.
+     * 
+     * @return the leader or null while not known
+     */
+    public Endpoint leader() {
+        return leader;
+    }
+
+    private Endpoint endpoint(String url) {
+        for (Endpoint endpoint : readers) {
+            if (endpoint.url().equals(url)) {
+                return endpoint;
+            }
+        }
+        if (seed.url().equals(url)) {
+            return seed;
+        }
+        Endpoint endpoint = others.get(url);
+        if (endpoint == null) {
+            endpoint = newEndpoint(url, credentials);
+            others.put(url, endpoint);
+        }
+        return endpoint;
+    }
+
+    /**
+     * Look the leader up again in the background, unless a lookup is
+     * already pending.
+     */
+    void leaderSuspect() {
+        if (!leaderAware || closed || !leaderLookupPending.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            maintenance.execute(new Runnable() {
+                @Override
+                public void run() {
+                    leaderLookupPending.set(false);
+                    findLeader();
+                }
+            });
+        } catch (RuntimeException e) {
+            leaderLookupPending.set(false);
+        }
+    }
+
+    /**
+     * Note that a call made on endpoint could not reach it.
+     * 
+     * @param endpoint
+     *            the endpoint which failed
+     */
+    void failed(Endpoint endpoint) {
+        endpoint.healthy(false);
+        if (endpoint == leader) {
+            leaderSuspect();
+        }
+    }
+
+    /**
+     * Note a result a call made on endpoint handed back along with how long
+     * the call took, and look for a raft term newer than the leader was found
+     * in.
+     * 
+     * @param endpoint
+     *            the endpoint which answered
+     * @param result
+     *            what the call returned
+     * @param nanos
+     *            how long the call took, negative if it should not count
+     *            towards the latency of endpoint
+     */
+    void succeeded(Endpoint endpoint, Object result, long nanos) {
+        if (nanos >= 0) {
+            endpoint.recordLatency(nanos);
+        }
+        if (!endpoint.healthy()) {
+            endpoint.healthy(true);
+        }
+        if (result instanceof Key && ((Key) result).raftTerm() != null) {
+            int term = ((Key) result).raftTerm();
+            int previous = raftTerm.get();
+            while (term > previous) {
+                if (raftTerm.compareAndSet(previous, term)) {
+                    if (previous != 0) {
+                        leaderSuspect();
+                    }
+                    break;
+                }
+                previous = raftTerm.get();
+            }
+        }
+    }
+
+    /**
+     * Ask every member whether it is healthy, and time how long it takes to
+     * answer a version request, now rather than on the next scheduled check.
+     */
+    public void checkHealth() {
+        List<Endpoint> current = new ArrayList<Endpoint>(readers);
+        if (!current.contains(seed)) {
+            current.add(seed);
+        }
+        for (Endpoint endpoint : current) {
+            boolean healthy;
+            try {
+                healthy = endpoint.api().miscellaneousApi().health();
+                if (healthy) {
+                    long start = System.nanoTime();
+                    endpoint.api().miscellaneousApi().version();
+                    endpoint.recordLatency(System.nanoTime() - start);
+                }
+            } catch (RuntimeException e) {
+                healthy = false;
+            }
+            endpoint.healthy(healthy);
+        }
+    }
+
+    /**
+     * The average latency of every member reads are spread over.
+     * 
+     * @return url of each member to its latency in milliseconds, -1 if not
+     *         yet measured
+     */
+    public Map<String, Double> latencies() {
+        Map<String, Double> latencies = new LinkedHashMap<String, Double>();
+        for (Endpoint endpoint : readers) {
+            latencies.put(endpoint.url(), endpoint.latency());
+        }
+        return latencies;
+    }
+
+    /**
+     * The endpoints reads are spread over.
+     * 
+     * @return read endpoints
+     */
+    public List<Endpoint> readers() {
+        return readers;
+    }
+
+    /**
+     * The endpoint calls other than key reads currently go to.
+     * 
+     * @return the leader if known, otherwise the seed, or the first healthy
+     *         member if the seed is down
+     */
+    public Endpoint writer() {
+        Endpoint current = leader;
+        if (current != null && current.healthy()) {
+            return current;
+        }
+        if (seed.healthy()) {
+            return seed;
+        }
+        for (Endpoint endpoint : readers) {
+            if (endpoint.healthy()) {
+                return endpoint;
+            }
+        }
+        return seed;
+    }
+
+    /**
+     * The endpoints to try method on, in order: the one picked for it first,
+     * then every other healthy member, then the unhealthy ones.
+     * 
+     * @param method
+     *            the feature api method about to be called
+     * @return endpoints to try
+     */
+    List<Endpoint> route(Method method) {
+        List<Endpoint> current = readers;
+        Endpoint first = balanceReads && isKeyRead(method) ? selector.select(current) : writer();
+        List<Endpoint> ordered = new ArrayList<Endpoint>(current.size() + 1);
+        ordered.add(first);
+        for (Endpoint endpoint : current) {
+            if (endpoint != first && endpoint.healthy()) {
+                ordered.add(endpoint);
+            }
+        }
+        for (Endpoint endpoint : current) {
+            if (endpoint != first && !endpoint.healthy()) {
+                ordered.add(endpoint);
+            }
+        }
+        return ordered;
+    }
+
+    /**
+     * Whether method reads keys, and so may be answered by any member. The
+     * statistics and miscellaneous GETs describe the member answering them,
+     * or, as StatisticsApi.leader() does, are only answered by the leader.
+     * 
+     * @param method
+     *            the feature api method about to be called
+     * @return true for KeysApi GETs
+     */
+    static boolean isKeyRead(Method method) {
+        return method.getDeclaringClass() == KeysApi.class && method.isAnnotationPresent(GET.class);
+    }
+
+    /**
+     * EtcdApi whose calls are routed across the cluster.
+     * 
+     * @return routing EtcdApi
+     */
+    public EtcdApi api() {
+        return api;
+    }
+
+    public KeysApi keysApi() {
+        return api.keysApi();
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+        maintenance.shutdownNow();
+        for (Endpoint endpoint : others.values()) {
+            closeQuietly(endpoint.api());
+        }
+        for (Endpoint endpoint : readers) {
+            if (endpoint.owned() && endpoint != seed) {
+                closeQuietly(endpoint.api());
+            }
+        }
+        if (seed.owned()) {
+            closeQuietly(seed.api());
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "EtcdCluster" + readers;
+    }
+
+    /**
+     * Create an endpoint whose EtcdApi makes a single attempt per call,
+     * leaving retries to the failover between members.
+     */
+    private static Endpoint newEndpoint(String url, String credentials) {
+        Properties overrides = new Properties();
+        overrides.setProperty(Constants.PROPERTY_MAX_RETRIES, "0");
+        return new Endpoint(url, EtcdClient.createApi(url, credentials, overrides), true);
+    }
+
+    private static String stripSlash(String url) {
+        return url.endsWith("/") ? url.substring(0, url.length() - 1) : url;
+    }
+
+    public static Builder builder(EtcdClient seed) {
+        return new Builder(seed, null, null);
+    }
+
+    public static Builder builder(List<String> endPoints, String credentials) {
+        return new Builder(null, endPoints, credentials);
+    }
+
+    public static class Builder {
+        private final EtcdClient seed;
+        private final List<String> endPoints;
+        private final String credentials;
+        private boolean discover = true;
+        private boolean balanceReads = true;
+        private boolean leaderAware = true;
+        private EndpointSelector selector = new RoundRobinSelector();
+        private long healthCheckInterval = DEFAULT_HEALTH_CHECK_INTERVAL;
+
+        Builder(EtcdClient seed, List<String> endPoints, String credentials) {
+            this.seed = seed;
+            this.endPoints = endPoints;
+            this.credentials = credentials;
+        }
+
+        /**
+         * Whether to learn the other members from the cluster itself. Without
+         * discovery only the seed, or the given endpoints, are used.
+         * 
+         * @param discover
+         *            whether to discover members
+         * @return this builder
+         */
+        public Builder discover(boolean discover) {
+            this.discover = discover;
+            return this;
+        }
+
+        /**
+         * Whether KeysApi GETs are spread over every healthy member. When
+         * not, they go where every other call goes and the other members are
+         * only failed over to.
+         * 
+         * @param balanceReads
+         *            whether to spread reads
+         * @return this builder
+         */
+        public Builder balanceReads(boolean balanceReads) {
+            this.balanceReads = balanceReads;
+            return this;
+        }
+
+        /**
+         * Whether calls other than key reads are sent straight to the leader.
+         * 
+         * @param leaderAware
+         *            whether to find and write to the leader
+         * @return this builder
+         */
+        public Builder leaderAware(boolean leaderAware) {
+            this.leaderAware = leaderAware;
+            return this;
+        }
+
+        /**
+         * How key reads pick the member they go to. Defaults to a
+         * {@link RoundRobinSelector}; a {@link LatencyAwareSelector} keeps
+         * reads on the fastest members instead.
+         * 
+         * @param selector
+         *            selector to pick members with
+         * @return this builder
+         */
+        public Builder selector(EndpointSelector selector) {
+            this.selector = selector;
+            return this;
+        }
+
+        /**
+         * How often members are health checked, and the leader looked up, 0
+         * to never check them.
+         * 
+         * @param interval
+         *            time between checks
+         * @param unit
+         *            unit of interval
+         * @return this builder
+         */
+        public Builder healthCheckInterval(long interval, TimeUnit unit) {
+            this.healthCheckInterval = unit.toMillis(interval);
+            return this;
+        }
+
+        /**
+         * Build the cluster, discovering its members if asked to.
+         * 
+         * @return EtcdCluster instance
+         */
+        public EtcdCluster build() {
+            if (seed != null) {
+                Endpoint endpoint = new Endpoint(stripSlash(seed.endPoint()), seed.api(), false);
+                return new EtcdCluster(endpoint, Collections.singletonList(endpoint), seed.credentials(), discover,
+                        balanceReads, leaderAware, selector, healthCheckInterval);
+            }
+            checkArgument(endPoints != null && !endPoints.isEmpty(), "endPoints must not be empty");
+            String resolved = credentials != null ? credentials : "";
+            List<Endpoint> endpoints = new ArrayList<Endpoint>();
+            for (String endPoint : endPoints) {
+                endpoints.add(newEndpoint(stripSlash(endPoint), resolved));
+            }
+            return new EtcdCluster(endpoints.get(0), endpoints, resolved, discover, balanceReads, leaderAware,
+                    selector, healthCheckInterval);
+        }
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cdancy.etcd.rest.cluster;
+
+import java.util.List;
+
+/**
+ * Hands reads to the healthy member with the lowest average latency, so that
+ * reads stay with the closest members. Members nothing has been measured for
+ * yet are picked first, so every member gets measured.
+ */
+public class LatencyAwareSelector implements EndpointSelector {
+
+    @Override
+    public Endpoint select(List<Endpoint> endpoints) {
+        Endpoint fastest = null;
+        double fastestLatency = Double.MAX_VALUE;
+        for (Endpoint endpoint : endpoints) {
+            if (!endpoint.healthy()) {
+                continue;
+            }
+            double latency = endpoint.latency();
+            if (latency < 0) {
+                return endpoint;
+            }
+            if (latency < fastestLatency) {
+                fastest = endpoint;
+                fastestLatency = latency;
+            }
+        }
+        return fastest != null ? fastest : endpoints.get(0);
+    }
+}
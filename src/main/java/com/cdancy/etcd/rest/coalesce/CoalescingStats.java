@@ -0,0 +1,46 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cdancy.etcd.rest.coalesce;
+
+import com.google.auto.value.AutoValue;
+
+@AutoValue
+public abstract class CoalescingStats {
+
+    public abstract long calls();
+
+    public abstract long executed();
+
+    public abstract long coalesced();
+
+    CoalescingStats() {
+    }
+
+    public static CoalescingStats create(long calls, long executed, long coalesced) {
+        return new AutoValue_CoalescingStats(calls, executed, coalesced);
+    }
+
+    /**
+     * Fraction of calls which shared another call's request.
+     * 
+     * @return coalesced rate between 0 and 1
+     */
+    public double coalescedRate() {
+        return calls() == 0 ? 0.0 : (double) coalesced() / calls();
+    }
+}
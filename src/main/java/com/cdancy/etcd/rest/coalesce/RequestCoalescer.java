@@ -0,0 +1,252 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cdancy.etcd.rest.coalesce;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.InputStream;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.QueryParam;
+
+import org.jclouds.http.HttpResponse;
+import org.jclouds.rest.annotations.Delegate;
+import org.jclouds.rest.annotations.QueryParams;
+
+import com.cdancy.etcd.rest.EtcdApi;
+import com.cdancy.etcd.rest.features.KeysApi;
+import com.cdancy.etcd.rest.features.MiscellaneousApi;
+import com.cdancy.etcd.rest.features.StatisticsApi;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+/**
+ * Lets identical reads made at the same time share a single request. While a
+ * GET of KeysApi, StatisticsApi or MiscellaneousApi is in flight, every other
+ * call of the same method with equal arguments waits for it and is handed the
+ * same result, or the same exception, instead of making a request of its own.
+ * Calls handing back an open response, such as KeysApi.streamKey, are never
+ * shared. Neither are waits for a change nor quorum reads, as a request
+ * already in flight may have started before a write the caller has since
+ * made.
+ */
+public class RequestCoalescer {
+
+    private static final Set<Class<?>> COALESCED_APIS = ImmutableSet.<Class<?>> of(KeysApi.class,
+            StatisticsApi.class, MiscellaneousApi.class);
+
+    private final EtcdApi delegate;
+    private final EtcdApi api;
+    private final ConcurrentMap<List<Object>, SettableFuture<Object>> inFlight =
+            new ConcurrentHashMap<List<Object>, SettableFuture<Object>>();
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+
+    RequestCoalescer(EtcdApi delegate) {
+        this.delegate = checkNotNull(delegate, "delegate");
+        this.api = (EtcdApi) Proxy.newProxyInstance(EtcdApi.class.getClassLoader(),
+                new Class<?>[] { EtcdApi.class }, new ApiHandler());
+    }
+
+    public static RequestCoalescer create(EtcdApi delegate) {
+        return new RequestCoalescer(delegate);
+    }
+
+    /**
+     * EtcdApi whose reads are coalesced. Closing it closes the wrapped
+     * EtcdApi.
+     * 
+     * @return coalescing EtcdApi
+     */
+    public EtcdApi api() {
+        return api;
+    }
+
+    public KeysApi keysApi() {
+        return api.keysApi();
+    }
+
+    /**
+     * Counts of the coalescable calls made so far.
+     * 
+     * @return current statistics
+     */
+    public CoalescingStats stats() {
+        long total = calls.get();
+        long shared = coalesced.get();
+        return CoalescingStats.create(total, total - shared, shared);
+    }
+
+    /**
+     * Whether calls of method may share their request.
+     * 
+     * @param method
+     *            the feature api method being called
+     * @return true for GETs neither waiting on a change nor handing back an
+     *         open response
+     */
+    static boolean coalescable(Method method) {
+        if (!method.isAnnotationPresent(GET.class) || method.getReturnType() == InputStream.class
+                || method.getReturnType() == HttpResponse.class) {
+            return false;
+        }
+        QueryParams queryParams = method.getAnnotation(QueryParams.class);
+        return queryParams == null || !Arrays.asList(queryParams.keys()).contains("wait");
+    }
+
+    /**
+     * Whether the call asks for a quorum read. Such a read must reflect every
+     * write completed before it was made, which a request already in flight
+     * may not.
+     * 
+     * @param method
+     *            the feature api method being called
+     * @param args
+     *            arguments of the call
+     * @return true if a quorum argument is set
+     */
+    static boolean quorum(Method method, Object[] args) {
+        Annotation[][] annotations = method.getParameterAnnotations();
+        for (int i = 0; i < annotations.length; i++) {
+            for (Annotation annotation : annotations[i]) {
+                if (annotation instanceof QueryParam && ((QueryParam) annotation).value().equals("quorum")
+                        && Boolean.TRUE.equals(args[i])) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Make the call, unless an identical one is already in flight in which
+     * case wait for and share its outcome.
+     */
+    private Object call(Object target, Method method, Object[] args) throws Throwable {
+        calls.incrementAndGet();
+        ImmutableList.Builder<Object> key = ImmutableList.builder();
+        key.add(method);
+        if (args != null) {
+            key.add(Arrays.asList(args));
+        }
+        List<Object> callKey = key.build();
+        SettableFuture<Object> call = SettableFuture.create();
+        SettableFuture<Object> existing = inFlight.putIfAbsent(callKey, call);
+        if (existing != null) {
+            coalesced.incrementAndGet();
+            try {
+                return Uninterruptibles.getUninterruptibly(existing);
+            } catch (ExecutionException e) {
+                throw e.getCause();
+            }
+        }
+        try {
+            Object result = method.invoke(target, args);
+            call.set(result);
+            return result;
+        } catch (InvocationTargetException e) {
+            call.setException(e.getCause());
+            throw e.getCause();
+        } catch (Throwable e) {
+            call.setException(e);
+            throw e;
+        } finally {
+            inFlight.remove(callKey, call);
+        }
+    }
+
+    /**
+     * Hands out coalescing proxies of the feature apis whose reads are
+     * coalesced and passes everything else straight through.
+     */
+    private final class ApiHandler implements InvocationHandler {
+        private final ConcurrentMap<Method, Object> features = new ConcurrentHashMap<Method, Object>();
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (method.getDeclaringClass() == Object.class) {
+                return invokeObjectMethod(proxy, method, args);
+            }
+            Object result = invokeDelegate(delegate, method, args);
+            if (!method.isAnnotationPresent(Delegate.class) || !COALESCED_APIS.contains(method.getReturnType())) {
+                return result;
+            }
+            Object feature = features.get(method);
+            if (feature == null) {
+                feature = Proxy.newProxyInstance(method.getReturnType().getClassLoader(),
+                        new Class<?>[] { method.getReturnType() }, new FeatureHandler(result));
+                Object existing = features.putIfAbsent(method, feature);
+                if (existing != null) {
+                    feature = existing;
+                }
+            }
+            return feature;
+        }
+    }
+
+    /**
+     * Coalesces the reads of a single feature api.
+     */
+    private final class FeatureHandler implements InvocationHandler {
+        private final Object target;
+
+        FeatureHandler(Object target) {
+            this.target = target;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (method.getDeclaringClass() == Object.class) {
+                return invokeObjectMethod(proxy, method, args);
+            }
+            return coalescable(method) && !quorum(method, args) ? call(target, method, args)
+                    : invokeDelegate(target, method, args);
+        }
+    }
+
+    private static Object invokeDelegate(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static Object invokeObjectMethod(Object proxy, Method method, Object[] args) {
+        if (method.getName().equals("equals")) {
+            return proxy == args[0];
+        } else if (method.getName().equals("hashCode")) {
+            return System.identityHashCode(proxy);
+        }
+        return "RequestCoalescer@" + Integer.toHexString(System.identityHashCode(proxy));
+    }
+}
@@ -17,20 +17,31 @@
 
 package com.cdancy.etcd.rest.config;
 
+import javax.inject.Named;
+import javax.inject.Singleton;
+
 import org.jclouds.http.HttpCommandExecutorService;
 import org.jclouds.http.HttpErrorHandler;
 import org.jclouds.http.annotation.ClientError;
 import org.jclouds.http.annotation.Redirection;
 import org.jclouds.http.annotation.ServerError;
 import org.jclouds.http.config.ConfiguresHttpCommandExecutorService;
+import org.jclouds.http.config.SSLModule;
+import org.jclouds.http.internal.JavaUrlHttpCommandExecutorService;
 import org.jclouds.http.okhttp.OkHttpCommandExecutorService;
 import org.jclouds.rest.ConfiguresHttpApi;
 import org.jclouds.rest.config.HttpApiModule;
 
 import com.cdancy.etcd.rest.EtcdApi;
+import com.cdancy.etcd.rest.EtcdApiMetadata;
 import com.cdancy.etcd.rest.handlers.EtcdErrorHandler;
-import com.google.inject.Scopes;
+import com.google.inject.Injector;
+import com.google.inject.Provides;
 
+/**
+ * Configures the EtcdApi along with the HTTP transport it sends requests
+ * over, chosen through {@link EtcdApiMetadata#HTTP_TRANSPORT}.
+ */
 @ConfiguresHttpApi
 @ConfiguresHttpCommandExecutorService
 public class EtcdHttpApiModule extends HttpApiModule<EtcdApi> {
@@ -44,6 +55,30 @@ public class EtcdHttpApiModule extends HttpApiModule<EtcdApi> {
 
     protected void configure() {
         super.configure();
-        bind(HttpCommandExecutorService.class).to(OkHttpCommandExecutorService.class).in(Scopes.SINGLETON);
+        install(new SSLModule());
+    }
+
+    /**
+     * The transport named by {@link EtcdApiMetadata#HTTP_TRANSPORT}. Only the
+     * chosen one is ever created.
+     * 
+     * @param transport
+     *            name of the transport to use
+     * @param injector
+     *            injector to create the transport with
+     * @return the transport requests are sent over
+     */
+    @Provides
+    @Singleton
+    protected HttpCommandExecutorService provideHttpCommandExecutorService(
+            @Named(EtcdApiMetadata.HTTP_TRANSPORT) String transport, Injector injector) {
+        if (EtcdApiMetadata.TRANSPORT_OKHTTP.equals(transport)) {
+            return injector.getInstance(OkHttpCommandExecutorService.class);
+        } else if (EtcdApiMetadata.TRANSPORT_JAVA_URL.equals(transport)) {
+            return injector.getInstance(JavaUrlHttpCommandExecutorService.class);
+        }
+        throw new IllegalArgumentException(String.format("unknown %s '%s', expected '%s' or '%s'",
+                EtcdApiMetadata.HTTP_TRANSPORT, transport, EtcdApiMetadata.TRANSPORT_OKHTTP,
+                EtcdApiMetadata.TRANSPORT_JAVA_URL));
     }
 }
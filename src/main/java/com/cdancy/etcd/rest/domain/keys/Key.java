@@ -38,11 +38,37 @@ public abstract class Key {
     @Nullable
     public abstract ErrorMessage errorMessage();
 
+    /**
+     * The value of the X-Etcd-Index header handed back with this response.
+     * 
+     * @return current etcd index or null if not known
+     */
+    @Nullable
+    public abstract Integer etcdIndex();
+
+    /**
+     * The value of the X-Raft-Term header handed back with this response. The
+     * term goes up every time the cluster elects a new leader.
+     * 
+     * @return current raft term or null if not known
+     */
+    @Nullable
+    public abstract Integer raftTerm();
+
     Key() {
     }
 
-    @SerializedNames({ "action", "node", "prevNode", "errorMessage" })
     public static Key create(String action, Node node, Node prevNode, ErrorMessage errorMessage) {
-        return new AutoValue_Key(action, node, prevNode, errorMessage);
+        return create(action, node, prevNode, errorMessage, null);
+    }
+
+    public static Key create(String action, Node node, Node prevNode, ErrorMessage errorMessage, Integer etcdIndex) {
+        return create(action, node, prevNode, errorMessage, etcdIndex, null);
+    }
+
+    @SerializedNames({ "action", "node", "prevNode", "errorMessage", "etcdIndex", "raftTerm" })
+    public static Key create(String action, Node node, Node prevNode, ErrorMessage errorMessage, Integer etcdIndex,
+            Integer raftTerm) {
+        return new AutoValue_Key(action, node, prevNode, errorMessage, etcdIndex, raftTerm);
     }
 }
@@ -25,6 +25,12 @@ import com.google.auto.value.AutoValue;
 @AutoValue
 public abstract class ErrorMessage {
 
+    public static final int KEY_NOT_FOUND = 100;
+    public static final int COMPARE_FAILED = 101;
+    public static final int NOT_A_FILE = 102;
+    public static final int KEY_ALREADY_EXISTS = 105;
+    public static final int EVENT_INDEX_CLEARED = 401;
+
     public abstract int errorCode();
 
     @Nullable
@@ -0,0 +1,115 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cdancy.etcd.rest.error;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import com.google.common.base.Throwables;
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+/**
+ * Carries the ErrorMessage decoded from an etcd error response as the cause of
+ * the exception thrown for it, so that fallbacks can act on its errorCode
+ * without parsing the response again. Being only a carrier it has no stack
+ * trace of its own.
+ */
+public final class EtcdError extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final ErrorMessage errorMessage;
+
+    public EtcdError(ErrorMessage errorMessage) {
+        super(errorMessage.message(), null, false, false);
+        this.errorMessage = errorMessage;
+    }
+
+    public ErrorMessage errorMessage() {
+        return errorMessage;
+    }
+
+    /**
+     * Find the ErrorMessage carried by throwable or one of its causes.
+     * 
+     * @param throwable
+     *            the exception to look through
+     * @return ErrorMessage or null if none is carried
+     */
+    public static ErrorMessage errorMessage(Throwable throwable) {
+        for (Throwable cause : Throwables.getCausalChain(throwable)) {
+            if (cause instanceof EtcdError) {
+                return ((EtcdError) cause).errorMessage();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Decode the body of an etcd error response. Fields etcd did not send are
+     * left at -1 or null.
+     * 
+     * @param body
+     *            the error response body
+     * @return ErrorMessage or null if body is not a JSON object
+     */
+    public static ErrorMessage decode(String body) {
+        if (body == null) {
+            return null;
+        }
+        int errorCode = -1;
+        String message = null;
+        String cause = null;
+        int index = -1;
+        JsonReader reader = new JsonReader(new StringReader(body));
+        reader.setLenient(true);
+        try {
+            if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+                return null;
+            }
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (reader.peek() == JsonToken.NULL) {
+                    reader.skipValue();
+                } else if (name.equals("errorCode")) {
+                    errorCode = reader.nextInt();
+                } else if (name.equals("message")) {
+                    message = reader.nextString();
+                } else if (name.equals("cause")) {
+                    cause = reader.nextString();
+                } else if (name.equals("index")) {
+                    index = reader.nextInt();
+                } else {
+                    reader.skipValue();
+                }
+            }
+        } catch (IOException e) {
+            return null;
+        } catch (IllegalStateException e) {
+            return null;
+        } catch (NumberFormatException e) {
+            return null;
+        } catch (JsonParseException e) {
+            return null;
+        }
+        return errorCode == -1 && message == null ? null : ErrorMessage.create(errorCode, message, cause, index);
+    }
+}
@@ -17,6 +17,7 @@
 
 package com.cdancy.etcd.rest.fallbacks;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Predicates.equalTo;
 import static com.google.common.base.Throwables.propagate;
@@ -33,13 +34,17 @@ import com.cdancy.etcd.rest.domain.auth.User;
 import com.cdancy.etcd.rest.domain.keys.Key;
 import com.cdancy.etcd.rest.domain.members.Member;
 import com.cdancy.etcd.rest.error.ErrorMessage;
-import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
+import com.cdancy.etcd.rest.error.EtcdError;
 
+/**
+ * Fallbacks act on the {@link ErrorMessage} the error handler attaches to the
+ * exception, see {@link EtcdError}, and only decode the exception message
+ * themselves when none is attached.
+ */
 public final class EtcdFallbacks {
 
-    private static final JsonParser PARSER = new JsonParser();
+    private static final Pattern USER_ALREADY_EXISTS = Pattern.compile(".*User (.+) already exists.*");
+    private static final Pattern ROLE_ALREADY_EXISTS = Pattern.compile(".*Role (.+) already exists.*");
 
     private EtcdFallbacks() {
     }
@@ -57,8 +62,9 @@ public final class EtcdFallbacks {
 
     public static final class MemberOnIllegalRequest implements Fallback<Object> {
         public Object createOrPropagate(Throwable throwable) throws Exception {
-            if (checkNotNull(throwable, "throwable") != null && throwable.getMessage().contains("message")) {
-                return createMemberFromErrorMessage(throwable.getMessage());
+            ErrorMessage error = errorMessage(throwable);
+            if (error != null && error.message() != null) {
+                return createMemberFromErrorMessage(error);
             }
             throw propagate(throwable);
         }
@@ -66,8 +72,9 @@ public final class EtcdFallbacks {
 
     public static final class KeyOnAlreadyExists implements Fallback<Object> {
         public Object createOrPropagate(Throwable throwable) throws Exception {
-            if (checkNotNull(throwable, "throwable") != null && throwable.getMessage().contains("Not a file")) {
-                return createKeyFromErrorMessage(throwable.getMessage());
+            ErrorMessage error = errorMessage(throwable);
+            if (error != null && error.errorCode() == ErrorMessage.NOT_A_FILE) {
+                return createKeyFromErrorMessage(error);
             }
             throw propagate(throwable);
         }
@@ -75,8 +82,31 @@ public final class EtcdFallbacks {
 
     public static final class KeyOnNonFound implements Fallback<Object> {
         public Object createOrPropagate(Throwable throwable) throws Exception {
-            if (checkNotNull(throwable, "throwable") != null && throwable.getMessage().contains("Key not found")) {
-                return createKeyFromErrorMessage(throwable.getMessage());
+            ErrorMessage error = errorMessage(throwable);
+            if (error != null && error.errorCode() == ErrorMessage.KEY_NOT_FOUND) {
+                return createKeyFromErrorMessage(error);
+            }
+            throw propagate(throwable);
+        }
+    }
+
+    public static final class KeyOnNonFoundOrEventIndexCleared implements Fallback<Object> {
+        public Object createOrPropagate(Throwable throwable) throws Exception {
+            ErrorMessage error = errorMessage(throwable);
+            if (error != null && (error.errorCode() == ErrorMessage.KEY_NOT_FOUND
+                    || error.errorCode() == ErrorMessage.EVENT_INDEX_CLEARED)) {
+                return createKeyFromErrorMessage(error);
+            }
+            throw propagate(throwable);
+        }
+    }
+
+    public static final class KeyOnNonFoundOrCompareFailed implements Fallback<Object> {
+        public Object createOrPropagate(Throwable throwable) throws Exception {
+            ErrorMessage error = errorMessage(throwable);
+            if (error != null && (error.errorCode() == ErrorMessage.KEY_NOT_FOUND
+                    || error.errorCode() == ErrorMessage.COMPARE_FAILED)) {
+                return createKeyFromErrorMessage(error);
             }
             throw propagate(throwable);
         }
@@ -84,8 +114,9 @@ public final class EtcdFallbacks {
 
     public static final class AuthStateOnNoRootUserOrAlreadyEnabled implements Fallback<Object> {
         public Object createOrPropagate(Throwable throwable) throws Exception {
-            if (checkNotNull(throwable, "throwable") != null) {
-                AuthState authState = createAuthStateFromErrorMessage(throwable.getMessage());
+            ErrorMessage error = errorMessage(throwable);
+            if (error != null && error.message() != null) {
+                AuthState authState = createAuthStateFromErrorMessage(error);
                 if (authState != null) {
                     return authState;
                 }
@@ -96,9 +127,10 @@ public final class EtcdFallbacks {
 
     public static final class KeyOnCompareFailed implements Fallback<Object> {
         public Object createOrPropagate(Throwable throwable) throws Exception {
-            if (checkNotNull(throwable, "throwable") != null && (throwable.getMessage().contains("Compare failed")
-                    || throwable.getMessage().contains("Key already exists"))) {
-                return createKeyFromErrorMessage(throwable.getMessage());
+            ErrorMessage error = errorMessage(throwable);
+            if (error != null && (error.errorCode() == ErrorMessage.COMPARE_FAILED
+                    || error.errorCode() == ErrorMessage.KEY_ALREADY_EXISTS)) {
+                return createKeyFromErrorMessage(error);
             }
             throw propagate(throwable);
         }
@@ -106,8 +138,9 @@ public final class EtcdFallbacks {
 
     public static final class RoleOnAlreadyExists implements Fallback<Object> {
         public Object createOrPropagate(Throwable throwable) throws Exception {
-            if (checkNotNull(throwable, "throwable") != null && (throwable.getMessage().contains("already exists"))) {
-                Role role = createRoleFromErrorMessage(throwable.getMessage());
+            ErrorMessage error = errorMessage(throwable);
+            if (error != null && error.message() != null) {
+                Role role = createRoleFromErrorMessage(error);
                 if (role != null) {
                     return role;
                 }
@@ -118,8 +151,9 @@ public final class EtcdFallbacks {
 
     public static final class UserOnAlreadyExists implements Fallback<Object> {
         public Object createOrPropagate(Throwable throwable) throws Exception {
-            if (checkNotNull(throwable, "throwable") != null && (throwable.getMessage().contains("already exists"))) {
-                User user = createUserFromErrorMessage(throwable.getMessage());
+            ErrorMessage error = errorMessage(throwable);
+            if (error != null && error.message() != null) {
+                User user = createUserFromErrorMessage(error);
                 if (user != null) {
                     return user;
                 }
@@ -128,6 +162,19 @@ public final class EtcdFallbacks {
         }
     }
 
+    /**
+     * The ErrorMessage attached to throwable by the error handler or, if none
+     * is attached, decoded from its message.
+     * 
+     * @param throwable
+     *            exception passed to the fallback
+     * @return ErrorMessage or null if throwable carries no etcd error
+     */
+    private static ErrorMessage errorMessage(Throwable throwable) {
+        ErrorMessage error = EtcdError.errorMessage(checkNotNull(throwable, "throwable"));
+        return error != null ? error : EtcdError.decode(throwable.getMessage());
+    }
+
     /**
      * Create a User instance from the returned Error message.
      * 
@@ -136,14 +183,21 @@ public final class EtcdFallbacks {
      * @return User instance
      */
     public static User createUserFromErrorMessage(String message) {
-        JsonElement element = PARSER.parse(message);
-        JsonObject object = element.getAsJsonObject();
-        ErrorMessage error = ErrorMessage.create(-1, object.get("message").getAsString(), null, -1);
-
-        Pattern pattern = Pattern.compile(".*User (.+) already exists.*");
-        Matcher matcher = pattern.matcher(error.message());
-        if (matcher.find() && matcher.groupCount() == 1) {
-            return User.create(matcher.group(1), null, error);
+        ErrorMessage error = EtcdError.decode(message);
+        return error != null && error.message() != null ? createUserFromErrorMessage(error) : null;
+    }
+
+    /**
+     * Create a User instance from the decoded Error message.
+     * 
+     * @param error
+     *            decoded error from etcd
+     * @return User instance or null if error is not about an existing user
+     */
+    public static User createUserFromErrorMessage(ErrorMessage error) {
+        Matcher matcher = USER_ALREADY_EXISTS.matcher(error.message());
+        if (matcher.find()) {
+            return User.create(matcher.group(1), null, ErrorMessage.create(-1, error.message(), null, -1));
         } else {
             return null;
         }
@@ -157,14 +211,21 @@ public final class EtcdFallbacks {
      * @return Role instance
      */
     public static Role createRoleFromErrorMessage(String message) {
-        JsonElement element = PARSER.parse(message);
-        JsonObject object = element.getAsJsonObject();
-        ErrorMessage error = ErrorMessage.create(-1, object.get("message").getAsString(), null, -1);
-
-        Pattern pattern = Pattern.compile(".*Role (.+) already exists.*");
-        Matcher matcher = pattern.matcher(error.message());
-        if (matcher.find() && matcher.groupCount() == 1) {
-            return Role.create(matcher.group(1), null, null, null, error);
+        ErrorMessage error = EtcdError.decode(message);
+        return error != null && error.message() != null ? createRoleFromErrorMessage(error) : null;
+    }
+
+    /**
+     * Create a Role instance from the decoded Error message.
+     * 
+     * @param error
+     *            decoded error from etcd
+     * @return Role instance or null if error is not about an existing role
+     */
+    public static Role createRoleFromErrorMessage(ErrorMessage error) {
+        Matcher matcher = ROLE_ALREADY_EXISTS.matcher(error.message());
+        if (matcher.find()) {
+            return Role.create(matcher.group(1), null, null, null, ErrorMessage.create(-1, error.message(), null, -1));
         } else {
             return null;
         }
@@ -178,14 +239,23 @@ public final class EtcdFallbacks {
      * @return Auth instance
      */
     public static AuthState createAuthStateFromErrorMessage(String message) {
-        if (message.contains("auth: No root user available")) {
-            JsonElement element = PARSER.parse(message);
-            JsonObject object = element.getAsJsonObject();
-            ErrorMessage error = ErrorMessage.create(-1, object.get("message").getAsString(), null, -1);
-            return AuthState.create(false, error);
-        } else if (message.contains("auth: already disabled")) {
+        ErrorMessage error = EtcdError.decode(message);
+        return error != null && error.message() != null ? createAuthStateFromErrorMessage(error) : null;
+    }
+
+    /**
+     * Create a Auth instance from the decoded Error message.
+     * 
+     * @param error
+     *            decoded error from etcd
+     * @return Auth instance or null if error is not about the auth state
+     */
+    public static AuthState createAuthStateFromErrorMessage(ErrorMessage error) {
+        if (error.message().contains("auth: No root user available")) {
+            return AuthState.create(false, ErrorMessage.create(-1, error.message(), null, -1));
+        } else if (error.message().contains("auth: already disabled")) {
             return AuthState.create(false, null);
-        } else if (message.contains("auth: already enabled")) {
+        } else if (error.message().contains("auth: already enabled")) {
             return AuthState.create(true, null);
         } else {
             return null;
@@ -198,13 +268,24 @@ public final class EtcdFallbacks {
      * @param message
      *            error message from etcd
      * @return Key instance
+     * @throws IllegalArgumentException
+     *             if message is not an etcd error
      */
     public static Key createKeyFromErrorMessage(String message) {
-        JsonElement element = PARSER.parse(message);
-        JsonObject object = element.getAsJsonObject();
-        ErrorMessage error = ErrorMessage.create(object.get("errorCode").getAsInt(),
-                object.get("message").getAsString(), object.get("cause").getAsString(), object.get("index").getAsInt());
-        return Key.create(null, null, null, error);
+        ErrorMessage error = EtcdError.decode(message);
+        checkArgument(error != null, "not an etcd error: %s", message);
+        return createKeyFromErrorMessage(error);
+    }
+
+    /**
+     * Create a Key instance from the decoded Error message.
+     * 
+     * @param error
+     *            decoded error from etcd
+     * @return Key instance
+     */
+    public static Key createKeyFromErrorMessage(ErrorMessage error) {
+        return Key.create(null, null, null, error, error.index());
     }
 
     /**
@@ -213,11 +294,23 @@ public final class EtcdFallbacks {
      * @param message
      *            error message from etcd
      * @return Member instance
+     * @throws IllegalArgumentException
+     *             if message is not an etcd error
      */
     public static Member createMemberFromErrorMessage(String message) {
-        JsonElement element = PARSER.parse(message);
-        JsonObject object = element.getAsJsonObject();
-        ErrorMessage error = ErrorMessage.create(-1, object.get("message").getAsString(), null, -1);
-        return Member.create(null, null, null, null, error);
+        ErrorMessage error = EtcdError.decode(message);
+        checkArgument(error != null, "not an etcd error: %s", message);
+        return createMemberFromErrorMessage(error);
+    }
+
+    /**
+     * Create a Member instance from the decoded Error message.
+     * 
+     * @param error
+     *            decoded error from etcd
+     * @return Member instance
+     */
+    public static Member createMemberFromErrorMessage(ErrorMessage error) {
+        return Member.create(null, null, null, null, ErrorMessage.create(-1, error.message(), null, -1));
     }
 }
@@ -17,6 +17,8 @@
 
 package com.cdancy.etcd.rest.features;
 
+import java.io.InputStream;
+
 import javax.inject.Named;
 import javax.ws.rs.Consumes;
 import javax.ws.rs.DELETE;
@@ -29,16 +31,24 @@ import javax.ws.rs.PathParam;
 import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.MediaType;
 
+import org.jclouds.Fallbacks.NullOnNotFoundOr404;
+import org.jclouds.http.HttpResponse;
 import org.jclouds.rest.annotations.Fallback;
 import org.jclouds.rest.annotations.FormParams;
 import org.jclouds.rest.annotations.QueryParams;
 import org.jclouds.rest.annotations.RequestFilters;
+import org.jclouds.rest.annotations.ResponseParser;
 
+import com.cdancy.etcd.rest.annotations.ExpectedErrors;
 import com.cdancy.etcd.rest.domain.keys.Key;
+import com.cdancy.etcd.rest.error.ErrorMessage;
 import com.cdancy.etcd.rest.fallbacks.EtcdFallbacks.KeyOnAlreadyExists;
 import com.cdancy.etcd.rest.fallbacks.EtcdFallbacks.KeyOnCompareFailed;
 import com.cdancy.etcd.rest.fallbacks.EtcdFallbacks.KeyOnNonFound;
+import com.cdancy.etcd.rest.fallbacks.EtcdFallbacks.KeyOnNonFoundOrCompareFailed;
+import com.cdancy.etcd.rest.fallbacks.EtcdFallbacks.KeyOnNonFoundOrEventIndexCleared;
 import com.cdancy.etcd.rest.filters.EtcdAuthentication;
+import com.cdancy.etcd.rest.parsers.KeyWithEtcdIndex;
 
 @RequestFilters(EtcdAuthentication.class)
 @Consumes(MediaType.APPLICATION_JSON)
@@ -46,115 +56,279 @@ import com.cdancy.etcd.rest.filters.EtcdAuthentication;
 public interface KeysApi {
 
     @Named("keys:create")
+    @ResponseParser(KeyWithEtcdIndex.class)
     @PUT
     @Path("/{key}")
     Key createKey(@PathParam("key") String key, @FormParam("value") String value);
 
     @Named("keys:create-with-options")
+    @ResponseParser(KeyWithEtcdIndex.class)
     @PUT
     @Path("/{key}")
     Key createKey(@PathParam("key") String key, @FormParam("value") String value, @FormParam("ttl") int seconds);
 
+    /**
+     * Reset the TTL of an existing key without changing its value. Unlike
+     * setting the key again, a refresh does not wake those waiting on it.
+     * 
+     * @param key
+     *            the key to refresh
+     * @param seconds
+     *            the new time to live of key
+     * @return Key instance or a Key whose ErrorMessage reports that key no
+     *         longer exists
+     */
+    @Named("keys:refresh")
+    @ResponseParser(KeyWithEtcdIndex.class)
+    @PUT
+    @FormParams(keys = { "refresh", "prevExist" }, values = { "true", "true" })
+    @Path("/{key}")
+    @Fallback(KeyOnNonFound.class)
+    @ExpectedErrors(ErrorMessage.KEY_NOT_FOUND)
+    Key refreshKey(@PathParam("key") String key, @FormParam("ttl") int seconds);
+
+    /**
+     * Reset the TTL of key only if it still holds prevValue, without waking
+     * those waiting on it.
+     * 
+     * @param key
+     *            the key to refresh
+     * @param prevValue
+     *            the value key must still hold
+     * @param seconds
+     *            the new time to live of key
+     * @return Key instance or a Key whose ErrorMessage reports that key no
+     *         longer exists or holds another value
+     */
+    @Named("keys:refresh-with-options")
+    @ResponseParser(KeyWithEtcdIndex.class)
+    @PUT
+    @FormParams(keys = { "refresh", "prevExist" }, values = { "true", "true" })
+    @Path("/{key}")
+    @Fallback(KeyOnNonFoundOrCompareFailed.class)
+    @ExpectedErrors({ ErrorMessage.KEY_NOT_FOUND, ErrorMessage.COMPARE_FAILED })
+    Key refreshKey(@PathParam("key") String key, @QueryParam("prevValue") String prevValue,
+            @FormParam("ttl") int seconds);
+
     @Named("keys:create-in-order")
+    @ResponseParser(KeyWithEtcdIndex.class)
     @POST
     @Path("/{key}")
     Key createInOrderKey(@PathParam("key") String key, @FormParam("value") String value);
 
     @Named("keys:create-in-order-with-options")
+    @ResponseParser(KeyWithEtcdIndex.class)
     @POST
     @Path("/{key}")
     Key createInOrderKey(@PathParam("key") String key, @FormParam("value") String value, @FormParam("ttl") int seconds);
 
     @Named("keys:list-in-order")
+    @ResponseParser(KeyWithEtcdIndex.class)
     @GET
     @QueryParams(keys = { "recursive", "sorted" }, values = { "true", "true" })
     @Path("/{key}")
     @Fallback(KeyOnNonFound.class)
+    @ExpectedErrors(ErrorMessage.KEY_NOT_FOUND)
     Key listInOrderKey(@PathParam("key") String key);
 
     @Named("keys:get")
+    @ResponseParser(KeyWithEtcdIndex.class)
     @GET
     @Path("/{key}")
     @Fallback(KeyOnNonFound.class)
+    @ExpectedErrors(ErrorMessage.KEY_NOT_FOUND)
     Key getKey(@PathParam("key") String key);
 
+    /**
+     * Get key, choosing whether the read has to go through the cluster's
+     * quorum. Without quorum the member answering may return a value slightly
+     * behind the leader, with it the value is the latest one committed.
+     * 
+     * @param key
+     *            the key to get
+     * @param quorum
+     *            whether to read through the quorum
+     * @return Key instance
+     */
+    @Named("keys:get-with-options")
+    @ResponseParser(KeyWithEtcdIndex.class)
+    @GET
+    @Path("/{key}")
+    @Fallback(KeyOnNonFound.class)
+    @ExpectedErrors(ErrorMessage.KEY_NOT_FOUND)
+    Key getKey(@PathParam("key") String key, @QueryParam("quorum") boolean quorum);
+
     @Named("keys:delete")
+    @ResponseParser(KeyWithEtcdIndex.class)
     @DELETE
     @Path("/{key}")
     @Fallback(KeyOnNonFound.class)
+    @ExpectedErrors(ErrorMessage.KEY_NOT_FOUND)
     Key deleteKey(@PathParam("key") String key);
 
     @Named("keys:wait")
+    @ResponseParser(KeyWithEtcdIndex.class)
     @GET
     @Path("/{key}")
     @QueryParams(keys = { "wait" }, values = { "true" })
     @Fallback(KeyOnNonFound.class)
+    @ExpectedErrors(ErrorMessage.KEY_NOT_FOUND)
     Key waitKey(@PathParam("key") String key);
 
     @Named("keys:wait-with-options")
+    @ResponseParser(KeyWithEtcdIndex.class)
     @GET
     @Path("/{key}")
     @QueryParams(keys = { "wait" }, values = { "true" })
     @Fallback(KeyOnNonFound.class)
+    @ExpectedErrors(ErrorMessage.KEY_NOT_FOUND)
     Key waitKey(@PathParam("key") String key, @QueryParam("waitIndex") int waitIndex);
 
+    /**
+     * Wait for the next change to key, or anything beneath it when recursive,
+     * starting at waitIndex. An outdated waitIndex hands back a Key whose
+     * ErrorMessage carries the current etcd index.
+     * 
+     * @param key
+     *            the key or directory to wait on
+     * @param recursive
+     *            whether to also wait on all keys beneath key
+     * @param waitIndex
+     *            the first index to return events from
+     * @return the first change at or after waitIndex
+     */
+    @Named("keys:wait-recursive")
+    @ResponseParser(KeyWithEtcdIndex.class)
+    @GET
+    @Path("/{key}")
+    @QueryParams(keys = { "wait" }, values = { "true" })
+    @Fallback(KeyOnNonFoundOrEventIndexCleared.class)
+    @ExpectedErrors({ ErrorMessage.KEY_NOT_FOUND, ErrorMessage.EVENT_INDEX_CLEARED })
+    Key waitKey(@PathParam("key") String key, @QueryParam("recursive") boolean recursive,
+            @QueryParam("waitIndex") int waitIndex);
+
+    /**
+     * Open a single response on which etcd writes every change to key, or
+     * anything beneath it when recursive, starting at waitIndex. Changes are
+     * written one JSON object after another for as long as the response is
+     * kept open. See {@link com.cdancy.etcd.rest.parsers.KeyStreamReader}.
+     * 
+     * @param key
+     *            the key or directory to wait on
+     * @param recursive
+     *            whether to also wait on all keys beneath key
+     * @param waitIndex
+     *            the first index to return events from
+     * @return the still open response body
+     */
+    @Named("keys:wait-stream")
+    @GET
+    @Path("/{key}")
+    @QueryParams(keys = { "wait", "stream" }, values = { "true", "true" })
+    InputStream streamKey(@PathParam("key") String key, @QueryParam("recursive") boolean recursive,
+            @QueryParam("waitIndex") int waitIndex);
+
     @Named("keys:compare-and-delete-value")
+    @ResponseParser(KeyWithEtcdIndex.class)
     @DELETE
     @Path("/{key}")
-    @Fallback(KeyOnCompareFailed.class)
+    @Fallback(KeyOnNonFoundOrCompareFailed.class)
+    @ExpectedErrors({ ErrorMessage.KEY_NOT_FOUND, ErrorMessage.COMPARE_FAILED })
     Key compareAndDeleteKey(@PathParam("key") String key, @QueryParam("prevValue") String prevValue);
 
     @Named("keys:compare-and-delete-index")
+    @ResponseParser(KeyWithEtcdIndex.class)
     @DELETE
     @Path("/{key}")
-    @Fallback(KeyOnCompareFailed.class)
+    @Fallback(KeyOnNonFoundOrCompareFailed.class)
+    @ExpectedErrors({ ErrorMessage.KEY_NOT_FOUND, ErrorMessage.COMPARE_FAILED })
     Key compareAndDeleteKey(@PathParam("key") String key, @QueryParam("prevIndex") int prevIndex);
 
     @Named("keys:compare-and-swap-value")
+    @ResponseParser(KeyWithEtcdIndex.class)
     @PUT
     @Path("/{key}")
-    @Fallback(KeyOnCompareFailed.class)
+    @Fallback(KeyOnNonFoundOrCompareFailed.class)
+    @ExpectedErrors({ ErrorMessage.KEY_NOT_FOUND, ErrorMessage.COMPARE_FAILED })
     Key compareAndSwapKeyValue(@PathParam("key") String key, @QueryParam("prevValue") String prevValue,
             @FormParam("value") String value);
 
     @Named("keys:compare-and-swap-index")
+    @ResponseParser(KeyWithEtcdIndex.class)
     @PUT
     @Path("/{key}")
-    @Fallback(KeyOnCompareFailed.class)
+    @Fallback(KeyOnNonFoundOrCompareFailed.class)
+    @ExpectedErrors({ ErrorMessage.KEY_NOT_FOUND, ErrorMessage.COMPARE_FAILED })
     Key compareAndSwapKeyIndex(@PathParam("key") String key, @QueryParam("prevIndex") int prevIndex,
             @FormParam("value") String value);
 
     @Named("keys:compare-and-swap-exist")
+    @ResponseParser(KeyWithEtcdIndex.class)
     @PUT
     @Path("/{key}")
     @Fallback(KeyOnCompareFailed.class)
+    @ExpectedErrors({ ErrorMessage.COMPARE_FAILED, ErrorMessage.KEY_ALREADY_EXISTS })
     Key compareAndSwapKeyExist(@PathParam("key") String key, @QueryParam("prevExist") boolean prevExist,
             @FormParam("value") String value);
 
+    @Named("keys:compare-and-swap-exist-with-options")
+    @ResponseParser(KeyWithEtcdIndex.class)
+    @PUT
+    @Path("/{key}")
+    @Fallback(KeyOnCompareFailed.class)
+    @ExpectedErrors({ ErrorMessage.COMPARE_FAILED, ErrorMessage.KEY_ALREADY_EXISTS })
+    Key compareAndSwapKeyExist(@PathParam("key") String key, @QueryParam("prevExist") boolean prevExist,
+            @FormParam("value") String value, @FormParam("ttl") int seconds);
+
     @Named("keys:dir-create")
+    @ResponseParser(KeyWithEtcdIndex.class)
     @PUT
     @FormParams(keys = { "dir" }, values = { "true" })
     @Path("/{dir}")
     @Fallback(KeyOnAlreadyExists.class)
+    @ExpectedErrors(ErrorMessage.NOT_A_FILE)
     Key createDir(@PathParam("dir") String dir);
 
     @Named("keys:dir-create-with-options")
+    @ResponseParser(KeyWithEtcdIndex.class)
     @PUT
     @FormParams(keys = { "dir" }, values = { "true" })
     @Path("/{dir}")
     @Fallback(KeyOnAlreadyExists.class)
+    @ExpectedErrors(ErrorMessage.NOT_A_FILE)
     Key createDir(@PathParam("dir") String dir, @FormParam("ttl") int seconds);
 
     @Named("keys:dir-list")
+    @ResponseParser(KeyWithEtcdIndex.class)
     @GET
     @Path("/{dir}/")
     @Fallback(KeyOnNonFound.class)
+    @ExpectedErrors(ErrorMessage.KEY_NOT_FOUND)
     Key listDir(@PathParam("dir") String dir, @QueryParam("recursive") boolean recursive);
 
+    /**
+     * List dir without parsing the response, so that it can be read one node
+     * at a time with {@link com.cdancy.etcd.rest.parsers.NodeStreamReader}
+     * rather than being held in memory whole.
+     * 
+     * @param dir
+     *            the directory to list
+     * @param recursive
+     *            whether to also list everything beneath dir
+     * @return the still open response or null if dir does not exist
+     */
+    @Named("keys:dir-list-stream")
+    @GET
+    @Path("/{dir}/")
+    @Fallback(NullOnNotFoundOr404.class)
+    HttpResponse streamDir(@PathParam("dir") String dir, @QueryParam("recursive") boolean recursive);
+
     @Named("keys:dir-delete")
+    @ResponseParser(KeyWithEtcdIndex.class)
     @DELETE
     @Path("/{dir}/")
     @QueryParams(keys = { "recursive" }, values = { "true" })
     @Fallback(KeyOnNonFound.class)
+    @ExpectedErrors(ErrorMessage.KEY_NOT_FOUND)
     Key deleteDir(@PathParam("dir") String dir);
 }
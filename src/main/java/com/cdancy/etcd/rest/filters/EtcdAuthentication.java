@@ -20,6 +20,8 @@ package com.cdancy.etcd.rest.filters;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.io.BaseEncoding.base64;
 
+import java.util.regex.Pattern;
+
 import javax.inject.Inject;
 import javax.inject.Singleton;
 
@@ -29,14 +31,24 @@ import org.jclouds.http.HttpRequest;
 import org.jclouds.http.HttpRequestFilter;
 import org.jclouds.location.Provider;
 
+import com.google.common.base.Charsets;
+import com.google.common.base.Objects;
 import com.google.common.base.Supplier;
 import com.google.common.net.HttpHeaders;
 
+/**
+ * Adds the Basic Authorization header to each request. The header value is
+ * computed once per credential and cached; the supplier is still consulted on
+ * every request so that rotated credentials take effect on the next call.
+ */
 @Singleton
 public class EtcdAuthentication implements HttpRequestFilter {
     private final Supplier<Credentials> creds;
 
-    private static final String REGEX = "^([A-Za-z0-9+/]{4})*([A-Za-z0-9+/]{4}|[A-Za-z0-9+/]{3}=|[A-Za-z0-9+/]{2}==)$";
+    private static final Pattern BASE64 = Pattern
+            .compile("^([A-Za-z0-9+/]{4})*([A-Za-z0-9+/]{4}|[A-Za-z0-9+/]{3}=|[A-Za-z0-9+/]{2}==)$");
+
+    private volatile Authorization authorization = new Authorization(null, null);
 
     @Inject
     EtcdAuthentication(@Provider Supplier<Credentials> creds) {
@@ -46,29 +58,61 @@ public class EtcdAuthentication implements HttpRequestFilter {
     @Override
     public HttpRequest filter(HttpRequest request) throws HttpException {
         Credentials currentCreds = checkNotNull(creds.get(), "credential supplier returned null");
-        if (currentCreds.credential != null && currentCreds.credential.trim().length() > 0) {
+        Authorization current = authorization;
+        if (!current.isFor(currentCreds.credential)) {
+            current = new Authorization(currentCreds.credential, header(currentCreds.credential));
+            authorization = current;
+        }
+        if (current.header == null) {
+            return request;
+        }
+        return request.toBuilder().replaceHeader(HttpHeaders.AUTHORIZATION, current.header).build();
+    }
+
+    /**
+     * Compute the Authorization header for credential.
+     * 
+     * @param credential
+     *            credential as returned by the supplier
+     * @return header value or null if credential is empty
+     */
+    private static String header(String credential) {
+        if (credential != null && credential.trim().length() > 0) {
             /*
              * client can pass in credential string in 1 of 2 ways: 1.) As colon
              * delimited username and password: admin:password 2.) As base64
              * encoded value of colon delimited username and password:
              * YWRtaW46cGFzc3dvcmQ=
              */
-            String foundCredential = currentCreds.credential;
+            String foundCredential = credential;
             if (foundCredential.contains(":")) {
-                foundCredential = base64().encode(foundCredential.getBytes());
+                foundCredential = base64().encode(foundCredential.getBytes(Charsets.UTF_8));
             }
 
-            if (isBase64Encoded(foundCredential)) {
-                return request.toBuilder().addHeader(HttpHeaders.AUTHORIZATION, "Basic " + foundCredential).build();
+            if (BASE64.matcher(foundCredential).matches()) {
+                return "Basic " + foundCredential;
             } else {
                 throw new IllegalArgumentException("Credential is not in base64 format: credential=" + foundCredential);
             }
         } else {
-            return request.toBuilder().build();
+            return null;
         }
     }
 
-    private boolean isBase64Encoded(String possiblyEncodedString) {
-        return possiblyEncodedString.matches(REGEX) ? true : false;
+    /**
+     * Header value cached together with the credential it was computed from.
+     */
+    private static final class Authorization {
+        private final String credential;
+        private final String header;
+
+        Authorization(String credential, String header) {
+            this.credential = credential;
+            this.header = header;
+        }
+
+        boolean isFor(String otherCredential) {
+            return Objects.equal(credential, otherCredential);
+        }
     }
 }
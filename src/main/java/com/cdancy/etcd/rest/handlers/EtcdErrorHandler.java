@@ -20,67 +20,86 @@ package com.cdancy.etcd.rest.handlers;
 import static org.jclouds.util.Closeables2.closeQuietly;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import javax.annotation.Resource;
 
 import org.jclouds.http.HttpCommand;
 import org.jclouds.http.HttpErrorHandler;
+import org.jclouds.http.HttpRequest;
 import org.jclouds.http.HttpResponse;
 import org.jclouds.http.HttpResponseException;
 import org.jclouds.logging.Logger;
 import org.jclouds.rest.ResourceAlreadyExistsException;
 import org.jclouds.rest.ResourceNotFoundException;
-import org.jclouds.util.Strings2;
+import org.jclouds.rest.internal.GeneratedHttpRequest;
 
+import com.cdancy.etcd.rest.annotations.ExpectedErrors;
+import com.cdancy.etcd.rest.error.ErrorMessage;
+import com.cdancy.etcd.rest.error.EtcdError;
+import com.google.common.base.Charsets;
 import com.google.common.base.Throwables;
+import com.google.common.io.ByteStreams;
 
 /**
- * Handle errors and propagate exception.
+ * Handle errors and propagate exception. Errors the called method expects, see
+ * {@link ExpectedErrors}, are instead left for its response parser.
+ * 
+ * <p>
+ * Expected errors are recognised by their errorCode alone, leaving the single
+ * decode of the body to the response parser. Any other error body is decoded
+ * once and the resulting {@link ErrorMessage} is attached to the thrown
+ * exception as an {@link EtcdError} cause.
+ * </p>
  */
 public class EtcdErrorHandler implements HttpErrorHandler {
     @Resource
     private Logger logger = Logger.NULL;
 
+    private static final Pattern ERROR_CODE = Pattern.compile("\"errorCode\"\\s*:\\s*(\\d+)");
+
     @Override
     public void handleError(HttpCommand command, HttpResponse response) {
 
         String message = parseMessage(response);
+        if (message != null && isExpected(command, message)) {
+            // leave the response to be decoded into the result of the call
+            response.setPayload(message);
+            return;
+        }
+        ErrorMessage error = EtcdError.decode(message);
         Exception exception = null;
         try {
 
             message = message != null ? message
                     : String.format("%s -> %s", command.getCurrentRequest().getRequestLine(), response.getStatusLine());
+            EtcdError cause = error != null ? new EtcdError(error) : null;
+            int errorCode = error != null ? error.errorCode() : -1;
 
             switch (response.getStatusCode()) {
             case 400:
-                exception = new IllegalArgumentException(message);
+                exception = new IllegalArgumentException(message, cause);
                 break;
             case 403:
-                if (command.getCurrentRequest().getMethod().equals("PUT")) {
-                    if (command.getCurrentRequest().getRequestLine().contains("/keys/")) {
-                        if (message.contains("Not a file")) {
-                            exception = new ResourceAlreadyExistsException(message);
-                            break;
-                        }
-                    }
+                if (errorCode == ErrorMessage.NOT_A_FILE) {
+                    exception = new ResourceAlreadyExistsException(message, cause);
+                    break;
                 }
             case 404:
-                exception = new ResourceNotFoundException(message);
+                exception = new ResourceNotFoundException(message, cause);
                 break;
             case 409:
-                exception = new ResourceAlreadyExistsException(message);
+                exception = new ResourceAlreadyExistsException(message, cause);
                 break;
             case 412:
-                if (command.getCurrentRequest().getMethod().matches("DELETE|PUT")) {
-                    if (command.getCurrentRequest().getRequestLine().contains("/keys/")) {
-                        if (message.contains("Compare failed") || message.contains("Key already exists")) {
-                            exception = new IllegalArgumentException(message);
-                            break;
-                        }
-                    }
+                if (errorCode == ErrorMessage.COMPARE_FAILED || errorCode == ErrorMessage.KEY_ALREADY_EXISTS) {
+                    exception = new IllegalArgumentException(message, cause);
+                    break;
                 }
             default:
-                exception = new HttpResponseException(command, response, message);
+                exception = new HttpResponseException(command, response, message, cause);
             }
         } catch (Exception e) {
             exception = new HttpResponseException(command, response, e);
@@ -90,14 +109,54 @@ public class EtcdErrorHandler implements HttpErrorHandler {
         }
     }
 
+    /**
+     * Whether message carries an etcd error code the called method declares
+     * it expects through {@link ExpectedErrors}. The annotation is checked
+     * before the message is looked at, and only the errorCode is read from it.
+     * 
+     * @param command
+     *            the command which failed
+     * @param message
+     *            body of the error response
+     * @return true if the error is an expected outcome of the call
+     */
+    private static boolean isExpected(HttpCommand command, String message) {
+        HttpRequest request = command.getCurrentRequest();
+        if (!(request instanceof GeneratedHttpRequest)) {
+            return false;
+        }
+        ExpectedErrors expected = ((GeneratedHttpRequest) request).getInvocation().getInvokable()
+                .getAnnotation(ExpectedErrors.class);
+        if (expected == null) {
+            return false;
+        }
+        Matcher matcher = ERROR_CODE.matcher(message);
+        if (!matcher.find()) {
+            return false;
+        }
+        int errorCode = Integer.parseInt(matcher.group(1));
+        for (int code : expected.value()) {
+            if (code == errorCode) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     private String parseMessage(HttpResponse response) {
         if (response.getPayload() == null) {
             return null;
         }
+        InputStream input = null;
         try {
-            return Strings2.toStringAndClose(response.getPayload().openStream());
+            // error bodies are small, skip the reader and buffers of a
+            // character stream and decode the bytes in one go
+            input = response.getPayload().openStream();
+            return new String(ByteStreams.toByteArray(input), Charsets.UTF_8);
         } catch (IOException e) {
             throw Throwables.propagate(e);
+        } finally {
+            closeQuietly(input);
         }
     }
 }
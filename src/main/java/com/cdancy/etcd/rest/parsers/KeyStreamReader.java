@@ -0,0 +1,165 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cdancy.etcd.rest.parsers;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.cdancy.etcd.rest.domain.keys.Key;
+import com.cdancy.etcd.rest.domain.keys.Node;
+import com.cdancy.etcd.rest.error.ErrorMessage;
+import com.google.common.base.Charsets;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+/**
+ * Reads the Key objects etcd writes one after another on a streaming watch,
+ * handing each one back as soon as it has been fully received.
+ */
+public class KeyStreamReader implements Closeable {
+
+    private final JsonReader reader;
+
+    public KeyStreamReader(InputStream stream) {
+        this.reader = new JsonReader(new InputStreamReader(stream, Charsets.UTF_8));
+        this.reader.setLenient(true);
+    }
+
+    /**
+     * Block until the next Key has been received.
+     * 
+     * @return the next Key or null once the stream has ended
+     * @throws IOException
+     *             if the stream could not be read
+     */
+    public Key next() throws IOException {
+        if (reader.peek() == JsonToken.END_DOCUMENT) {
+            return null;
+        }
+        return readKey(reader);
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+
+    /**
+     * Read a Key, or the error etcd handed back in its place, from reader.
+     * 
+     * @param reader
+     *            reader positioned at the start of a Key object
+     * @return Key instance
+     * @throws IOException
+     *             if the Key could not be read
+     */
+    public static Key readKey(JsonReader reader) throws IOException {
+        String action = null;
+        Node node = null;
+        Node prevNode = null;
+        int errorCode = -1;
+        String message = null;
+        String cause = null;
+        int index = -1;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.skipValue();
+            } else if (name.equals("action")) {
+                action = reader.nextString();
+            } else if (name.equals("node")) {
+                node = readNode(reader);
+            } else if (name.equals("prevNode")) {
+                prevNode = readNode(reader);
+            } else if (name.equals("errorCode")) {
+                errorCode = reader.nextInt();
+            } else if (name.equals("message")) {
+                message = reader.nextString();
+            } else if (name.equals("cause")) {
+                cause = reader.nextString();
+            } else if (name.equals("index")) {
+                index = reader.nextInt();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        if (message != null) {
+            ErrorMessage error = ErrorMessage.create(errorCode, message, cause, index);
+            return Key.create(null, null, null, error, index);
+        }
+        return Key.create(action, node, prevNode, null);
+    }
+
+    /**
+     * Read a Node, including all of its children, from reader.
+     * 
+     * @param reader
+     *            reader positioned at the start of a Node object
+     * @return Node instance
+     * @throws IOException
+     *             if the Node could not be read
+     */
+    public static Node readNode(JsonReader reader) throws IOException {
+        int createdIndex = 0;
+        boolean dir = false;
+        List<Node> nodes = null;
+        String expiration = null;
+        String key = null;
+        int modifiedIndex = 0;
+        int ttl = 0;
+        String value = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.skipValue();
+            } else if (name.equals("createdIndex")) {
+                createdIndex = reader.nextInt();
+            } else if (name.equals("dir")) {
+                dir = reader.nextBoolean();
+            } else if (name.equals("nodes")) {
+                nodes = new ArrayList<Node>();
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    nodes.add(readNode(reader));
+                }
+                reader.endArray();
+            } else if (name.equals("expiration")) {
+                expiration = reader.nextString();
+            } else if (name.equals("key")) {
+                key = reader.nextString();
+            } else if (name.equals("modifiedIndex")) {
+                modifiedIndex = reader.nextInt();
+            } else if (name.equals("ttl")) {
+                ttl = reader.nextInt();
+            } else if (name.equals("value")) {
+                value = reader.nextString();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return Node.create(createdIndex, dir, nodes, expiration, key, modifiedIndex, ttl, value);
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cdancy.etcd.rest.parsers;
+
+import static org.jclouds.util.Closeables2.closeQuietly;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.jclouds.http.HttpResponse;
+import org.jclouds.http.functions.ParseJson;
+import org.jclouds.io.Payload;
+
+import com.cdancy.etcd.rest.domain.keys.Key;
+import com.google.common.base.Charsets;
+import com.google.common.base.Function;
+import com.google.common.base.Throwables;
+import com.google.gson.stream.JsonReader;
+
+/**
+ * Parses a Key and attaches the X-Etcd-Index and X-Raft-Term headers etcd
+ * hands back with every keys response. Error responses let through by
+ * {@link com.cdancy.etcd.rest.annotations.ExpectedErrors} are decoded in the
+ * same single pass into a Key carrying their ErrorMessage.
+ */
+@Singleton
+public class KeyWithEtcdIndex implements Function<HttpResponse, Key> {
+
+    public static final String ETCD_INDEX_HEADER = "X-Etcd-Index";
+    public static final String RAFT_TERM_HEADER = "X-Raft-Term";
+
+    private final ParseJson<Key> parser;
+
+    @Inject
+    KeyWithEtcdIndex(ParseJson<Key> parser) {
+        this.parser = parser;
+    }
+
+    @Override
+    public Key apply(HttpResponse response) {
+        Key key = response.getStatusCode() >= 300 ? parseError(response) : parser.apply(response);
+        Integer etcdIndex = etcdIndex(response);
+        Integer raftTerm = intHeader(response, RAFT_TERM_HEADER);
+        if (key == null || (etcdIndex == null && raftTerm == null)) {
+            return key;
+        }
+        return Key.create(key.action(), key.node(), key.prevNode(), key.errorMessage(), etcdIndex, raftTerm);
+    }
+
+    /**
+     * Decode the body of an expected error response. The error handler has
+     * already read the body into a String, which is read as is rather than
+     * being encoded and decoded again through a stream.
+     * 
+     * @param response
+     *            error response from etcd
+     * @return Key holding the ErrorMessage
+     */
+    private static Key parseError(HttpResponse response) {
+        Payload payload = response.getPayload();
+        JsonReader reader = null;
+        try {
+            reader = new JsonReader(payload.getRawContent() instanceof String
+                    ? new StringReader((String) payload.getRawContent())
+                    : new InputStreamReader(payload.openStream(), Charsets.UTF_8));
+            return KeyStreamReader.readKey(reader);
+        } catch (IOException e) {
+            throw Throwables.propagate(e);
+        } finally {
+            closeQuietly(reader);
+            closeQuietly(payload);
+        }
+    }
+
+    /**
+     * Get the X-Etcd-Index from the passed response.
+     * 
+     * @param response
+     *            response from etcd
+     * @return value of the X-Etcd-Index header or null if not present
+     */
+    public static Integer etcdIndex(HttpResponse response) {
+        return intHeader(response, ETCD_INDEX_HEADER);
+    }
+
+    private static Integer intHeader(HttpResponse response, String header) {
+        String value = response.getFirstHeaderOrNull(header);
+        if (value == null) {
+            return null;
+        }
+        try {
+            return Integer.valueOf(value.trim());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cdancy.etcd.rest.parsers;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import org.jclouds.http.HttpResponse;
+
+import com.cdancy.etcd.rest.domain.keys.Node;
+import com.google.common.base.Charsets;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+/**
+ * Reads a, possibly recursive, directory listing one node at a time straight
+ * off the response body. Only the directories leading to the node being read
+ * are held in memory, so the memory used follows the depth of the tree rather
+ * than the number of keys in it.
+ * 
+ * <p>
+ * Every node is handed back once its JSON object has been fully read, meaning
+ * a directory comes after all of its children and never carries them itself.
+ * </p>
+ */
+public class NodeStreamReader implements Closeable {
+
+    private final JsonReader reader;
+    private final Integer etcdIndex;
+    private final Deque<Level> levels = new ArrayDeque<Level>();
+    private boolean started;
+    private boolean finished;
+
+    public NodeStreamReader(InputStream stream) {
+        this(stream, null);
+    }
+
+    /**
+     * Read the listing held in response, as returned by
+     * {@link com.cdancy.etcd.rest.features.KeysApi#streamDir(String, boolean)}.
+     * 
+     * @param response
+     *            the still open listing response
+     * @throws IOException
+     *             if the response body could not be opened
+     */
+    public NodeStreamReader(HttpResponse response) throws IOException {
+        this(checkNotNull(response, "response").getPayload().openStream(), KeyWithEtcdIndex.etcdIndex(response));
+    }
+
+    private NodeStreamReader(InputStream stream, Integer etcdIndex) {
+        this.reader = new JsonReader(new InputStreamReader(checkNotNull(stream, "stream"), Charsets.UTF_8));
+        this.etcdIndex = etcdIndex;
+    }
+
+    /**
+     * The X-Etcd-Index the listing was taken at, if known.
+     * 
+     * @return etcd index or null
+     */
+    public Integer etcdIndex() {
+        return etcdIndex;
+    }
+
+    /**
+     * Read the next node of the listing.
+     * 
+     * @return the next Node, without children, or null once the listing has
+     *         been fully read
+     * @throws IOException
+     *             if the listing could not be read
+     */
+    public Node next() throws IOException {
+        while (true) {
+            Level level = levels.peek();
+            if (level == null) {
+                if (!readKeyField()) {
+                    return null;
+                }
+            } else if (level.inNodes) {
+                if (reader.hasNext()) {
+                    reader.beginObject();
+                    levels.push(new Level());
+                } else {
+                    reader.endArray();
+                    level.inNodes = false;
+                }
+            } else if (reader.hasNext()) {
+                level.readField(reader);
+            } else {
+                reader.endObject();
+                levels.pop();
+                return level.toNode();
+            }
+        }
+    }
+
+    /**
+     * Hand every remaining node of the listing to visitor.
+     * 
+     * @param visitor
+     *            the visitor to call
+     * @return the number of nodes visited
+     * @throws IOException
+     *             if the listing could not be read
+     */
+    public int accept(NodeVisitor visitor) throws IOException {
+        int visited = 0;
+        for (Node node = next(); node != null; node = next()) {
+            visited++;
+            if (!visitor.visit(node)) {
+                break;
+            }
+        }
+        return visited;
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+
+    /**
+     * Step through the outer Key object until its node is reached.
+     * 
+     * @return false once the listing has ended
+     */
+    private boolean readKeyField() throws IOException {
+        if (finished) {
+            return false;
+        }
+        if (!started) {
+            started = true;
+            if (reader.peek() == JsonToken.END_DOCUMENT) {
+                finished = true;
+                return false;
+            }
+            reader.beginObject();
+        }
+        if (!reader.hasNext()) {
+            reader.endObject();
+            finished = true;
+            return false;
+        }
+        String name = reader.nextName();
+        if (name.equals("node") && reader.peek() == JsonToken.BEGIN_OBJECT) {
+            reader.beginObject();
+            levels.push(new Level());
+        } else {
+            reader.skipValue();
+        }
+        return true;
+    }
+
+    /**
+     * The fields read so far of a node whose JSON object is still open.
+     */
+    private static final class Level {
+        private int createdIndex;
+        private boolean dir;
+        private String expiration;
+        private String key;
+        private int modifiedIndex;
+        private int ttl;
+        private String value;
+        private boolean inNodes;
+
+        void readField(JsonReader reader) throws IOException {
+            String name = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.skipValue();
+            } else if (name.equals("nodes")) {
+                reader.beginArray();
+                inNodes = true;
+            } else if (name.equals("createdIndex")) {
+                createdIndex = reader.nextInt();
+            } else if (name.equals("dir")) {
+                dir = reader.nextBoolean();
+            } else if (name.equals("expiration")) {
+                expiration = reader.nextString();
+            } else if (name.equals("key")) {
+                key = reader.nextString();
+            } else if (name.equals("modifiedIndex")) {
+                modifiedIndex = reader.nextInt();
+            } else if (name.equals("ttl")) {
+                ttl = reader.nextInt();
+            } else if (name.equals("value")) {
+                value = reader.nextString();
+            } else {
+                reader.skipValue();
+            }
+        }
+
+        Node toNode() {
+            return Node.create(createdIndex, dir, null, expiration, key, modifiedIndex, ttl, value);
+        }
+    }
+}
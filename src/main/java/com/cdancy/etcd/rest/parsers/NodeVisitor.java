@@ -0,0 +1,37 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cdancy.etcd.rest.parsers;
+
+import com.cdancy.etcd.rest.domain.keys.Node;
+
+/**
+ * Receives the nodes of a listing one at a time as they are read off the
+ * wire. See {@link NodeStreamReader}.
+ */
+public interface NodeVisitor {
+
+    /**
+     * Called once for every node of the listing. Directories are handed over
+     * after all of their children, and without them.
+     * 
+     * @param node
+     *            the node just read
+     * @return false to stop reading the listing
+     */
+    boolean visit(Node node);
+}
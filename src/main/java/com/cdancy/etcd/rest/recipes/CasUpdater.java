@@ -0,0 +1,272 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cdancy.etcd.rest.recipes;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.cdancy.etcd.rest.domain.keys.Key;
+import com.cdancy.etcd.rest.error.ErrorMessage;
+import com.cdancy.etcd.rest.features.KeysApi;
+import com.google.common.base.Function;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Applies read-modify-write updates to keys with compare-and-swap, retrying
+ * those that lose to a concurrent change. Retries back off exponentially with
+ * full jitter, and the backoff of a key starts out higher the more often its
+ * updates have been conflicting lately, so hot keys are tried less often
+ * instead of being hammered. Updates give up after maxAttempts, and conflict
+ * counts are kept per key, see {@link #stats(String)}.
+ */
+public class CasUpdater {
+
+    public static final int DEFAULT_MAX_ATTEMPTS = 10;
+    public static final long DEFAULT_INITIAL_BACKOFF_MILLIS = 5;
+    public static final long DEFAULT_MAX_BACKOFF_MILLIS = 1000;
+    public static final int DEFAULT_TRACKED_KEYS = 1024;
+
+    /**
+     * Weight given to the latest update when averaging how many conflicts
+     * updates of a key run into.
+     */
+    static final double CONTENTION_WEIGHT = 0.2;
+
+    private final KeysApi keysApi;
+    private final int maxAttempts;
+    private final long initialBackoffMillis;
+    private final long maxBackoffMillis;
+    private final Random random = new Random();
+    private final Map<String, Contention> contention;
+
+    CasUpdater(KeysApi keysApi, int maxAttempts, long initialBackoffMillis, long maxBackoffMillis,
+            final int trackedKeys) {
+        checkArgument(maxAttempts > 0, "maxAttempts must be positive");
+        checkArgument(initialBackoffMillis > 0, "initialBackoffMillis must be positive");
+        checkArgument(maxBackoffMillis >= initialBackoffMillis, "maxBackoffMillis must be at least initialBackoffMillis");
+        checkArgument(trackedKeys > 0, "trackedKeys must be positive");
+        this.keysApi = checkNotNull(keysApi, "keysApi");
+        this.maxAttempts = maxAttempts;
+        this.initialBackoffMillis = initialBackoffMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+        this.contention = new LinkedHashMap<String, Contention>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Contention> eldest) {
+                return size() > trackedKeys;
+            }
+        };
+    }
+
+    /**
+     * Set key to what function makes of its current value, retrying should
+     * the key change in between. function may be called several times and
+     * is handed null if key does not exist; returning null leaves key as it
+     * is.
+     * 
+     * @param key
+     *            the key to update
+     * @param function
+     *            computes the new value from the current one
+     * @return Key as updated; the Key as read if function returned null; or,
+     *         once out of attempts, the Key of the last failed
+     *         compare-and-swap
+     */
+    public Key update(String key, Function<String, String> function) {
+        checkNotNull(function, "function");
+        Contention stats = contention(checkNotNull(key, "key"));
+        stats.updates.incrementAndGet();
+        Key result = null;
+        int conflicts = 0;
+        for (int attempt = 0; attempt < maxAttempts; attempt++) {
+            if (attempt > 0) {
+                backoff(stats, attempt);
+            }
+            Key current = keysApi.getKey(key);
+            boolean exists = current.errorMessage() == null;
+            if (!exists && current.errorMessage().errorCode() != ErrorMessage.KEY_NOT_FOUND) {
+                return current;
+            }
+            String value = function.apply(exists ? current.node().value() : null);
+            if (value == null) {
+                return current;
+            }
+            stats.attempts.incrementAndGet();
+            result = exists ? keysApi.compareAndSwapKeyIndex(key, current.node().modifiedIndex(), value)
+                    : keysApi.compareAndSwapKeyExist(key, false, value);
+            if (!isConflict(result.errorMessage())) {
+                stats.settle(conflicts);
+                return result;
+            }
+            conflicts++;
+            stats.conflicts.incrementAndGet();
+        }
+        stats.exhausted.incrementAndGet();
+        stats.settle(conflicts);
+        return result;
+    }
+
+    /**
+     * Conflict counts of key since it was first updated.
+     * 
+     * @param key
+     *            the key
+     * @return counts of key, all 0 if it is not tracked
+     */
+    public ConflictStats stats(String key) {
+        Contention stats;
+        synchronized (contention) {
+            stats = contention.get(key);
+        }
+        return stats != null ? stats.snapshot() : ConflictStats.create(0, 0, 0, 0);
+    }
+
+    /**
+     * Conflict counts of every tracked key. Only the most recently updated
+     * keys are tracked.
+     * 
+     * @return counts of each tracked key
+     */
+    public Map<String, ConflictStats> stats() {
+        ImmutableMap.Builder<String, ConflictStats> snapshot = ImmutableMap.builder();
+        synchronized (contention) {
+            for (Map.Entry<String, Contention> entry : contention.entrySet()) {
+                snapshot.put(entry.getKey(), entry.getValue().snapshot());
+            }
+        }
+        return snapshot.build();
+    }
+
+    private Contention contention(String key) {
+        synchronized (contention) {
+            Contention stats = contention.get(key);
+            if (stats == null) {
+                stats = new Contention();
+                contention.put(key, stats);
+            }
+            return stats;
+        }
+    }
+
+    /**
+     * Sleep before the given retry. The ceiling doubles with every retry and
+     * starts higher the more contended key has been, and the actual pause is
+     * drawn at random below it so that those retrying spread out.
+     */
+    private void backoff(Contention stats, int attempt) {
+        int exponent = Math.min(30, attempt - 1 + (int) Math.round(stats.level));
+        long ceiling = Math.min(maxBackoffMillis, initialBackoffMillis << exponent);
+        long pause = (long) (random.nextDouble() * ceiling) + 1;
+        try {
+            TimeUnit.MILLISECONDS.sleep(pause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw Throwables.propagate(e);
+        }
+    }
+
+    private static boolean isConflict(ErrorMessage error) {
+        return error != null && (error.errorCode() == ErrorMessage.COMPARE_FAILED
+                || error.errorCode() == ErrorMessage.KEY_ALREADY_EXISTS
+                || error.errorCode() == ErrorMessage.KEY_NOT_FOUND);
+    }
+
+    /**
+     * Counts kept for a single key.
+     */
+    private static final class Contention {
+        private final AtomicLong updates = new AtomicLong();
+        private final AtomicLong attempts = new AtomicLong();
+        private final AtomicLong conflicts = new AtomicLong();
+        private final AtomicLong exhausted = new AtomicLong();
+        private volatile double level;
+
+        /**
+         * Fold the conflicts one update ran into into the running average.
+         */
+        synchronized void settle(int conflicts) {
+            level = CONTENTION_WEIGHT * conflicts + (1 - CONTENTION_WEIGHT) * level;
+        }
+
+        ConflictStats snapshot() {
+            return ConflictStats.create(updates.get(), attempts.get(), conflicts.get(), exhausted.get());
+        }
+    }
+
+    public static Builder builder(KeysApi keysApi) {
+        return new Builder(keysApi);
+    }
+
+    public static class Builder {
+        private final KeysApi keysApi;
+        private int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+        private long initialBackoffMillis = DEFAULT_INITIAL_BACKOFF_MILLIS;
+        private long maxBackoffMillis = DEFAULT_MAX_BACKOFF_MILLIS;
+        private int trackedKeys = DEFAULT_TRACKED_KEYS;
+
+        Builder(KeysApi keysApi) {
+            this.keysApi = keysApi;
+        }
+
+        public Builder maxAttempts(int maxAttempts) {
+            this.maxAttempts = maxAttempts;
+            return this;
+        }
+
+        /**
+         * Bounds of the pause before a retry. The first retry pauses up to
+         * initialMillis on an uncontended key, and no pause exceeds maxMillis.
+         * 
+         * @param initialMillis
+         *            ceiling of the first pause
+         * @param maxMillis
+         *            ceiling of any pause
+         * @return this builder
+         */
+        public Builder backoff(long initialMillis, long maxMillis) {
+            this.initialBackoffMillis = initialMillis;
+            this.maxBackoffMillis = maxMillis;
+            return this;
+        }
+
+        /**
+         * Number of keys conflict counts are kept for, dropping the least
+         * recently updated beyond it.
+         * 
+         * @param trackedKeys
+         *            keys to keep counts for
+         * @return this builder
+         */
+        public Builder trackedKeys(int trackedKeys) {
+            this.trackedKeys = trackedKeys;
+            return this;
+        }
+
+        public CasUpdater build() {
+            return new CasUpdater(keysApi, maxAttempts, initialBackoffMillis, maxBackoffMillis, trackedKeys);
+        }
+    }
+}
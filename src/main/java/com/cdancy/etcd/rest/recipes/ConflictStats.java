@@ -0,0 +1,68 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cdancy.etcd.rest.recipes;
+
+import com.google.auto.value.AutoValue;
+
+@AutoValue
+public abstract class ConflictStats {
+
+    /**
+     * Number of updates asked for.
+     * 
+     * @return updates
+     */
+    public abstract long updates();
+
+    /**
+     * Number of compare-and-swaps tried, including retries.
+     * 
+     * @return attempts
+     */
+    public abstract long attempts();
+
+    /**
+     * Number of compare-and-swaps which lost to a concurrent change.
+     * 
+     * @return conflicts
+     */
+    public abstract long conflicts();
+
+    /**
+     * Number of updates given up after running out of attempts.
+     * 
+     * @return exhausted updates
+     */
+    public abstract long exhausted();
+
+    ConflictStats() {
+    }
+
+    public static ConflictStats create(long updates, long attempts, long conflicts, long exhausted) {
+        return new AutoValue_ConflictStats(updates, attempts, conflicts, exhausted);
+    }
+
+    /**
+     * Fraction of attempts which conflicted.
+     * 
+     * @return conflict rate between 0 and 1
+     */
+    public double conflictRate() {
+        return attempts() == 0 ? 0.0 : (double) conflicts() / attempts();
+    }
+}
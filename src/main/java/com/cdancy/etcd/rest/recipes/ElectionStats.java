@@ -0,0 +1,57 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cdancy.etcd.rest.recipes;
+
+import com.google.auto.value.AutoValue;
+
+@AutoValue
+public abstract class ElectionStats {
+
+    /**
+     * Number of times this candidate became leader.
+     * 
+     * @return times elected
+     */
+    public abstract long elections();
+
+    /**
+     * Number of times this candidate took over a leadership it saw become
+     * vacant.
+     * 
+     * @return times taken over
+     */
+    public abstract long failovers();
+
+    /**
+     * Time between seeing the leader key deleted or expired and holding it,
+     * for the most recent failover.
+     * 
+     * @return last failover time in milliseconds, -1 if none happened
+     */
+    public abstract long lastFailoverMillis();
+
+    public abstract long maxFailoverMillis();
+
+    ElectionStats() {
+    }
+
+    public static ElectionStats create(long elections, long failovers, long lastFailoverMillis,
+            long maxFailoverMillis) {
+        return new AutoValue_ElectionStats(elections, failovers, lastFailoverMillis, maxFailoverMillis);
+    }
+}
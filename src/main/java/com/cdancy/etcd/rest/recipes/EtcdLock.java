@@ -0,0 +1,260 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cdancy.etcd.rest.recipes;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.Closeable;
+import java.lang.management.ManagementFactory;
+import java.net.SocketTimeoutException;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.cdancy.etcd.rest.domain.keys.Key;
+import com.cdancy.etcd.rest.domain.keys.Node;
+import com.cdancy.etcd.rest.features.KeysApi;
+import com.google.common.base.Predicates;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * A lock shared by everyone using the same etcd directory. Each contender
+ * creates an in-order key beneath the directory and holds the lock once its
+ * key is the oldest one there. Rather than watching the whole directory, a
+ * contender waits only on the key just ahead of its own, so releasing the
+ * lock wakes a single waiter instead of all of them. Keys carry a TTL which
+ * is refreshed for as long as they are held, so the lock of a client which
+ * goes away is given up once its key expires.
+ */
+public class EtcdLock implements Closeable {
+
+    public static final int DEFAULT_TTL_SECONDS = 30;
+
+    private static final ThreadFactory LOCK_THREADS = new ThreadFactoryBuilder().setNameFormat("etcd-lock-%d")
+            .setDaemon(true).build();
+
+    private final KeysApi keysApi;
+    private final String dir;
+    private final int ttl;
+    private final String value;
+    private final ScheduledExecutorService scheduler;
+    private final boolean ownsScheduler;
+
+    EtcdLock(KeysApi keysApi, String dir, int ttl, String value, ScheduledExecutorService scheduler) {
+        checkArgument(ttl > 0, "ttl must be positive");
+        this.keysApi = checkNotNull(keysApi, "keysApi");
+        this.dir = checkNotNull(dir, "dir");
+        this.ttl = ttl;
+        this.value = value != null ? value : ManagementFactory.getRuntimeMXBean().getName();
+        this.ownsScheduler = scheduler == null;
+        this.scheduler = scheduler != null ? scheduler : Executors.newSingleThreadScheduledExecutor(LOCK_THREADS);
+    }
+
+    public String dir() {
+        return dir;
+    }
+
+    public int ttl() {
+        return ttl;
+    }
+
+    /**
+     * Wait until the lock is ours. The thread is only checked for
+     * interruption between waits on the predecessor, not during one.
+     * 
+     * @return the held lock, to be released once done
+     * @throws InterruptedException
+     *             if interrupted while waiting for the lock
+     */
+    public LockLease acquire() throws InterruptedException {
+        LockLease lease = enqueue();
+        boolean acquired = false;
+        try {
+            awaitTurn(lease);
+            acquired = true;
+            return lease;
+        } finally {
+            if (!acquired) {
+                lease.release();
+            }
+        }
+    }
+
+    /**
+     * Take the lock only if nobody holds or waits for it.
+     * 
+     * @return the held lock or null if it is taken
+     */
+    public LockLease tryAcquire() {
+        LockLease lease = enqueue();
+        boolean acquired = false;
+        try {
+            acquired = predecessor(lease, keysApi.listInOrderKey(dir)) == null;
+            return acquired ? lease : null;
+        } finally {
+            if (!acquired) {
+                lease.release();
+            }
+        }
+    }
+
+    /**
+     * Stop refreshing. Leases still held by this lock are given up once their
+     * TTL runs out.
+     */
+    @Override
+    public void close() {
+        if (ownsScheduler) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    KeysApi keysApi() {
+        return keysApi;
+    }
+
+    private LockLease enqueue() {
+        Key created = keysApi.createInOrderKey(dir, value, ttl);
+        Node node = created.node();
+        final LockLease lease = new LockLease(this, node.key().substring(1), node.modifiedIndex());
+        long period = TimeUnit.SECONDS.toMillis(ttl) / 3;
+        lease.keepAlive(scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (keysApi.refreshKey(lease.key(), ttl).errorMessage() != null) {
+                        lease.lost();
+                    }
+                } catch (RuntimeException e) {
+                    // the key outlives a missed refresh, simply try again next time
+                }
+            }
+        }, period, period, TimeUnit.MILLISECONDS));
+        return lease;
+    }
+
+    private void awaitTurn(LockLease lease) throws InterruptedException {
+        while (true) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            Key listing = keysApi.listInOrderKey(dir);
+            Node predecessor = predecessor(lease, listing);
+            if (predecessor == null) {
+                return;
+            }
+            int waitIndex = listing.etcdIndex() != null ? listing.etcdIndex() + 1 : 0;
+            try {
+                // only the key ahead of ours going away can make the lock ours
+                keysApi.waitKey(predecessor.key().substring(1), false, waitIndex);
+            } catch (RuntimeException e) {
+                if (!Iterables.any(Throwables.getCausalChain(e), Predicates.instanceOf(SocketTimeoutException.class))) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Find the key just ahead of that of lease.
+     * 
+     * @param lease
+     *            the lease waiting for the lock
+     * @param listing
+     *            the sorted listing of dir
+     * @return the preceding node or null if lease holds the lock
+     */
+    private Node predecessor(LockLease lease, Key listing) {
+        List<Node> nodes = listing.node() != null ? listing.node().nodes() : ImmutableList.<Node> of();
+        String key = "/" + lease.key();
+        for (int i = 0; i < nodes.size(); i++) {
+            if (nodes.get(i).key().equals(key)) {
+                return i > 0 ? nodes.get(i - 1) : null;
+            }
+        }
+        lease.lost();
+        throw new IllegalStateException("lock key " + lease.key() + " expired while waiting for " + dir);
+    }
+
+    public static Builder builder(KeysApi keysApi, String dir) {
+        return new Builder(keysApi, dir);
+    }
+
+    public static class Builder {
+        private final KeysApi keysApi;
+        private final String dir;
+        private int ttl = DEFAULT_TTL_SECONDS;
+        private String value;
+        private ScheduledExecutorService scheduler;
+
+        Builder(KeysApi keysApi, String dir) {
+            this.keysApi = keysApi;
+            this.dir = dir;
+        }
+
+        /**
+         * Seconds a held key lives without being refreshed. It is refreshed
+         * three times per TTL, so this is also how long the lock stays taken
+         * after its holder goes away.
+         * 
+         * @param seconds
+         *            time to live of lock keys
+         * @return this builder
+         */
+        public Builder ttl(int seconds) {
+            this.ttl = seconds;
+            return this;
+        }
+
+        /**
+         * Value of the lock keys, telling others who holds the lock. Defaults
+         * to the name of the running JVM.
+         * 
+         * @param value
+         *            value of lock keys
+         * @return this builder
+         */
+        public Builder value(String value) {
+            this.value = value;
+            return this;
+        }
+
+        /**
+         * Scheduler keys are refreshed on. Defaults to a single thread owned
+         * by the lock.
+         * 
+         * @param scheduler
+         *            scheduler to refresh keys on
+         * @return this builder
+         */
+        public Builder scheduler(ScheduledExecutorService scheduler) {
+            this.scheduler = scheduler;
+            return this;
+        }
+
+        public EtcdLock build() {
+            return new EtcdLock(keysApi, dir, ttl, value, scheduler);
+        }
+    }
+}
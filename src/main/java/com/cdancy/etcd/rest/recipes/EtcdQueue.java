@@ -0,0 +1,275 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cdancy.etcd.rest.recipes;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.Closeable;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+
+import com.cdancy.etcd.rest.bulk.BulkKeys;
+import com.cdancy.etcd.rest.domain.keys.Key;
+import com.cdancy.etcd.rest.domain.keys.Node;
+import com.cdancy.etcd.rest.features.KeysApi;
+import com.google.common.base.Function;
+import com.google.common.base.Predicates;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+
+/**
+ * A FIFO work queue kept as in-order keys beneath a directory. Producers add
+ * items with {@link #offer(String)}; consumers, any number of them competing
+ * for the same items, claim an item by deleting its key with
+ * compareAndDeleteKey on the index it was listed at, so each item goes to
+ * exactly one consumer. A listing is kept and claimed from until used up
+ * rather than listing again for every item, several items can be claimed at
+ * once, and {@link #take()} waits on the directory instead of polling it.
+ */
+public class EtcdQueue implements Closeable {
+
+    public static final int DEFAULT_MAX_IN_FLIGHT = 8;
+
+    private final KeysApi keysApi;
+    private final String dir;
+    private final BulkKeys bulkKeys;
+    private final Queue<Node> listed = new ConcurrentLinkedQueue<Node>();
+    private volatile int listedIndex;
+
+    EtcdQueue(KeysApi keysApi, String dir, int maxInFlight, Executor executor) {
+        checkArgument(maxInFlight > 0, "maxInFlight must be positive");
+        this.keysApi = checkNotNull(keysApi, "keysApi");
+        this.dir = checkNotNull(dir, "dir");
+        this.bulkKeys = BulkKeys.builder(keysApi).maxInFlight(maxInFlight).executor(executor).build();
+    }
+
+    public String dir() {
+        return dir;
+    }
+
+    public Key offer(String value) {
+        return keysApi.createInOrderKey(dir, value);
+    }
+
+    /**
+     * Add an item which is dropped if not taken within seconds.
+     * 
+     * @param value
+     *            the item
+     * @param seconds
+     *            time to live of the item
+     * @return Key holding the item
+     */
+    public Key offer(String value, int seconds) {
+        return keysApi.createInOrderKey(dir, value, seconds);
+    }
+
+    /**
+     * Claim the item at the head of the queue.
+     * 
+     * @return the claimed item or null if the queue is empty
+     */
+    public Node poll() {
+        List<Node> items = poll(1);
+        return items.isEmpty() ? null : items.get(0);
+    }
+
+    /**
+     * Claim up to max items at once, in queue order. Items taken by another
+     * consumer in the meantime are skipped.
+     * 
+     * @param max
+     *            the most items to claim
+     * @return claimed items, empty if the queue is empty
+     */
+    public List<Node> poll(int max) {
+        checkArgument(max > 0, "max must be positive");
+        boolean relisted = false;
+        while (true) {
+            Map<String, Node> candidates = new LinkedHashMap<String, Node>();
+            Node node;
+            while (candidates.size() < max && (node = listed.poll()) != null) {
+                candidates.put(node.key().substring(1), node);
+            }
+            if (candidates.isEmpty()) {
+                if (relisted) {
+                    return ImmutableList.of();
+                }
+                relist();
+                relisted = true;
+                continue;
+            }
+            List<Node> claimed = claim(candidates);
+            if (!claimed.isEmpty()) {
+                return claimed;
+            }
+        }
+    }
+
+    /**
+     * Claim the item at the head of the queue, waiting for one to be added
+     * if the queue is empty. The thread is only checked for interruption
+     * between waits, not during one.
+     * 
+     * @return the claimed item
+     * @throws InterruptedException
+     *             if interrupted while waiting
+     */
+    public Node take() throws InterruptedException {
+        return take(1).get(0);
+    }
+
+    /**
+     * Claim up to max items, waiting for at least one to be added if the
+     * queue is empty.
+     * 
+     * @param max
+     *            the most items to claim
+     * @return claimed items, never empty
+     * @throws InterruptedException
+     *             if interrupted while waiting
+     */
+    public List<Node> take(int max) throws InterruptedException {
+        while (true) {
+            List<Node> items = poll(max);
+            if (!items.isEmpty()) {
+                return items;
+            }
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            try {
+                Key change = keysApi.waitKey(dir, true, listedIndex + 1);
+                if (change.node() != null) {
+                    listedIndex = Math.max(listedIndex, change.node().modifiedIndex());
+                    if ("create".equals(change.action())) {
+                        // the queue was empty, so what was just added is its head
+                        listed.add(change.node());
+                    }
+                }
+            } catch (RuntimeException e) {
+                if (!Iterables.any(Throwables.getCausalChain(e), Predicates.instanceOf(SocketTimeoutException.class))) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Number of items currently in the queue.
+     * 
+     * @return queue length
+     */
+    public int size() {
+        Node node = keysApi.listInOrderKey(dir).node();
+        return node != null ? node.nodes().size() : 0;
+    }
+
+    @Override
+    public void close() {
+        bulkKeys.close();
+    }
+
+    private void relist() {
+        Key listing = keysApi.listInOrderKey(dir);
+        if (listing.node() != null) {
+            listed.addAll(listing.node().nodes());
+        }
+        if (listing.etcdIndex() != null) {
+            listedIndex = listing.etcdIndex();
+        } else if (listing.errorMessage() != null) {
+            listedIndex = listing.errorMessage().index();
+        }
+    }
+
+    private List<Node> claim(final Map<String, Node> candidates) {
+        Map<String, Key> results;
+        if (candidates.size() == 1) {
+            Map.Entry<String, Node> only = candidates.entrySet().iterator().next();
+            results = new LinkedHashMap<String, Key>();
+            results.put(only.getKey(), keysApi.compareAndDeleteKey(only.getKey(), only.getValue().modifiedIndex()));
+        } else {
+            results = bulkKeys.execute(candidates.keySet(), new Function<String, Key>() {
+                @Override
+                public Key apply(String key) {
+                    return keysApi.compareAndDeleteKey(key, candidates.get(key).modifiedIndex());
+                }
+            });
+        }
+        List<Node> claimed = new ArrayList<Node>(results.size());
+        for (Map.Entry<String, Key> result : results.entrySet()) {
+            if (result.getValue().errorMessage() == null) {
+                claimed.add(candidates.get(result.getKey()));
+            }
+        }
+        return claimed;
+    }
+
+    public static Builder builder(KeysApi keysApi, String dir) {
+        return new Builder(keysApi, dir);
+    }
+
+    public static class Builder {
+        private final KeysApi keysApi;
+        private final String dir;
+        private int maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+        private Executor executor;
+
+        Builder(KeysApi keysApi, String dir) {
+            this.keysApi = keysApi;
+            this.dir = dir;
+        }
+
+        /**
+         * Most claims made at the same time when claiming several items.
+         * 
+         * @param maxInFlight
+         *            claims outstanding at once
+         * @return this builder
+         */
+        public Builder maxInFlight(int maxInFlight) {
+            this.maxInFlight = maxInFlight;
+            return this;
+        }
+
+        /**
+         * Executor claims of several items are made on. Defaults to a cached
+         * pool owned by the queue.
+         * 
+         * @param executor
+         *            executor to claim on
+         * @return this builder
+         */
+        public Builder executor(Executor executor) {
+            this.executor = executor;
+            return this;
+        }
+
+        public EtcdQueue build() {
+            return new EtcdQueue(keysApi, dir, maxInFlight, executor);
+        }
+    }
+}
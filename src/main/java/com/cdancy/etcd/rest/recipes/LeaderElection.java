@@ -0,0 +1,354 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cdancy.etcd.rest.recipes;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+import java.io.Closeable;
+import java.lang.management.ManagementFactory;
+import java.net.SocketTimeoutException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jclouds.logging.Logger;
+
+import com.cdancy.etcd.rest.domain.keys.Key;
+import com.cdancy.etcd.rest.features.KeysApi;
+import com.google.common.base.Predicates;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+/**
+ * Elects a single leader among all candidates sharing a key. The leader is
+ * whoever managed to create the key, which carries a TTL the leader keeps
+ * refreshing in the background. Every other candidate waits on the key and
+ * tries to take it over as soon as etcd reports it deleted or expired, so a
+ * leader that goes away is replaced within its TTL rather than whenever the
+ * next poll happens to run.
+ */
+public class LeaderElection implements Closeable {
+
+    public static final int DEFAULT_TTL_SECONDS = 10;
+
+    static final long MIN_BACKOFF_MILLIS = 100;
+    static final long MAX_BACKOFF_MILLIS = 10000;
+
+    private static final ImmutableSet<String> VACATED = ImmutableSet.of("delete", "expire", "compareAndDelete");
+    private static final ThreadFactory ELECTION_THREADS = new ThreadFactoryBuilder()
+            .setNameFormat("etcd-election-%d").setDaemon(true).build();
+
+    private final KeysApi keysApi;
+    private final String key;
+    private final String candidate;
+    private final int ttl;
+    private final ScheduledExecutorService scheduler;
+    private final boolean ownsScheduler;
+    private final Logger logger;
+    private final List<LeadershipListener> listeners = new CopyOnWriteArrayList<LeadershipListener>();
+    private final AtomicBoolean started = new AtomicBoolean(false);
+    private final AtomicBoolean leader = new AtomicBoolean(false);
+    private final AtomicLong elections = new AtomicLong();
+    private final AtomicLong failovers = new AtomicLong();
+    private final AtomicLong maxFailoverMillis = new AtomicLong();
+    private volatile long lastFailoverMillis = -1;
+    private volatile boolean closed;
+    private volatile ScheduledFuture<?> keepAlive;
+    private volatile Thread electionThread;
+
+    LeaderElection(KeysApi keysApi, String key, String candidate, int ttl, ScheduledExecutorService scheduler,
+            Logger logger) {
+        checkArgument(ttl > 0, "ttl must be positive");
+        this.keysApi = checkNotNull(keysApi, "keysApi");
+        this.key = checkNotNull(key, "key");
+        this.candidate = candidate != null ? candidate : ManagementFactory.getRuntimeMXBean().getName();
+        this.ttl = ttl;
+        this.ownsScheduler = scheduler == null;
+        this.scheduler = scheduler != null ? scheduler : Executors.newSingleThreadScheduledExecutor(ELECTION_THREADS);
+        this.logger = logger != null ? logger : Logger.NULL;
+    }
+
+    public String key() {
+        return key;
+    }
+
+    public String candidate() {
+        return candidate;
+    }
+
+    public boolean isLeader() {
+        return leader.get();
+    }
+
+    public LeaderElection addListener(LeadershipListener listener) {
+        listeners.add(checkNotNull(listener, "listener"));
+        return this;
+    }
+
+    /**
+     * Enter the election. Candidates take part until closed.
+     * 
+     * @return this election
+     */
+    public LeaderElection start() {
+        checkState(!closed, "election is closed");
+        if (started.compareAndSet(false, true)) {
+            Thread thread = ELECTION_THREADS.newThread(new Runnable() {
+                @Override
+                public void run() {
+                    campaign();
+                }
+            });
+            electionThread = thread;
+            thread.start();
+        }
+        return this;
+    }
+
+    /**
+     * The candidate currently holding the leader key.
+     * 
+     * @return the leader or null if there is none right now
+     */
+    public String leader() {
+        Key current = keysApi.getKey(key);
+        return current.node() != null ? current.node().value() : null;
+    }
+
+    public ElectionStats stats() {
+        return ElectionStats.create(elections.get(), failovers.get(), lastFailoverMillis, maxFailoverMillis.get());
+    }
+
+    /**
+     * Leave the election. A leader deletes its key on the way out, so that
+     * another candidate takes over straight away rather than once it expires.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        if (stepDown()) {
+            keysApi.compareAndDeleteKey(key, candidate);
+        }
+        Thread thread = electionThread;
+        if (thread != null) {
+            thread.interrupt();
+        }
+        if (ownsScheduler) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    private void campaign() {
+        long backoff = MIN_BACKOFF_MILLIS;
+        long vacantSince = -1;
+        while (!closed) {
+            try {
+                Key claim = keysApi.compareAndSwapKeyExist(key, false, candidate, ttl);
+                int index;
+                if (claim.errorMessage() == null) {
+                    elected(vacantSince);
+                    index = claim.node().modifiedIndex();
+                } else {
+                    index = claim.errorMessage().index();
+                }
+                vacantSince = awaitVacancy(index);
+                backoff = MIN_BACKOFF_MILLIS;
+            } catch (Exception e) {
+                vacantSince = -1;
+                if (closed) {
+                    break;
+                }
+                if (!Iterables.any(Throwables.getCausalChain(e), Predicates.instanceOf(SocketTimeoutException.class))) {
+                    // an idle long-poll timing out is expected, anything else is given a moment
+                    Uninterruptibles.sleepUninterruptibly(backoff, TimeUnit.MILLISECONDS);
+                    backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+                }
+            }
+        }
+    }
+
+    /**
+     * Wait on the leader key until it is deleted or expires.
+     * 
+     * @param index
+     *            etcd index the key was last seen at
+     * @return System.nanoTime() at which the key was seen vacated
+     */
+    private long awaitVacancy(int index) {
+        int waitIndex = index + 1;
+        while (!closed) {
+            Key event = keysApi.waitKey(key, false, waitIndex);
+            if (event.errorMessage() != null || event.node() == null) {
+                // the history moved past waitIndex, find out afresh who leads
+                return -1;
+            }
+            waitIndex = event.node().modifiedIndex() + 1;
+            if (VACATED.contains(event.action())) {
+                long vacated = System.nanoTime();
+                stepDown();
+                return vacated;
+            } else if (!candidate.equals(event.node().value())) {
+                stepDown();
+            }
+        }
+        return -1;
+    }
+
+    private void elected(long vacantSince) {
+        if (!leader.compareAndSet(false, true)) {
+            return;
+        }
+        elections.incrementAndGet();
+        if (vacantSince > 0) {
+            long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - vacantSince);
+            failovers.incrementAndGet();
+            lastFailoverMillis = millis;
+            while (true) {
+                long max = maxFailoverMillis.get();
+                if (millis <= max || maxFailoverMillis.compareAndSet(max, millis)) {
+                    break;
+                }
+            }
+        }
+        long period = TimeUnit.SECONDS.toMillis(ttl) / 3;
+        keepAlive = scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (keysApi.refreshKey(key, candidate, ttl).errorMessage() != null) {
+                        stepDown();
+                    }
+                } catch (RuntimeException e) {
+                    // the key outlives a missed refresh, simply try again next time
+                }
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+        for (LeadershipListener listener : listeners) {
+            try {
+                listener.elected(this);
+            } catch (RuntimeException e) {
+                // a failing listener must not keep the others from hearing of it
+                logger.warn(e, "Listener %s failed on %s being elected for %s", listener, candidate, key);
+            }
+        }
+    }
+
+    private boolean stepDown() {
+        if (!leader.compareAndSet(true, false)) {
+            return false;
+        }
+        ScheduledFuture<?> current = keepAlive;
+        if (current != null) {
+            current.cancel(false);
+        }
+        for (LeadershipListener listener : listeners) {
+            try {
+                listener.revoked(this);
+            } catch (RuntimeException e) {
+                // a failing listener must not keep the others from hearing of it
+                logger.warn(e, "Listener %s failed on %s losing leadership of %s", listener, candidate, key);
+            }
+        }
+        return true;
+    }
+
+    public static Builder builder(KeysApi keysApi, String key) {
+        return new Builder(keysApi, key);
+    }
+
+    public static class Builder {
+        private final KeysApi keysApi;
+        private final String key;
+        private String candidate;
+        private int ttl = DEFAULT_TTL_SECONDS;
+        private ScheduledExecutorService scheduler;
+        private Logger logger;
+
+        Builder(KeysApi keysApi, String key) {
+            this.keysApi = keysApi;
+            this.key = key;
+        }
+
+        /**
+         * Name of this candidate, stored as the value of the leader key while
+         * it leads. Defaults to the name of the running JVM.
+         * 
+         * @param candidate
+         *            name of this candidate
+         * @return this builder
+         */
+        public Builder candidate(String candidate) {
+            this.candidate = candidate;
+            return this;
+        }
+
+        /**
+         * Seconds the leader key lives without being refreshed, and so the
+         * longest a leader that went away can stay leader.
+         * 
+         * @param seconds
+         *            time to live of the leader key
+         * @return this builder
+         */
+        public Builder ttl(int seconds) {
+            this.ttl = seconds;
+            return this;
+        }
+
+        /**
+         * Scheduler the leader key is refreshed on. Defaults to a single
+         * thread owned by the election.
+         * 
+         * @param scheduler
+         *            scheduler to refresh the leader key on
+         * @return this builder
+         */
+        public Builder scheduler(ScheduledExecutorService scheduler) {
+            this.scheduler = scheduler;
+            return this;
+        }
+
+        /**
+         * Logger told of listeners failing on a change of leadership, which
+         * the remaining listeners still hear of. Defaults to Logger.NULL.
+         * 
+         * @param logger
+         *            logger to report failing listeners to
+         * @return this builder
+         */
+        public Builder logger(Logger logger) {
+            this.logger = logger;
+            return this;
+        }
+
+        public LeaderElection build() {
+            return new LeaderElection(keysApi, key, candidate, ttl, scheduler, logger);
+        }
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cdancy.etcd.rest.recipes;
+
+/**
+ * Told when a {@link LeaderElection} candidate gains or loses leadership.
+ * Callbacks are made on the election's own threads, so implementations should
+ * hand any lengthy work off elsewhere.
+ */
+public interface LeadershipListener {
+
+    /**
+     * Called once the candidate holds the leader key.
+     * 
+     * @param election
+     *            the election won
+     */
+    void elected(LeaderElection election);
+
+    /**
+     * Called once the candidate no longer holds the leader key, be it because
+     * the key could not be refreshed, was taken over or the election closed.
+     * 
+     * @param election
+     *            the election lost
+     */
+    void revoked(LeaderElection election);
+}
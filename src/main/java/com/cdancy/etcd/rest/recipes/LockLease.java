@@ -0,0 +1,110 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cdancy.etcd.rest.recipes;
+
+import java.io.Closeable;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A lock handed out by {@link EtcdLock}, held until released or until its key
+ * could no longer be refreshed.
+ */
+public final class LockLease implements Closeable {
+
+    private final EtcdLock lock;
+    private final String key;
+    private final int fencingToken;
+    private final AtomicBoolean released = new AtomicBoolean(false);
+    private volatile ScheduledFuture<?> keepAlive;
+    private volatile boolean valid = true;
+
+    LockLease(EtcdLock lock, String key, int fencingToken) {
+        this.lock = lock;
+        this.key = key;
+        this.fencingToken = fencingToken;
+    }
+
+    /**
+     * The key holding the lock.
+     * 
+     * @return lock key, without leading slash
+     */
+    public String key() {
+        return key;
+    }
+
+    /**
+     * The modifiedIndex of the lock key as created. Every later acquisition of
+     * the same lock gets a higher token, so a resource can refuse writes
+     * carrying a lower token than one it has already seen, shutting out a
+     * holder that lost the lock without noticing.
+     * 
+     * @return fencing token of this lease
+     */
+    public int fencingToken() {
+        return fencingToken;
+    }
+
+    /**
+     * Whether the lock is still held: not released and its key not found to
+     * be gone when last refreshed.
+     * 
+     * @return true if the lock is still held
+     */
+    public boolean isValid() {
+        return valid && !released.get();
+    }
+
+    /**
+     * Give up the lock, handing it to the next in line.
+     * 
+     * @return true if this call released the lock, false if it was already
+     *         released or lost
+     */
+    public boolean release() {
+        if (!released.compareAndSet(false, true)) {
+            return false;
+        }
+        stopKeepAlive();
+        boolean held = valid;
+        valid = false;
+        return lock.keysApi().deleteKey(key).errorMessage() == null && held;
+    }
+
+    @Override
+    public void close() {
+        release();
+    }
+
+    void keepAlive(ScheduledFuture<?> keepAlive) {
+        this.keepAlive = keepAlive;
+    }
+
+    void lost() {
+        valid = false;
+        stopKeepAlive();
+    }
+
+    private void stopKeepAlive() {
+        ScheduledFuture<?> current = keepAlive;
+        if (current != null) {
+            current.cancel(false);
+        }
+    }
+}
@@ -0,0 +1,292 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cdancy.etcd.rest.recipes;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.Closeable;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.cdancy.etcd.rest.domain.keys.Key;
+import com.cdancy.etcd.rest.domain.keys.Node;
+import com.cdancy.etcd.rest.error.ErrorMessage;
+import com.cdancy.etcd.rest.features.KeysApi;
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * A counter which scales with the number of writers by spreading its count
+ * over several stripe keys beneath a directory. Each addition updates a
+ * single stripe picked at random with {@link CasUpdater}, so concurrent
+ * writers mostly land on different keys instead of all fighting over one,
+ * and the total is the sum of the stripes read back with one listing.
+ * Additions can also be batched locally and flushed every flushInterval,
+ * turning many small increments into a single write.
+ */
+public class StripedCounter implements Closeable {
+
+    public static final int DEFAULT_STRIPES = 16;
+
+    private static final ThreadFactory FLUSH_THREADS = new ThreadFactoryBuilder()
+            .setNameFormat("etcd-counter-%d").setDaemon(true).build();
+
+    private final KeysApi keysApi;
+    private final String dir;
+    private final int stripes;
+    private final CasUpdater updater;
+    private final long flushIntervalMillis;
+    private final ScheduledExecutorService scheduler;
+    private final boolean ownsScheduler;
+    private final AtomicLong pending = new AtomicLong();
+    private final Object flushLock = new Object();
+    private final Random random = new Random();
+    private final ScheduledFuture<?> flushTask;
+
+    StripedCounter(KeysApi keysApi, String dir, int stripes, CasUpdater updater, long flushIntervalMillis,
+            ScheduledExecutorService scheduler) {
+        checkArgument(stripes > 0, "stripes must be positive");
+        checkArgument(flushIntervalMillis >= 0, "flushIntervalMillis must not be negative");
+        this.keysApi = checkNotNull(keysApi, "keysApi");
+        this.dir = checkNotNull(dir, "dir");
+        this.stripes = stripes;
+        this.updater = updater != null ? updater : CasUpdater.builder(keysApi).build();
+        this.flushIntervalMillis = flushIntervalMillis;
+        this.ownsScheduler = flushIntervalMillis > 0 && scheduler == null;
+        this.scheduler = ownsScheduler ? Executors.newSingleThreadScheduledExecutor(FLUSH_THREADS) : scheduler;
+        if (flushIntervalMillis > 0) {
+            this.flushTask = this.scheduler.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        flush();
+                    } catch (RuntimeException e) {
+                        // flush put the delta back, it goes out with the next one
+                    }
+                }
+            }, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+        } else {
+            this.flushTask = null;
+        }
+    }
+
+    public String dir() {
+        return dir;
+    }
+
+    public int stripes() {
+        return stripes;
+    }
+
+    /**
+     * Add 1 to the counter.
+     * 
+     * @return Key of the updated stripe, or null if the addition was batched
+     */
+    public Key increment() {
+        return add(1);
+    }
+
+    /**
+     * Add delta to the counter. Batched additions are only seen by
+     * {@link #get()} once flushed.
+     * 
+     * @param delta
+     *            amount to add, may be negative
+     * @return Key of the updated stripe, or null if the addition was batched
+     */
+    public Key add(long delta) {
+        if (flushIntervalMillis > 0) {
+            pending.addAndGet(delta);
+            return null;
+        }
+        return addToStripe(delta);
+    }
+
+    /**
+     * Write out the additions batched since the last flush. Should that fail
+     * they are kept for the next one. Flushes are made one at a time.
+     * 
+     * @return Key of the updated stripe, or null if there was nothing to flush
+     */
+    public Key flush() {
+        synchronized (flushLock) {
+            long delta = pending.getAndSet(0);
+            if (delta == 0) {
+                return null;
+            }
+            Key result = null;
+            try {
+                result = addToStripe(delta);
+                return result;
+            } finally {
+                if (result == null || result.errorMessage() != null) {
+                    pending.addAndGet(delta);
+                }
+            }
+        }
+    }
+
+    /**
+     * Additions batched but not yet flushed.
+     * 
+     * @return the sum of pending additions
+     */
+    public long pending() {
+        return pending.get();
+    }
+
+    /**
+     * The total of all stripes, read with a single listing of the directory.
+     * Additions still batched locally are not included.
+     * 
+     * @return the count, 0 if nothing was added yet
+     */
+    public long get() {
+        Key listing = keysApi.listDir(dir, false);
+        if (listing.errorMessage() != null) {
+            if (listing.errorMessage().errorCode() == ErrorMessage.KEY_NOT_FOUND) {
+                return 0;
+            }
+            throw new IllegalStateException("Failed to list " + dir + ": " + listing.errorMessage().message());
+        }
+        long total = 0;
+        if (listing.node().nodes() != null) {
+            for (Node stripe : listing.node().nodes()) {
+                if (!stripe.dir() && stripe.value() != null) {
+                    total += Long.parseLong(stripe.value());
+                }
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Stop flushing and flush pending additions, waiting for a flush already
+     * in progress to finish first so that nothing it fails to write is left
+     * behind.
+     */
+    @Override
+    public void close() {
+        if (flushTask != null) {
+            flushTask.cancel(false);
+        }
+        if (ownsScheduler) {
+            scheduler.shutdown();
+        }
+        if (flushIntervalMillis > 0) {
+            flush();
+        }
+    }
+
+    private Key addToStripe(final long delta) {
+        int stripe;
+        synchronized (random) {
+            stripe = random.nextInt(stripes);
+        }
+        return updater.update(dir + "/" + stripe, new Function<String, String>() {
+            @Override
+            public String apply(String value) {
+                return Long.toString(value != null ? Long.parseLong(value) + delta : delta);
+            }
+        });
+    }
+
+    public static Builder builder(KeysApi keysApi, String dir) {
+        return new Builder(keysApi, dir);
+    }
+
+    public static class Builder {
+        private final KeysApi keysApi;
+        private final String dir;
+        private int stripes = DEFAULT_STRIPES;
+        private CasUpdater updater;
+        private long flushIntervalMillis;
+        private ScheduledExecutorService scheduler;
+
+        Builder(KeysApi keysApi, String dir) {
+            this.keysApi = keysApi;
+            this.dir = dir;
+        }
+
+        /**
+         * Number of stripe keys the count is spread over. Writers contend
+         * less the more stripes there are, while reads list them all.
+         * 
+         * @param stripes
+         *            number of stripe keys
+         * @return this builder
+         */
+        public Builder stripes(int stripes) {
+            this.stripes = stripes;
+            return this;
+        }
+
+        /**
+         * Updater stripes are written with, to tune its retries or share its
+         * conflict counts.
+         * 
+         * @param updater
+         *            updater to write stripes with
+         * @return this builder
+         */
+        public Builder updater(CasUpdater updater) {
+            this.updater = updater;
+            return this;
+        }
+
+        /**
+         * Batch additions locally and write them out every interval rather
+         * than one by one. 0, the default, writes every addition as it is
+         * made.
+         * 
+         * @param interval
+         *            time between flushes
+         * @param unit
+         *            unit of interval
+         * @return this builder
+         */
+        public Builder flushInterval(long interval, TimeUnit unit) {
+            this.flushIntervalMillis = unit.toMillis(interval);
+            return this;
+        }
+
+        /**
+         * Scheduler to flush batched additions on; one is created, and shut
+         * down on close, if none is given.
+         * 
+         * @param scheduler
+         *            scheduler to flush on
+         * @return this builder
+         */
+        public Builder scheduler(ScheduledExecutorService scheduler) {
+            this.scheduler = scheduler;
+            return this;
+        }
+
+        public StripedCounter build() {
+            return new StripedCounter(keysApi, dir, stripes, updater, flushIntervalMillis, scheduler);
+        }
+    }
+}
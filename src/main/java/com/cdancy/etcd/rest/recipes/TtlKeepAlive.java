@@ -0,0 +1,398 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cdancy.etcd.rest.recipes;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.Closeable;
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.cdancy.etcd.rest.domain.keys.Key;
+import com.cdancy.etcd.rest.error.ErrorMessage;
+import com.cdancy.etcd.rest.features.KeysApi;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Keeps many TTL keys alive, such as service registrations, by refreshing
+ * them with {@link KeysApi#refreshKey(String, int)}. A refresh sends neither
+ * the value nor wakes those watching the key. Each key is refreshed once a
+ * third of its TTL has passed, give or take some jitter so that keys
+ * registered together do not all come due at once. Due keys are collected on
+ * a timer wheel, one slot per tick, and refreshed with at most maxInFlight
+ * calls outstanding. Keys which went too long without a successful refresh
+ * are reported by {@link #atRisk()}, keys etcd no longer has by
+ * {@link #lost()}.
+ */
+public class TtlKeepAlive implements Closeable {
+
+    public static final int DEFAULT_MAX_IN_FLIGHT = 16;
+    public static final long DEFAULT_TICK_MILLIS = 100;
+    public static final double DEFAULT_JITTER = 0.1;
+
+    static final int WHEEL_SIZE = 512;
+
+    private static final ThreadFactory WHEEL_THREADS = new ThreadFactoryBuilder()
+            .setNameFormat("etcd-keepalive-wheel-%d").setDaemon(true).build();
+    private static final ThreadFactory REFRESH_THREADS = new ThreadFactoryBuilder()
+            .setNameFormat("etcd-keepalive-%d").setDaemon(true).build();
+
+    private final KeysApi keysApi;
+    private final int maxInFlight;
+    private final long tickMillis;
+    private final double jitter;
+    private final Random random = new Random();
+    private final Executor executor;
+    private final ExecutorService ownedExecutor;
+    private final ScheduledExecutorService wheelThread;
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+    private final Set<String> lost = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final Queue<Entry> pending = new ConcurrentLinkedQueue<Entry>();
+    private final Queue<Entry> due = new ConcurrentLinkedQueue<Entry>();
+    private final List<ArrayDeque<Entry>> wheel = new ArrayList<ArrayDeque<Entry>>(WHEEL_SIZE);
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private long tick;
+
+    private final Runnable worker = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                Entry entry;
+                while ((entry = due.poll()) != null) {
+                    refresh(entry);
+                }
+            } finally {
+                inFlight.decrementAndGet();
+            }
+            // pick up keys which came due after the queue was found empty
+            dispatch();
+        }
+    };
+
+    TtlKeepAlive(KeysApi keysApi, int maxInFlight, long tickMillis, double jitter, Executor executor) {
+        checkArgument(maxInFlight > 0, "maxInFlight must be positive");
+        checkArgument(tickMillis > 0, "tickMillis must be positive");
+        checkArgument(jitter >= 0 && jitter < 1, "jitter must be at least 0 and less than 1");
+        this.keysApi = checkNotNull(keysApi, "keysApi");
+        this.maxInFlight = maxInFlight;
+        this.tickMillis = tickMillis;
+        this.jitter = jitter;
+        if (executor != null) {
+            this.executor = executor;
+            this.ownedExecutor = null;
+        } else {
+            this.ownedExecutor = Executors.newCachedThreadPool(REFRESH_THREADS);
+            this.executor = ownedExecutor;
+        }
+        for (int i = 0; i < WHEEL_SIZE; i++) {
+            wheel.add(new ArrayDeque<Entry>());
+        }
+        this.wheelThread = Executors.newSingleThreadScheduledExecutor(WHEEL_THREADS);
+        wheelThread.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                advance();
+            }
+        }, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Keep key alive from now on. The key is expected to have just been set
+     * with the given TTL, so its first refresh is due a third of the TTL
+     * from now. Registering a key again replaces its TTL.
+     * 
+     * @param key
+     *            the key to keep alive
+     * @param seconds
+     *            time to live of key
+     * @return this instance
+     */
+    public TtlKeepAlive register(String key, int seconds) {
+        checkArgument(seconds > 0, "seconds must be positive");
+        Entry entry = new Entry(checkNotNull(key, "key"), seconds);
+        Entry previous = entries.put(key, entry);
+        if (previous != null) {
+            previous.cancelled = true;
+        }
+        lost.remove(key);
+        schedule(entry, jittered(entry.refreshMillis()));
+        return this;
+    }
+
+    /**
+     * Stop keeping key alive. It expires once its TTL runs out.
+     * 
+     * @param key
+     *            the key to let go of
+     * @return true if key was being kept alive
+     */
+    public boolean unregister(String key) {
+        Entry entry = entries.remove(key);
+        if (entry != null) {
+            entry.cancelled = true;
+        }
+        return entry != null;
+    }
+
+    public Set<String> keys() {
+        return ImmutableSet.copyOf(entries.keySet());
+    }
+
+    /**
+     * Keys which have gone more than half their TTL without a successful
+     * refresh, and so have missed at least one.
+     * 
+     * @return milliseconds each key has left before it expires, soonest
+     *         first; negative if it may already have expired
+     */
+    public Map<String, Long> atRisk() {
+        long now = System.nanoTime();
+        List<Map.Entry<String, Long>> risky = new ArrayList<Map.Entry<String, Long>>();
+        for (Entry entry : entries.values()) {
+            long left = entry.millisLeft(now);
+            if (left < TimeUnit.SECONDS.toMillis(entry.ttl) / 2) {
+                risky.add(new AbstractMap.SimpleImmutableEntry<String, Long>(entry.key, left));
+            }
+        }
+        Collections.sort(risky, new Comparator<Map.Entry<String, Long>>() {
+            @Override
+            public int compare(Map.Entry<String, Long> first, Map.Entry<String, Long> second) {
+                return first.getValue().compareTo(second.getValue());
+            }
+        });
+        Map<String, Long> ordered = new LinkedHashMap<String, Long>();
+        for (Map.Entry<String, Long> entry : risky) {
+            ordered.put(entry.getKey(), entry.getValue());
+        }
+        return ordered;
+    }
+
+    /**
+     * Keys etcd reported missing when refreshed, which are no longer kept
+     * alive. Registering such a key again removes it from here.
+     * 
+     * @return keys found to be gone
+     */
+    public Set<String> lost() {
+        return ImmutableSet.copyOf(lost);
+    }
+
+    @Override
+    public void close() {
+        wheelThread.shutdownNow();
+        for (Entry entry : entries.values()) {
+            entry.cancelled = true;
+        }
+        entries.clear();
+        if (ownedExecutor != null) {
+            ownedExecutor.shutdown();
+        }
+    }
+
+    private void schedule(Entry entry, long delayMillis) {
+        entry.delayTicks = Math.max(1, (delayMillis + tickMillis - 1) / tickMillis);
+        pending.add(entry);
+    }
+
+    /**
+     * Move the wheel on by one slot, collecting the keys due in it. Only ever
+     * run on the wheel thread, which alone touches the slots.
+     */
+    private void advance() {
+        long now = ++tick;
+        Entry entry;
+        while ((entry = pending.poll()) != null) {
+            if (!entry.cancelled) {
+                entry.dueTick = now + entry.delayTicks;
+                wheel.get((int) (entry.dueTick % WHEEL_SIZE)).add(entry);
+            }
+        }
+        Iterator<Entry> slot = wheel.get((int) (now % WHEEL_SIZE)).iterator();
+        while (slot.hasNext()) {
+            entry = slot.next();
+            if (entry.cancelled) {
+                slot.remove();
+            } else if (entry.dueTick <= now) {
+                slot.remove();
+                due.add(entry);
+            }
+        }
+        dispatch();
+    }
+
+    private void dispatch() {
+        while (!due.isEmpty()) {
+            int current = inFlight.get();
+            if (current >= maxInFlight) {
+                return;
+            }
+            if (inFlight.compareAndSet(current, current + 1)) {
+                try {
+                    executor.execute(worker);
+                } catch (RejectedExecutionException e) {
+                    inFlight.decrementAndGet();
+                    return;
+                }
+            }
+        }
+    }
+
+    private void refresh(Entry entry) {
+        if (entry.cancelled) {
+            return;
+        }
+        try {
+            Key refreshed = keysApi.refreshKey(entry.key, entry.ttl);
+            ErrorMessage error = refreshed.errorMessage();
+            if (error == null) {
+                entry.refreshedAt = System.nanoTime();
+                schedule(entry, jittered(entry.refreshMillis()));
+            } else if (error.errorCode() == ErrorMessage.KEY_NOT_FOUND) {
+                if (entries.remove(entry.key, entry)) {
+                    lost.add(entry.key);
+                }
+            } else {
+                schedule(entry, entry.retryMillis());
+            }
+        } catch (RuntimeException e) {
+            // the key outlives a failed refresh, try again well before it expires
+            schedule(entry, entry.retryMillis());
+        }
+    }
+
+    private long jittered(long millis) {
+        double spread = jitter * (2 * random.nextDouble() - 1);
+        return Math.round(millis * (1 + spread));
+    }
+
+    /**
+     * A key being kept alive.
+     */
+    private static final class Entry {
+        private final String key;
+        private final int ttl;
+        private volatile long refreshedAt = System.nanoTime();
+        private volatile boolean cancelled;
+        private volatile long delayTicks;
+        private long dueTick;
+
+        Entry(String key, int ttl) {
+            this.key = key;
+            this.ttl = ttl;
+        }
+
+        long refreshMillis() {
+            return TimeUnit.SECONDS.toMillis(ttl) / 3;
+        }
+
+        long retryMillis() {
+            return TimeUnit.SECONDS.toMillis(ttl) / 10;
+        }
+
+        long millisLeft(long now) {
+            return TimeUnit.SECONDS.toMillis(ttl) - TimeUnit.NANOSECONDS.toMillis(now - refreshedAt);
+        }
+    }
+
+    public static Builder builder(KeysApi keysApi) {
+        return new Builder(keysApi);
+    }
+
+    public static class Builder {
+        private final KeysApi keysApi;
+        private int maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+        private long tickMillis = DEFAULT_TICK_MILLIS;
+        private double jitter = DEFAULT_JITTER;
+        private Executor executor;
+
+        Builder(KeysApi keysApi) {
+            this.keysApi = keysApi;
+        }
+
+        public Builder maxInFlight(int maxInFlight) {
+            this.maxInFlight = maxInFlight;
+            return this;
+        }
+
+        /**
+         * Length of a timer wheel slot. Refreshes are due to the nearest
+         * tick, so this is also how late a refresh may run.
+         * 
+         * @param tickMillis
+         *            milliseconds per slot
+         * @return this builder
+         */
+        public Builder tick(long tickMillis) {
+            this.tickMillis = tickMillis;
+            return this;
+        }
+
+        /**
+         * Fraction by which each refresh is randomly moved earlier or later,
+         * spreading out keys registered at the same time.
+         * 
+         * @param jitter
+         *            fraction between 0 and 1
+         * @return this builder
+         */
+        public Builder jitter(double jitter) {
+            this.jitter = jitter;
+            return this;
+        }
+
+        /**
+         * Executor refreshes are made on. Defaults to a cached pool owned by
+         * the instance, which never grows past maxInFlight threads.
+         * 
+         * @param executor
+         *            executor to refresh on
+         * @return this builder
+         */
+        public Builder executor(Executor executor) {
+            this.executor = executor;
+            return this;
+        }
+
+        public TtlKeepAlive build() {
+            return new TtlKeepAlive(keysApi, maxInFlight, tickMillis, jitter, executor);
+        }
+    }
+}
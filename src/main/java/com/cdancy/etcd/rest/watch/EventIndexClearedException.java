@@ -0,0 +1,55 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cdancy.etcd.rest.watch;
+
+/**
+ * Thrown to listeners when etcd no longer holds the history for the index a
+ * watch asked for. Changes between lastIndex and resumeIndex may have been
+ * missed, listeners that keep state should reload it.
+ */
+public class EventIndexClearedException extends IllegalStateException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int lastIndex;
+    private final int resumeIndex;
+
+    /**
+     * Create an EventIndexClearedException.
+     * 
+     * @param key
+     *            the key being watched
+     * @param lastIndex
+     *            the index the watch asked for
+     * @param resumeIndex
+     *            the index the watch resumes from
+     */
+    public EventIndexClearedException(String key, int lastIndex, int resumeIndex) {
+        super(String.format("Events for %s between index %d and %d have been cleared", key, lastIndex, resumeIndex));
+        this.lastIndex = lastIndex;
+        this.resumeIndex = resumeIndex;
+    }
+
+    public int lastIndex() {
+        return lastIndex;
+    }
+
+    public int resumeIndex() {
+        return resumeIndex;
+    }
+}
@@ -0,0 +1,376 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cdancy.etcd.rest.watch;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+import static org.jclouds.util.Closeables2.closeQuietly;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.jclouds.logging.Logger;
+
+import com.cdancy.etcd.rest.domain.keys.Key;
+import com.cdancy.etcd.rest.error.ErrorMessage;
+import com.cdancy.etcd.rest.error.EtcdError;
+import com.cdancy.etcd.rest.fallbacks.EtcdFallbacks;
+import com.cdancy.etcd.rest.features.KeysApi;
+import com.cdancy.etcd.rest.parsers.KeyStreamReader;
+import com.google.common.base.Predicates;
+import com.google.common.base.Throwables;
+import com.google.common.collect.Iterables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Continuously watches a key, or everything beneath it when recursive, by
+ * re-issuing {@link KeysApi#waitKey(String, boolean, int)} and tracking the
+ * next index to ask for. Transport errors are retried from the same index so
+ * no change is lost, and events are handed to listeners on a separate
+ * Executor so slow listeners never hold up the long-poll. In stream mode a
+ * single response is kept open and each change is handed on as it arrives.
+ */
+public class KeyWatcher implements Closeable {
+
+    /**
+     * etcd error code returned when the requested index is no longer in its
+     * event history.
+     */
+    public static final int EVENT_INDEX_CLEARED = ErrorMessage.EVENT_INDEX_CLEARED;
+
+    static final long MIN_BACKOFF_MILLIS = 100;
+    static final long MAX_BACKOFF_MILLIS = 10000;
+
+    private static final ThreadFactory WATCH_THREADS = new ThreadFactoryBuilder().setNameFormat("etcd-watch-%d")
+            .setDaemon(true).build();
+    private static final ThreadFactory DISPATCH_THREADS = new ThreadFactoryBuilder()
+            .setNameFormat("etcd-watch-dispatch-%d").setDaemon(true).build();
+
+    private final KeysApi keysApi;
+    private final String key;
+    private final boolean recursive;
+    private final boolean stream;
+    private final Executor executor;
+    private final ExecutorService ownedExecutor;
+    private final Logger logger;
+    private final List<ListenerDispatcher> dispatchers = new CopyOnWriteArrayList<ListenerDispatcher>();
+    private final AtomicBoolean started = new AtomicBoolean(false);
+    private volatile boolean closed;
+    private volatile int nextIndex;
+    private volatile Thread watchThread;
+    private volatile Closeable activeStream;
+
+    KeyWatcher(KeysApi keysApi, String key, boolean recursive, boolean stream, int fromIndex, Executor executor,
+            Logger logger) {
+        this.keysApi = checkNotNull(keysApi, "keysApi");
+        this.key = checkNotNull(key, "key");
+        this.recursive = recursive;
+        this.stream = stream;
+        this.nextIndex = fromIndex;
+        this.logger = logger != null ? logger : Logger.NULL;
+        if (executor != null) {
+            this.executor = executor;
+            this.ownedExecutor = null;
+        } else {
+            this.ownedExecutor = Executors.newSingleThreadExecutor(DISPATCH_THREADS);
+            this.executor = ownedExecutor;
+        }
+    }
+
+    public String key() {
+        return key;
+    }
+
+    public boolean recursive() {
+        return recursive;
+    }
+
+    public boolean stream() {
+        return stream;
+    }
+
+    /**
+     * The index the next long-poll will ask etcd for.
+     * 
+     * @return next index to wait on, 0 if not yet known
+     */
+    public int nextIndex() {
+        return nextIndex;
+    }
+
+    public boolean isRunning() {
+        return started.get() && !closed;
+    }
+
+    public KeyWatcher addListener(WatchListener listener) {
+        dispatchers.add(new ListenerDispatcher(checkNotNull(listener, "listener"), executor, logger));
+        return this;
+    }
+
+    /**
+     * Stop delivering events to listener.
+     * 
+     * @param listener
+     *            the listener to remove
+     * @return this watcher
+     */
+    public KeyWatcher removeListener(WatchListener listener) {
+        for (ListenerDispatcher dispatcher : dispatchers) {
+            if (dispatcher.listener() == listener) {
+                dispatcher.cancel();
+                dispatchers.remove(dispatcher);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Start watching. When no starting index was given the current etcd index
+     * is looked up first, so no change made after this method returns is
+     * missed.
+     * 
+     * @return this watcher
+     */
+    public KeyWatcher start() {
+        checkState(!closed, "watcher for %s has been closed", key);
+        checkState(started.compareAndSet(false, true), "watcher for %s already started", key);
+        if (nextIndex <= 0) {
+            nextIndex = currentIndex();
+        }
+        Thread thread = WATCH_THREADS.newThread(new Runnable() {
+            public void run() {
+                watch();
+            }
+        });
+        watchThread = thread;
+        thread.start();
+        return this;
+    }
+
+    /**
+     * Stop watching. A long-poll already in flight is abandoned, no further
+     * events are delivered once this returns.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        Thread thread = watchThread;
+        if (thread != null) {
+            thread.interrupt();
+        }
+        closeQuietly(activeStream);
+        for (ListenerDispatcher dispatcher : dispatchers) {
+            dispatcher.cancel();
+        }
+        dispatchers.clear();
+        if (ownedExecutor != null) {
+            ownedExecutor.shutdown();
+        }
+    }
+
+    private int currentIndex() {
+        Key current = keysApi.getKey(key);
+        if (current != null && current.etcdIndex() != null) {
+            return current.etcdIndex() + 1;
+        }
+        return 0;
+    }
+
+    private void watch() {
+        long backoff = MIN_BACKOFF_MILLIS;
+        while (!closed) {
+            try {
+                boolean healthy = stream ? streamEvents() : handle(keysApi.waitKey(key, recursive, nextIndex));
+                backoff = healthy ? MIN_BACKOFF_MILLIS : pause(backoff);
+            } catch (Exception e) {
+                if (closed) {
+                    break;
+                }
+                ErrorMessage error = EtcdError.errorMessage(e);
+                if (error != null && error.errorCode() == EVENT_INDEX_CLEARED) {
+                    handle(EtcdFallbacks.createKeyFromErrorMessage(error));
+                } else if (!Iterables.any(Throwables.getCausalChain(e),
+                        Predicates.instanceOf(SocketTimeoutException.class))) {
+                    // an idle long-poll timing out is expected, simply ask again
+                    dispatchError(e);
+                    backoff = pause(backoff);
+                }
+            }
+        }
+    }
+
+    /**
+     * Read events off of a single streaming response until etcd ends it.
+     * 
+     * @return false if the stream failed or ended without handing back a
+     *         single event
+     */
+    private boolean streamEvents() throws IOException {
+        KeyStreamReader reader = new KeyStreamReader(keysApi.streamKey(key, recursive, nextIndex));
+        activeStream = reader;
+        try {
+            boolean healthy = true;
+            int received = 0;
+            Key event;
+            while (healthy && !closed && (event = reader.next()) != null) {
+                healthy = handle(event);
+                received++;
+            }
+            return healthy && received > 0;
+        } finally {
+            activeStream = null;
+            closeQuietly(reader);
+        }
+    }
+
+    /**
+     * Advance the next index past event and hand it to listeners.
+     * 
+     * @return false if etcd handed back an error which warrants backing off
+     */
+    private boolean handle(Key event) {
+        if (closed || event == null) {
+            return true;
+        }
+        ErrorMessage error = event.errorMessage();
+        if (error == null) {
+            if (event.node() != null) {
+                nextIndex = event.node().modifiedIndex() + 1;
+            }
+            for (ListenerDispatcher dispatcher : dispatchers) {
+                dispatcher.dispatch(event);
+            }
+            return true;
+        } else if (error.errorCode() == EVENT_INDEX_CLEARED) {
+            int resumeIndex = error.index() + 1;
+            dispatchError(new EventIndexClearedException(key, nextIndex, resumeIndex));
+            nextIndex = resumeIndex;
+            return true;
+        } else {
+            dispatchError(new IllegalStateException(error.message()));
+            return false;
+        }
+    }
+
+    private void dispatchError(Throwable error) {
+        for (ListenerDispatcher dispatcher : dispatchers) {
+            dispatcher.dispatchError(error);
+        }
+    }
+
+    private long pause(long backoff) {
+        try {
+            TimeUnit.MILLISECONDS.sleep(backoff);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            closed = true;
+        }
+        return Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+    }
+
+    public static Builder builder(KeysApi keysApi, String key) {
+        return new Builder(keysApi, key);
+    }
+
+    public static class Builder {
+        private final KeysApi keysApi;
+        private final String key;
+        private boolean recursive;
+        private boolean stream;
+        private int fromIndex;
+        private Executor executor;
+        private Logger logger;
+
+        Builder(KeysApi keysApi, String key) {
+            this.keysApi = keysApi;
+            this.key = key;
+        }
+
+        public Builder recursive(boolean recursive) {
+            this.recursive = recursive;
+            return this;
+        }
+
+        /**
+         * Receive changes over a single streaming response, see
+         * {@link KeysApi#streamKey(String, boolean, int)}, instead of issuing
+         * a long-poll per change. The stream is re-opened from the next index
+         * whenever etcd ends it.
+         * 
+         * @param stream
+         *            whether to stream changes
+         * @return this builder
+         */
+        public Builder stream(boolean stream) {
+            this.stream = stream;
+            return this;
+        }
+
+        /**
+         * Index of the first change to hand back. Defaults to the current etcd
+         * index at the time the watcher is started.
+         * 
+         * @param fromIndex
+         *            first index to watch from
+         * @return this builder
+         */
+        public Builder fromIndex(int fromIndex) {
+            this.fromIndex = fromIndex;
+            return this;
+        }
+
+        /**
+         * Executor listeners are called on. Defaults to a single thread owned
+         * by the watcher.
+         * 
+         * @param executor
+         *            executor to deliver events on
+         * @return this builder
+         */
+        public Builder executor(Executor executor) {
+            this.executor = executor;
+            return this;
+        }
+
+        /**
+         * Logger told of listeners failing on an event, which are then handed
+         * the next one regardless. Defaults to Logger.NULL.
+         * 
+         * @param logger
+         *            logger to report failing listeners to
+         * @return this builder
+         */
+        public Builder logger(Logger logger) {
+            this.logger = logger;
+            return this;
+        }
+
+        public KeyWatcher build() {
+            return new KeyWatcher(keysApi, key, recursive, stream, fromIndex, executor, logger);
+        }
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cdancy.etcd.rest.watch;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jclouds.logging.Logger;
+
+import com.cdancy.etcd.rest.domain.keys.Key;
+
+/**
+ * Delivers events to a single listener on an Executor, one at a time and in
+ * the order they were handed in, so the watching thread never waits on the
+ * listener. Events are queued up to capacity, past that the OverflowPolicy
+ * decides what gives. Errors are always queued and never dropped to make
+ * room. A listener failing is reported to the Logger, and delivery carries on
+ * with the next event.
+ */
+final class ListenerDispatcher implements Runnable {
+
+    private final WatchListener listener;
+    private final Executor executor;
+    private final int capacity;
+    private final OverflowPolicy overflowPolicy;
+    private final Logger logger;
+    private final Queue<Runnable> pending = new ConcurrentLinkedQueue<Runnable>();
+    private final AtomicInteger size = new AtomicInteger(0);
+    private final AtomicLong dropped = new AtomicLong(0);
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+    private volatile boolean disconnected;
+    private volatile boolean cancelled;
+
+    ListenerDispatcher(WatchListener listener, Executor executor, Logger logger) {
+        this(listener, executor, Integer.MAX_VALUE, OverflowPolicy.DROP_OLDEST, logger);
+    }
+
+    ListenerDispatcher(WatchListener listener, Executor executor, int capacity, OverflowPolicy overflowPolicy,
+            Logger logger) {
+        this.listener = listener;
+        this.executor = executor;
+        this.capacity = capacity;
+        this.overflowPolicy = overflowPolicy;
+        this.logger = logger;
+    }
+
+    WatchListener listener() {
+        return listener;
+    }
+
+    long dropped() {
+        return dropped.get();
+    }
+
+    boolean disconnected() {
+        return disconnected;
+    }
+
+    /**
+     * Queue event for delivery. Only ever called from the single watching
+     * thread.
+     * 
+     * @return false if the listener has been disconnected
+     */
+    boolean dispatch(Key event) {
+        if (disconnected) {
+            return false;
+        }
+        if (size.get() >= capacity) {
+            switch (overflowPolicy) {
+            case DROP_NEWEST:
+                dropped.incrementAndGet();
+                return true;
+            case DISCONNECT:
+                disconnected = true;
+                dropped.addAndGet(size.getAndSet(0));
+                pending.clear();
+                dispatchError(new IllegalStateException(
+                        "Listener fell more than " + capacity + " events behind and has been disconnected"));
+                return false;
+            default:
+                dropOldestEvent();
+            }
+        }
+        enqueue(new EventDelivery(event));
+        return true;
+    }
+
+    /**
+     * Make room by dropping the oldest queued event, passing over errors.
+     */
+    private void dropOldestEvent() {
+        for (Runnable delivery : pending) {
+            if (delivery instanceof EventDelivery && pending.remove(delivery)) {
+                size.decrementAndGet();
+                dropped.incrementAndGet();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Drop anything still queued and deliver nothing further.
+     */
+    void cancel() {
+        cancelled = true;
+        pending.clear();
+    }
+
+    void dispatchError(final Throwable error) {
+        enqueue(new Runnable() {
+            public void run() {
+                listener.onError(error);
+            }
+        });
+    }
+
+    private void enqueue(Runnable delivery) {
+        if (cancelled) {
+            return;
+        }
+        size.incrementAndGet();
+        pending.add(delivery);
+        schedule();
+    }
+
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            try {
+                executor.execute(this);
+            } catch (RejectedExecutionException e) {
+                // executor has been shut down, nothing left to deliver to
+                scheduled.set(false);
+                pending.clear();
+                size.set(0);
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            Runnable delivery;
+            while (!cancelled && (delivery = pending.poll()) != null) {
+                size.decrementAndGet();
+                try {
+                    delivery.run();
+                } catch (RuntimeException e) {
+                    // a misbehaving listener must not stop delivery of later events
+                    logger.warn(e, "Listener %s failed, delivering its next event", listener);
+                }
+            }
+        } finally {
+            scheduled.set(false);
+            if (!cancelled && !pending.isEmpty()) {
+                schedule();
+            }
+        }
+    }
+
+    /**
+     * Hands a single event to the listener.
+     */
+    private final class EventDelivery implements Runnable {
+        private final Key event;
+
+        EventDelivery(Key event) {
+            this.event = event;
+        }
+
+        @Override
+        public void run() {
+            listener.onEvent(event);
+        }
+    }
+}
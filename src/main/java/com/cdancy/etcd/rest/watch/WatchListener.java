@@ -0,0 +1,44 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cdancy.etcd.rest.watch;
+
+import com.cdancy.etcd.rest.domain.keys.Key;
+
+/**
+ * Receives the changes observed by a KeyWatcher. Callbacks for a given
+ * listener are never invoked concurrently and arrive in etcd index order.
+ */
+public interface WatchListener {
+
+    /**
+     * Called for every change observed on the watched key.
+     * 
+     * @param event
+     *            the change as handed back by etcd
+     */
+    void onEvent(Key event);
+
+    /**
+     * Called when the watch hits a problem. The watch keeps going after this
+     * returns.
+     * 
+     * @param error
+     *            the problem encountered
+     */
+    void onError(Throwable error);
+}
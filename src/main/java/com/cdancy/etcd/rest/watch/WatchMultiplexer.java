@@ -0,0 +1,381 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cdancy.etcd.rest.watch;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+import java.io.Closeable;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.jclouds.logging.Logger;
+
+import com.cdancy.etcd.rest.domain.keys.Key;
+import com.cdancy.etcd.rest.features.KeysApi;
+import com.google.common.base.Splitter;
+import com.google.common.collect.Iterables;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+/**
+ * Shares one recursive long-poll among every listener registered beneath the
+ * same prefix. The prefix is made up of the first prefixDepth segments of the
+ * registered key, so with the default depth of 1 watches on /services/a and
+ * /services/b/c both ride on a single watch of /services. Each listener has
+ * its own bounded queue so a slow one cannot hold up the shared watch.
+ */
+public class WatchMultiplexer implements Closeable {
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+
+    private static final ThreadFactory DISPATCH_THREADS = new ThreadFactoryBuilder()
+            .setNameFormat("etcd-watch-multiplexer-%d").setDaemon(true).build();
+
+    private final KeysApi keysApi;
+    private final int prefixDepth;
+    private final boolean stream;
+    private final int queueCapacity;
+    private final OverflowPolicy overflowPolicy;
+    private final Executor executor;
+    private final ExecutorService ownedExecutor;
+    private final Logger logger;
+    private final Map<String, PrefixWatch> watches = new HashMap<String, PrefixWatch>();
+    private boolean closed;
+
+    WatchMultiplexer(KeysApi keysApi, int prefixDepth, boolean stream, int queueCapacity,
+            OverflowPolicy overflowPolicy, Executor executor, Logger logger) {
+        checkArgument(prefixDepth >= 0, "prefixDepth must not be negative");
+        checkArgument(queueCapacity > 0, "queueCapacity must be positive");
+        this.keysApi = checkNotNull(keysApi, "keysApi");
+        this.prefixDepth = prefixDepth;
+        this.stream = stream;
+        this.queueCapacity = queueCapacity;
+        this.overflowPolicy = checkNotNull(overflowPolicy, "overflowPolicy");
+        this.logger = logger != null ? logger : Logger.NULL;
+        if (executor != null) {
+            this.executor = executor;
+            this.ownedExecutor = null;
+        } else {
+            this.ownedExecutor = Executors.newCachedThreadPool(DISPATCH_THREADS);
+            this.executor = ownedExecutor;
+        }
+    }
+
+    /**
+     * Deliver changes made to exactly key.
+     * 
+     * @param key
+     *            the key to watch
+     * @param listener
+     *            the listener to deliver changes to
+     * @return registration which stops delivery when closed
+     */
+    public WatchRegistration watch(String key, WatchListener listener) {
+        return register(key, false, listener, queueCapacity, overflowPolicy);
+    }
+
+    /**
+     * Deliver changes made to prefix or any key beneath it.
+     * 
+     * @param prefix
+     *            the directory to watch
+     * @param listener
+     *            the listener to deliver changes to
+     * @return registration which stops delivery when closed
+     */
+    public WatchRegistration watchPrefix(String prefix, WatchListener listener) {
+        return register(prefix, true, listener, queueCapacity, overflowPolicy);
+    }
+
+    /**
+     * Deliver changes made to key, or anything beneath it when prefix is true,
+     * with a queue capacity and OverflowPolicy of its own.
+     * 
+     * @param key
+     *            the key or directory to watch
+     * @param prefix
+     *            whether to include keys beneath key
+     * @param listener
+     *            the listener to deliver changes to
+     * @param capacity
+     *            number of events that may queue up for listener
+     * @param policy
+     *            what to do once capacity is reached
+     * @return registration which stops delivery when closed
+     */
+    public WatchRegistration register(String key, boolean prefix, WatchListener listener, int capacity,
+            OverflowPolicy policy) {
+        checkArgument(capacity > 0, "capacity must be positive");
+        String normalized = normalize(checkNotNull(key, "key"));
+        WatchRegistration registration = new WatchRegistration(this, normalized, prefix,
+                new ListenerDispatcher(checkNotNull(listener, "listener"), executor, capacity,
+                        checkNotNull(policy, "policy"), logger));
+        String watchedPrefix = watchedPrefix(normalized);
+        PrefixWatch watch;
+        boolean created = false;
+        synchronized (this) {
+            checkState(!closed, "multiplexer has been closed");
+            watch = watches.get(watchedPrefix);
+            if (watch == null) {
+                watch = new PrefixWatch(watchedPrefix);
+                watches.put(watchedPrefix, watch);
+                created = true;
+            }
+            watch.registrations.add(registration);
+        }
+        // starting looks up the current index, which is done without holding up other registrations
+        if (created) {
+            watch.start();
+        } else {
+            watch.awaitStarted();
+        }
+        return registration;
+    }
+
+    /**
+     * The prefixes currently being long-polled.
+     * 
+     * @return number of shared watches in flight
+     */
+    public synchronized int activeWatches() {
+        return watches.size();
+    }
+
+    void unregister(WatchRegistration registration) {
+        registration.dispatcher().cancel();
+        detach(registration);
+    }
+
+    /**
+     * Forget watch should it fail to start, unless it was replaced already.
+     */
+    private synchronized void abandon(PrefixWatch watch) {
+        if (watches.get(watch.prefix) == watch) {
+            watches.remove(watch.prefix);
+        }
+    }
+
+    /**
+     * Stop matching events against registration, leaving anything already
+     * queued for it to be delivered.
+     */
+    private synchronized void detach(WatchRegistration registration) {
+        PrefixWatch watch = watches.get(watchedPrefix(registration.key()));
+        if (watch != null && watch.registrations.remove(registration) && watch.registrations.isEmpty()) {
+            watches.remove(watch.prefix);
+            watch.watcher.close();
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+        for (PrefixWatch watch : watches.values()) {
+            watch.watcher.close();
+        }
+        watches.clear();
+        if (ownedExecutor != null) {
+            ownedExecutor.shutdown();
+        }
+    }
+
+    private String watchedPrefix(String key) {
+        StringBuilder prefix = new StringBuilder();
+        for (String segment : Iterables.limit(Splitter.on('/').omitEmptyStrings().split(key), prefixDepth)) {
+            prefix.append('/').append(segment);
+        }
+        return prefix.length() > 0 ? prefix.toString() : "/";
+    }
+
+    /**
+     * Put key in the form etcd hands keys back in: a leading slash and no
+     * trailing one.
+     * 
+     * @param key
+     *            the key to normalize
+     * @return normalized key
+     */
+    public static String normalize(String key) {
+        String normalized = key.startsWith("/") ? key : "/" + key;
+        while (normalized.length() > 1 && normalized.endsWith("/")) {
+            normalized = normalized.substring(0, normalized.length() - 1);
+        }
+        return normalized;
+    }
+
+    /**
+     * A single recursive watch fanned out to every registration beneath it.
+     * Runs on the watching thread and only matches keys and queues events.
+     */
+    private final class PrefixWatch implements WatchListener {
+        private final String prefix;
+        private final List<WatchRegistration> registrations = new CopyOnWriteArrayList<WatchRegistration>();
+        private final KeyWatcher watcher;
+        private final CountDownLatch started = new CountDownLatch(1);
+        private volatile RuntimeException failure;
+
+        PrefixWatch(String prefix) {
+            this.prefix = prefix;
+            this.watcher = KeyWatcher.builder(keysApi, prefix.substring(1)).recursive(true).stream(stream)
+                    .executor(MoreExecutors.directExecutor()).logger(logger).build().addListener(this);
+        }
+
+        /**
+         * Start the watch, letting registrations which came in meanwhile
+         * through once it is running.
+         */
+        void start() {
+            try {
+                watcher.start();
+            } catch (RuntimeException e) {
+                failure = e;
+                abandon(this);
+                throw e;
+            } finally {
+                started.countDown();
+            }
+        }
+
+        /**
+         * Wait for the registration which created this watch to have started
+         * it, so that no change made after registering is missed.
+         */
+        void awaitStarted() {
+            Uninterruptibles.awaitUninterruptibly(started);
+            if (failure != null) {
+                throw new IllegalStateException("Failed to start watching " + prefix, failure);
+            }
+        }
+
+        @Override
+        public void onEvent(Key event) {
+            String eventKey = event.node() != null ? event.node().key() : null;
+            if (eventKey == null) {
+                return;
+            }
+            for (WatchRegistration registration : registrations) {
+                if (registration.matches(eventKey) && !registration.dispatcher().dispatch(event)) {
+                    detach(registration);
+                }
+            }
+        }
+
+        @Override
+        public void onError(Throwable error) {
+            for (WatchRegistration registration : registrations) {
+                registration.dispatcher().dispatchError(error);
+            }
+        }
+    }
+
+    public static Builder builder(KeysApi keysApi) {
+        return new Builder(keysApi);
+    }
+
+    public static class Builder {
+        private final KeysApi keysApi;
+        private int prefixDepth = 1;
+        private boolean stream;
+        private int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+        private OverflowPolicy overflowPolicy = OverflowPolicy.DROP_OLDEST;
+        private Executor executor;
+        private Logger logger;
+
+        Builder(KeysApi keysApi) {
+            this.keysApi = keysApi;
+        }
+
+        /**
+         * Number of leading key segments registrations are grouped by. 0 puts
+         * every registration on a single watch of the root.
+         * 
+         * @param prefixDepth
+         *            segments making up the shared prefix
+         * @return this builder
+         */
+        public Builder prefixDepth(int prefixDepth) {
+            this.prefixDepth = prefixDepth;
+            return this;
+        }
+
+        /**
+         * Have each shared watch receive changes over a single streaming
+         * response rather than a long-poll per change.
+         * 
+         * @param stream
+         *            whether to stream changes
+         * @return this builder
+         */
+        public Builder stream(boolean stream) {
+            this.stream = stream;
+            return this;
+        }
+
+        public Builder queueCapacity(int queueCapacity) {
+            this.queueCapacity = queueCapacity;
+            return this;
+        }
+
+        public Builder overflowPolicy(OverflowPolicy overflowPolicy) {
+            this.overflowPolicy = overflowPolicy;
+            return this;
+        }
+
+        /**
+         * Executor listeners are called on. Defaults to a cached pool owned by
+         * the multiplexer, so a blocked listener only ever ties up its own
+         * thread.
+         * 
+         * @param executor
+         *            executor to deliver events on
+         * @return this builder
+         */
+        public Builder executor(Executor executor) {
+            this.executor = executor;
+            return this;
+        }
+
+        /**
+         * Logger told of listeners failing on an event, which are then handed
+         * the next one regardless. Defaults to Logger.NULL.
+         * 
+         * @param logger
+         *            logger to report failing listeners to
+         * @return this builder
+         */
+        public Builder logger(Logger logger) {
+            this.logger = logger;
+            return this;
+        }
+
+        public WatchMultiplexer build() {
+            return new WatchMultiplexer(keysApi, prefixDepth, stream, queueCapacity, overflowPolicy, executor,
+                    logger);
+        }
+    }
+}
@@ -0,0 +1,325 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cdancy.etcd.rest.watch;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.net.SocketTimeoutException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jclouds.logging.Logger;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import com.cdancy.etcd.rest.domain.keys.Key;
+import com.cdancy.etcd.rest.error.ErrorMessage;
+import com.cdancy.etcd.rest.error.EtcdError;
+import com.cdancy.etcd.rest.fallbacks.EtcdFallbacks;
+import com.cdancy.etcd.rest.features.KeysApi;
+import com.google.common.base.Predicates;
+import com.google.common.base.Throwables;
+import com.google.common.collect.Iterables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Publishes the changes made to a key, or everything beneath it when
+ * recursive, as a Reactive Streams {@link Publisher}. Every subscriber gets a
+ * watch of its own which issues {@link KeysApi#waitKey(String, boolean, int)}
+ * only while it has outstanding demand, picking up from the index after the
+ * last change it was handed, so a slow subscriber holds up nothing but its own
+ * long-poll and misses no change for as long as etcd keeps its history.
+ * Transport errors are retried from the same index. Should etcd have cleared
+ * the history the watch needs, the subscriber is failed with an
+ * {@link EventIndexClearedException} telling where a new subscription can
+ * resume from.
+ * 
+ * <p>
+ * Unless an executor is given, watches run on a pool shared by every
+ * publisher. It holds a daemon thread for each subscription with demand,
+ * lets threads go after a minute idle and is never shut down. Give an
+ * executor of your own to bound or manage those threads.
+ * </p>
+ */
+public class WatchPublisher implements Publisher<Key> {
+
+    private static final ThreadFactory PUBLISHER_THREADS = new ThreadFactoryBuilder()
+            .setNameFormat("etcd-watch-publisher-%d").setDaemon(true).build();
+    private static final ExecutorService DEFAULT_EXECUTOR = Executors.newCachedThreadPool(PUBLISHER_THREADS);
+
+    private final KeysApi keysApi;
+    private final String key;
+    private final boolean recursive;
+    private final int fromIndex;
+    private final Executor executor;
+    private final Logger logger;
+
+    WatchPublisher(KeysApi keysApi, String key, boolean recursive, int fromIndex, Executor executor, Logger logger) {
+        this.keysApi = checkNotNull(keysApi, "keysApi");
+        this.key = checkNotNull(key, "key");
+        this.recursive = recursive;
+        this.fromIndex = fromIndex;
+        this.executor = executor != null ? executor : DEFAULT_EXECUTOR;
+        this.logger = logger != null ? logger : Logger.NULL;
+    }
+
+    public String key() {
+        return key;
+    }
+
+    public boolean recursive() {
+        return recursive;
+    }
+
+    /**
+     * Start a watch for subscriber. Without a starting index the watch begins
+     * after the etcd index current when it is set up, which happens right away
+     * rather than on first request.
+     * 
+     * @param subscriber
+     *            the subscriber to hand changes to
+     */
+    @Override
+    public void subscribe(Subscriber<? super Key> subscriber) {
+        checkNotNull(subscriber, "subscriber");
+        WatchSubscription subscription = new WatchSubscription(subscriber);
+        try {
+            subscriber.onSubscribe(subscription);
+        } catch (RuntimeException e) {
+            subscription.cancel();
+            return;
+        }
+        subscription.subscribed();
+    }
+
+    /**
+     * The watch of a single subscriber. Long-polls are made one at a time by
+     * whichever executor thread currently drains it, which is also the only
+     * thread signalling the subscriber.
+     */
+    private final class WatchSubscription implements Subscription, Runnable {
+        private final AtomicLong demand = new AtomicLong();
+        private final AtomicBoolean draining = new AtomicBoolean();
+        private volatile Subscriber<? super Key> subscriber;
+        private volatile boolean ready;
+        private volatile boolean cancelled;
+        private volatile Throwable pendingError;
+        private int nextIndex = fromIndex;
+        private boolean indexKnown = fromIndex > 0;
+
+        WatchSubscription(Subscriber<? super Key> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        void subscribed() {
+            ready = true;
+            drain();
+        }
+
+        @Override
+        public void request(long count) {
+            if (count <= 0) {
+                // signalled by the draining thread so as not to overlap onNext
+                pendingError = new IllegalArgumentException("requested " + count + " changes, must be positive");
+                drain();
+                return;
+            }
+            long current;
+            long next;
+            do {
+                current = demand.get();
+                next = current + count < 0 ? Long.MAX_VALUE : current + count;
+            } while (!demand.compareAndSet(current, next));
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            subscriber = null;
+        }
+
+        private void drain() {
+            if (ready && !cancelled && draining.compareAndSet(false, true)) {
+                executor.execute(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                long backoff = KeyWatcher.MIN_BACKOFF_MILLIS;
+                while (!cancelled && (pendingError != null || !indexKnown || demand.get() > 0)) {
+                    try {
+                        if (pendingError != null) {
+                            fail(pendingError);
+                        } else if (!indexKnown) {
+                            nextIndex = currentIndex();
+                            indexKnown = true;
+                        } else {
+                            publish(keysApi.waitKey(key, recursive, nextIndex));
+                        }
+                        backoff = KeyWatcher.MIN_BACKOFF_MILLIS;
+                    } catch (Exception e) {
+                        ErrorMessage error = EtcdError.errorMessage(e);
+                        if (error != null && error.errorCode() == ErrorMessage.EVENT_INDEX_CLEARED) {
+                            publish(EtcdFallbacks.createKeyFromErrorMessage(error));
+                        } else if (!Iterables.any(Throwables.getCausalChain(e),
+                                Predicates.instanceOf(SocketTimeoutException.class))) {
+                            // an idle long-poll timing out is expected, anything else waits a while
+                            backoff = pause(backoff);
+                        }
+                    }
+                }
+            } finally {
+                draining.set(false);
+            }
+            // demand may have come in after the loop gave up on it
+            if (!cancelled && (pendingError != null || demand.get() > 0)) {
+                drain();
+            }
+        }
+
+        private int currentIndex() {
+            Key current = keysApi.getKey(key);
+            return current != null && current.etcdIndex() != null ? current.etcdIndex() + 1 : 0;
+        }
+
+        /**
+         * Hand event to the subscriber and move past it, or fail the
+         * subscriber with the error etcd handed back instead.
+         */
+        private void publish(Key event) {
+            ErrorMessage error = event.errorMessage();
+            if (error != null) {
+                fail(error.errorCode() == ErrorMessage.EVENT_INDEX_CLEARED
+                        ? new EventIndexClearedException(key, nextIndex, error.index() + 1)
+                        : new IllegalStateException(error.message()));
+                return;
+            }
+            Subscriber<? super Key> target = subscriber;
+            if (cancelled || target == null || event.node() == null) {
+                return;
+            }
+            nextIndex = event.node().modifiedIndex() + 1;
+            if (demand.get() != Long.MAX_VALUE) {
+                demand.decrementAndGet();
+            }
+            try {
+                target.onNext(event);
+            } catch (RuntimeException e) {
+                logger.warn(e, "Subscriber %s of %s failed in onNext, cancelling its watch", target, key);
+                cancel();
+            }
+        }
+
+        private void fail(Throwable error) {
+            Subscriber<? super Key> target = subscriber;
+            cancel();
+            if (target != null) {
+                target.onError(error);
+            }
+        }
+
+        private long pause(long backoff) {
+            try {
+                TimeUnit.MILLISECONDS.sleep(backoff);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                cancel();
+            }
+            return Math.min(backoff * 2, KeyWatcher.MAX_BACKOFF_MILLIS);
+        }
+    }
+
+    public static Builder builder(KeysApi keysApi, String key) {
+        return new Builder(keysApi, key);
+    }
+
+    public static class Builder {
+        private final KeysApi keysApi;
+        private final String key;
+        private boolean recursive;
+        private int fromIndex;
+        private Executor executor;
+        private Logger logger;
+
+        Builder(KeysApi keysApi, String key) {
+            this.keysApi = keysApi;
+            this.key = key;
+        }
+
+        public Builder recursive(boolean recursive) {
+            this.recursive = recursive;
+            return this;
+        }
+
+        /**
+         * Index of the first change to hand each subscriber, such as the
+         * resumeIndex of an {@link EventIndexClearedException}. Defaults to
+         * the etcd index current when a subscriber subscribes.
+         * 
+         * @param fromIndex
+         *            first index to watch from
+         * @return this builder
+         */
+        public Builder fromIndex(int fromIndex) {
+            this.fromIndex = fromIndex;
+            return this;
+        }
+
+        /**
+         * Executor long-polls are made and subscribers signalled on. A
+         * subscription only holds one of its threads while it has demand.
+         * Defaults to a pool of daemon threads shared by every publisher,
+         * which grows with the subscriptions that have demand and is never
+         * shut down.
+         * 
+         * @param executor
+         *            executor to watch on
+         * @return this builder
+         */
+        public Builder executor(Executor executor) {
+            this.executor = executor;
+            return this;
+        }
+
+        /**
+         * Logger told of subscribers failing in onNext, whose watch is then
+         * cancelled. Defaults to Logger.NULL.
+         * 
+         * @param logger
+         *            logger to report failing subscribers to
+         * @return this builder
+         */
+        public Builder logger(Logger logger) {
+            this.logger = logger;
+            return this;
+        }
+
+        public WatchPublisher build() {
+            return new WatchPublisher(keysApi, key, recursive, fromIndex, executor, logger);
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cdancy.etcd.rest.watch;
+
+import java.io.Closeable;
+
+/**
+ * Handle to a listener registered with a WatchMultiplexer. Closing it stops
+ * delivery to the listener.
+ */
+public final class WatchRegistration implements Closeable {
+
+    private final WatchMultiplexer multiplexer;
+    private final String key;
+    private final boolean prefix;
+    private final ListenerDispatcher dispatcher;
+
+    WatchRegistration(WatchMultiplexer multiplexer, String key, boolean prefix, ListenerDispatcher dispatcher) {
+        this.multiplexer = multiplexer;
+        this.key = key;
+        this.prefix = prefix;
+        this.dispatcher = dispatcher;
+    }
+
+    public String key() {
+        return key;
+    }
+
+    public boolean prefix() {
+        return prefix;
+    }
+
+    public WatchListener listener() {
+        return dispatcher.listener();
+    }
+
+    /**
+     * Number of events this listener lost to its OverflowPolicy.
+     * 
+     * @return count of dropped events
+     */
+    public long dropped() {
+        return dispatcher.dropped();
+    }
+
+    /**
+     * Whether the listener was disconnected for falling too far behind.
+     * 
+     * @return true if no longer receiving events
+     */
+    public boolean disconnected() {
+        return dispatcher.disconnected();
+    }
+
+    boolean matches(String eventKey) {
+        if (prefix) {
+            return eventKey.equals(key) || key.equals("/") || eventKey.startsWith(key + "/");
+        }
+        return eventKey.equals(key);
+    }
+
+    ListenerDispatcher dispatcher() {
+        return dispatcher;
+    }
+
+    @Override
+    public void close() {
+        multiplexer.unregister(this);
+    }
+}
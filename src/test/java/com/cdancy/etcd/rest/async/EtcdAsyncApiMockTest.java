@@ -0,0 +1,126 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cdancy.etcd.rest.async;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.jclouds.Constants;
+import org.testng.annotations.Test;
+
+import com.cdancy.etcd.rest.EtcdClient;
+import com.cdancy.etcd.rest.domain.keys.Key;
+import com.cdancy.etcd.rest.domain.miscellaneous.Version;
+import com.cdancy.etcd.rest.error.ErrorMessage;
+import com.cdancy.etcd.rest.error.EtcdError;
+import com.cdancy.etcd.rest.internal.BaseEtcdMockTest;
+import com.cdancy.etcd.rest.internal.KeyStoreDispatcher;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+
+/**
+ * Mock tests for {@link EtcdAsyncApi}.
+ */
+@Test(groups = "unit", testName = "EtcdAsyncApiMockTest")
+public class EtcdAsyncApiMockTest extends BaseEtcdMockTest {
+
+    public void testFanOutOnUserThreads() throws Exception {
+        MockWebServer server = mockEtcdJavaWebServer();
+        KeyStoreDispatcher store = new KeyStoreDispatcher();
+        server.setDispatcher(store);
+        Properties overrides = setupProperties();
+        overrides.setProperty(Constants.PROPERTY_USER_THREADS, "4");
+        EtcdAsyncApi asyncApi = EtcdClient.createAsyncApi(server.getUrl("/").toString(), "", overrides);
+        try {
+            List<ListenableFuture<Key>> creates = new ArrayList<ListenableFuture<Key>>();
+            for (int i = 0; i < 20; i++) {
+                creates.add(asyncApi.keysApi().createKey("fan-out/" + i, "value-" + i));
+            }
+            for (Key created : Futures.allAsList(creates).get(60, TimeUnit.SECONDS)) {
+                assertNull(created.errorMessage());
+            }
+            assertEquals(store.keys("fan-out").size(), 20);
+
+            Key listed = asyncApi.keysApi().listDir("fan-out", false).get(10, TimeUnit.SECONDS);
+            assertEquals(listed.node().nodes().size(), 20);
+            Key missing = asyncApi.keysApi().getKey("fan-out/missing").get(10, TimeUnit.SECONDS);
+            assertEquals(missing.errorMessage().errorCode(), ErrorMessage.KEY_NOT_FOUND);
+        } finally {
+            asyncApi.close();
+            server.shutdown();
+        }
+    }
+
+    public void testUnexpectedErrorFailsFuture() throws Exception {
+        MockWebServer server = mockEtcdJavaWebServer();
+
+        server.enqueue(new MockResponse().setBody(
+                "{\"errorCode\":209,\"message\":\"Invalid field\",\"cause\":\"invalid value for quorum\",\"index\":12}")
+                .setResponseCode(400));
+        EtcdAsyncApi asyncApi = AsyncApis.create(api(server.getUrl("/")), MoreExecutors.newDirectExecutorService());
+        try {
+            ListenableFuture<Key> future = asyncApi.keysApi().getKey("hello");
+            assertTrue(future.isDone());
+            future.get();
+            fail("expected ExecutionException");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause()).isInstanceOf(IllegalArgumentException.class);
+            ErrorMessage error = EtcdError.errorMessage(e.getCause());
+            assertNotNull(error);
+            assertEquals(error.errorCode(), 209);
+        } finally {
+            asyncApi.close();
+            server.shutdown();
+        }
+    }
+
+    public void testCallsMatchSyncApi() throws Exception {
+        MockWebServer server = mockEtcdJavaWebServer();
+
+        server.enqueue(new MockResponse().setBody(payloadFromResource("/version.json")).setResponseCode(200));
+        server.enqueue(new MockResponse().setBody(payloadFromResource("/health.json")).setResponseCode(200));
+        EtcdAsyncApi asyncApi = AsyncApis.create(api(server.getUrl("/")), MoreExecutors.newDirectExecutorService());
+        try {
+            Version version = asyncApi.miscellaneousApi().version().get();
+            assertNotNull(version.etcdServer());
+            assertTrue(asyncApi.miscellaneousApi().health().get());
+            assertSent(server, "GET", "/version");
+            assertSent(server, "GET", "/health");
+
+            assertTrue(asyncApi.keysApi() == asyncApi.keysApi());
+            assertTrue(asyncApi.keysApi().equals(asyncApi.keysApi()));
+            assertThat(asyncApi.keysApi().toString()).startsWith("KeysAsyncApi@");
+        } finally {
+            asyncApi.close();
+            server.shutdown();
+        }
+    }
+}
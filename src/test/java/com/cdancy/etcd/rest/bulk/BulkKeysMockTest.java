@@ -0,0 +1,192 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cdancy.etcd.rest.bulk;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.Test;
+
+import com.cdancy.etcd.rest.EtcdApi;
+import com.cdancy.etcd.rest.domain.keys.Key;
+import com.cdancy.etcd.rest.error.ErrorMessage;
+import com.cdancy.etcd.rest.internal.BaseEtcdMockTest;
+import com.cdancy.etcd.rest.internal.KeyEchoDispatcher;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+
+/**
+ * Mock tests for the {@link com.cdancy.etcd.rest.bulk.BulkKeys} class.
+ */
+@Test(groups = "unit", testName = "BulkKeysMockTest")
+public class BulkKeysMockTest extends BaseEtcdMockTest {
+
+    public void testCreateKeys() throws Exception {
+        KeyEchoDispatcher dispatcher = new KeyEchoDispatcher(50);
+        MockWebServer server = mockEtcdJavaWebServer(dispatcher);
+
+        EtcdApi etcdApi = api(server.getUrl("/"));
+        BulkKeys bulk = BulkKeys.builder(etcdApi.keysApi()).maxInFlight(4).build();
+        try {
+            Map<String, String> values = new LinkedHashMap<String, String>();
+            for (int i = 0; i < 20; i++) {
+                values.put("config/key" + i, "value" + i);
+            }
+            values.put("broken", "value");
+            Map<String, Key> results = bulk.createKeys(values);
+            assertThat(results.keySet()).containsExactlyElementsOf(values.keySet());
+            for (int i = 0; i < 20; i++) {
+                Key key = results.get("config/key" + i);
+                assertNull(key.errorMessage());
+                assertTrue(key.action().equals("set"));
+                assertTrue(key.node().value().equals("value" + i));
+            }
+            assertTrue(results.get("broken").errorMessage().message().contains("boom"));
+            assertTrue(dispatcher.maxInFlight() > 1);
+            assertTrue(dispatcher.maxInFlight() <= 4);
+        } finally {
+            bulk.close();
+            etcdApi.close();
+            server.shutdown();
+        }
+    }
+
+    public void testCreateKeysWithTTL() throws Exception {
+        KeyEchoDispatcher dispatcher = new KeyEchoDispatcher(0);
+        MockWebServer server = mockEtcdJavaWebServer(dispatcher);
+
+        EtcdApi etcdApi = api(server.getUrl("/"));
+        BulkKeys bulk = BulkKeys.builder(etcdApi.keysApi()).maxInFlight(2).rate(100).build();
+        try {
+            Map<String, String> values = new LinkedHashMap<String, String>();
+            values.put("a", "1");
+            values.put("b", "2");
+            Map<String, Key> results = bulk.createKeys(values, 30);
+            assertTrue(results.get("a").node().value().equals("1"));
+            assertTrue(results.get("b").node().value().equals("2"));
+            assertTrue(server.takeRequest().getUtf8Body().endsWith("ttl=30"));
+        } finally {
+            bulk.close();
+            etcdApi.close();
+            server.shutdown();
+        }
+    }
+
+    public void testGetKeys() throws Exception {
+        KeyEchoDispatcher dispatcher = new KeyEchoDispatcher(50);
+        MockWebServer server = mockEtcdJavaWebServer(dispatcher);
+
+        EtcdApi etcdApi = api(server.getUrl("/"));
+        BulkKeys bulk = BulkKeys.builder(etcdApi.keysApi()).maxInFlight(8).build();
+        try {
+            List<String> keys = new ArrayList<String>();
+            for (int i = 0; i < 20; i++) {
+                keys.add("app/key" + i);
+            }
+            keys.add("app/key3");
+            keys.add("missing");
+            keys.add("broken");
+            Map<String, Key> results = bulk.getKeys(keys);
+            assertTrue(results.size() == 22);
+            assertThat(results.keySet()).startsWith("app/key0", "app/key1");
+            assertTrue(results.get("app/key3").node().value().equals("value-of-app/key3"));
+            assertTrue(dispatcher.requests("app/key3") == 1);
+            Key missing = results.get("missing");
+            assertTrue(missing.errorMessage().errorCode() == 100);
+            assertTrue(missing.errorMessage().message().equals("Key not found"));
+            assertTrue(results.get("broken").errorMessage().message().contains("boom"));
+            assertTrue(dispatcher.maxInFlight() > 1);
+            assertTrue(dispatcher.maxInFlight() <= 8);
+        } finally {
+            bulk.close();
+            etcdApi.close();
+            server.shutdown();
+        }
+    }
+
+    public void testFailureKeepsEtcdErrorCode() throws Exception {
+        MockWebServer server = mockEtcdJavaWebServer();
+        server.enqueue(new MockResponse().setResponseCode(500).setBody("{\"errorCode\":300,"
+                + "\"message\":\"Raft Internal Error\",\"cause\":\"request timed out\",\"index\":42}"));
+
+        EtcdApi etcdApi = api(server.getUrl("/"));
+        BulkKeys bulk = BulkKeys.builder(etcdApi.keysApi()).build();
+        try {
+            ErrorMessage error = bulk.getKeys(Arrays.asList("hello")).get("hello").errorMessage();
+            assertTrue(error.errorCode() == 300);
+            assertTrue(error.message().equals("Raft Internal Error"));
+            assertTrue(error.index() == 42);
+
+            error = BulkKeys.failed(new IllegalStateException("connection refused")).errorMessage();
+            assertTrue(error.errorCode() == -1);
+            assertTrue(error.message().equals("connection refused"));
+        } finally {
+            bulk.close();
+            etcdApi.close();
+            server.shutdown();
+        }
+    }
+
+    public void testConcurrentCallersShareMaxInFlight() throws Exception {
+        KeyEchoDispatcher dispatcher = new KeyEchoDispatcher(50);
+        MockWebServer server = mockEtcdJavaWebServer(dispatcher);
+
+        EtcdApi etcdApi = api(server.getUrl("/"));
+        final BulkKeys bulk = BulkKeys.builder(etcdApi.keysApi()).maxInFlight(3).build();
+        ExecutorService callers = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Map<String, Key>>> futures = new ArrayList<Future<Map<String, Key>>>();
+            for (int i = 0; i < 4; i++) {
+                final List<String> keys = new ArrayList<String>();
+                for (int j = 0; j < 6; j++) {
+                    keys.add("caller" + i + "/key" + j);
+                }
+                futures.add(callers.submit(new Callable<Map<String, Key>>() {
+                    @Override
+                    public Map<String, Key> call() {
+                        return bulk.getKeys(keys);
+                    }
+                }));
+            }
+            for (Future<Map<String, Key>> future : futures) {
+                for (Key key : future.get(60, TimeUnit.SECONDS).values()) {
+                    assertNull(key.errorMessage());
+                }
+            }
+            assertTrue(dispatcher.maxInFlight() > 1);
+            assertTrue(dispatcher.maxInFlight() <= 3);
+        } finally {
+            callers.shutdownNow();
+            bulk.close();
+            etcdApi.close();
+            server.shutdown();
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cdancy.etcd.rest.cache;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.Test;
+
+import com.cdancy.etcd.rest.EtcdApi;
+import com.cdancy.etcd.rest.EtcdApiMetadata;
+import com.cdancy.etcd.rest.internal.BaseEtcdMockTest;
+import com.cdancy.etcd.rest.internal.WatchDispatcher;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+
+/**
+ * Mock tests for the {@link com.cdancy.etcd.rest.cache.DirectoryMirror} class.
+ */
+@Test(groups = "unit", testName = "DirectoryMirrorMockTest")
+public class DirectoryMirrorMockTest extends BaseEtcdMockTest {
+
+    public void testSnapshotThenChanges() throws Exception {
+        WatchDispatcher dispatcher = new WatchDispatcher();
+        MockWebServer server = mockEtcdJavaWebServer(dispatcher);
+
+        dispatcher.enqueue(new MockResponse().setBody(payloadFromResource("/keys-dir-list-recursive.json"))
+                .setResponseCode(200).addHeader("X-Etcd-Index", "50"));
+        EtcdApi etcdApi = api(server.getUrl("/"));
+        DirectoryMirror mirror = DirectoryMirror.builder(etcdApi.keysApi(), "services").build();
+        try {
+            assertThat(dispatcher.takeRequest().getPath())
+                    .isEqualTo("/" + EtcdApiMetadata.API_VERSION + "/keys/services/?recursive=true");
+            assertTrue(mirror.index() == 50);
+            assertTrue(mirror.size() == 3);
+            assertTrue(mirror.get("services/web/1").value().equals("10.0.0.1"));
+            assertTrue(mirror.list("/services/web/").size() == 2);
+            assertNull(mirror.get("services/web"));
+
+            dispatcher.enqueueWait(new MockResponse().setResponseCode(200).setBody(
+                    "{\"action\":\"set\",\"node\":{\"key\":\"/services/web/3\",\"value\":\"10.0.0.4\",\"modifiedIndex\":51}}"));
+            assertTrue(awaitSize(mirror, 4));
+            assertTrue(mirror.index() == 51);
+            assertTrue(mirror.list("services/web").lastKey().equals("/services/web/3"));
+
+            dispatcher.enqueueWait(new MockResponse().setResponseCode(200).setBody(
+                    "{\"action\":\"delete\",\"node\":{\"key\":\"/services/web\",\"dir\":true,\"modifiedIndex\":52}}"));
+            assertTrue(awaitSize(mirror, 1));
+            assertTrue(mirror.list("services").firstKey().equals("/services/db/1"));
+        } finally {
+            mirror.close();
+            etcdApi.close();
+            server.shutdown();
+        }
+    }
+
+    public void testReloadWhenIndexCleared() throws Exception {
+        WatchDispatcher dispatcher = new WatchDispatcher();
+        MockWebServer server = mockEtcdJavaWebServer(dispatcher);
+
+        dispatcher.enqueue(new MockResponse().setBody(payloadFromResource("/keys-get-delete-nonexistent.json"))
+                .setResponseCode(404));
+        dispatcher.enqueue(new MockResponse().setBody(payloadFromResource("/keys-get-delete-nonexistent.json"))
+                .setResponseCode(404));
+        dispatcher.enqueue(new MockResponse().setBody(payloadFromResource("/keys-dir-list-recursive.json"))
+                .setResponseCode(200).addHeader("X-Etcd-Index", "2010"));
+        EtcdApi etcdApi = api(server.getUrl("/"));
+        DirectoryMirror mirror = DirectoryMirror.builder(etcdApi.keysApi(), "services").build();
+        try {
+            assertTrue(mirror.size() == 0);
+            assertTrue(mirror.index() == 16);
+            dispatcher.enqueueWait(new MockResponse().setBody(payloadFromResource("/keys-wait-index-cleared.json"))
+                    .setResponseCode(400));
+            assertTrue(awaitSize(mirror, 3));
+            assertTrue(mirror.index() == 2010);
+        } finally {
+            mirror.close();
+            etcdApi.close();
+            server.shutdown();
+        }
+    }
+
+    private static boolean awaitSize(DirectoryMirror mirror, int size) throws InterruptedException {
+        for (int attempt = 0; attempt < 50 && mirror.size() != size; attempt++) {
+            TimeUnit.MILLISECONDS.sleep(100);
+        }
+        return mirror.size() == size;
+    }
+}
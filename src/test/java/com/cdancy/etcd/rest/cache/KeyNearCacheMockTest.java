@@ -0,0 +1,171 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cdancy.etcd.rest.cache;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.Test;
+
+import com.cdancy.etcd.rest.EtcdApi;
+import com.cdancy.etcd.rest.EtcdApiMetadata;
+import com.cdancy.etcd.rest.domain.keys.Key;
+import com.cdancy.etcd.rest.internal.BaseEtcdMockTest;
+import com.cdancy.etcd.rest.internal.WatchDispatcher;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+
+/**
+ * Mock tests for the {@link com.cdancy.etcd.rest.cache.KeyNearCache} class.
+ */
+@Test(groups = "unit", testName = "KeyNearCacheMockTest")
+public class KeyNearCacheMockTest extends BaseEtcdMockTest {
+
+    public void testSecondReadIsServedLocally() throws Exception {
+        WatchDispatcher dispatcher = watchedDispatcher();
+        MockWebServer server = mockEtcdJavaWebServer(dispatcher);
+
+        dispatcher.enqueue(new MockResponse().setBody(node("/config/hello", "world", 39)).setResponseCode(200)
+                .addHeader("X-Etcd-Index", "40"));
+        EtcdApi etcdApi = api(server.getUrl("/"));
+        KeyNearCache cache = KeyNearCache.builder(etcdApi.keysApi()).prefix("config").build();
+        try {
+            assertTrue(cache.getKey("config/hello").node().value().equals("world"));
+            assertTrue(cache.getKey("config/hello").node().value().equals("world"));
+            assertTrue(cache.stats().hits() == 1);
+            assertTrue(cache.stats().misses() == 1);
+            assertTrue(cache.stats().size() == 1);
+            assertPath(dispatcher, "/keys/config");
+            assertPath(dispatcher, "/keys/config/hello");
+            assertTrue(dispatcher.pendingRequests() == 0);
+        } finally {
+            cache.close();
+            etcdApi.close();
+            server.shutdown();
+        }
+    }
+
+    public void testWatchKeepsCacheCoherent() throws Exception {
+        WatchDispatcher dispatcher = watchedDispatcher();
+        MockWebServer server = mockEtcdJavaWebServer(dispatcher);
+
+        dispatcher.enqueue(new MockResponse().setBody(node("/config/hello", "world", 39)).setResponseCode(200)
+                .addHeader("X-Etcd-Index", "40"));
+        EtcdApi etcdApi = api(server.getUrl("/"));
+        KeyNearCache cache = KeyNearCache.builder(etcdApi.keysApi()).prefix("config").build();
+        try {
+            assertTrue(cache.getKey("config/hello").node().value().equals("world"));
+            dispatcher.enqueueWait(new MockResponse().setResponseCode(200).setBody(
+                    "{\"action\":\"set\",\"node\":{\"key\":\"/config/hello\",\"value\":\"there\",\"modifiedIndex\":41}}"));
+            assertTrue(awaitValue(cache, "config/hello", "there"));
+            dispatcher.enqueueWait(new MockResponse().setResponseCode(200).setBody(
+                    "{\"action\":\"delete\",\"node\":{\"key\":\"/config/hello\",\"modifiedIndex\":42}}"));
+            assertTrue(awaitValue(cache, "config/hello", null));
+            assertTrue(cache.getKey("config/hello").errorMessage().errorCode() == KeyNearCache.KEY_NOT_FOUND);
+            assertTrue(cache.stats().misses() == 1);
+        } finally {
+            cache.close();
+            etcdApi.close();
+            server.shutdown();
+        }
+    }
+
+    public void testFreshReadAndKeysOutsidePrefix() throws Exception {
+        WatchDispatcher dispatcher = watchedDispatcher();
+        MockWebServer server = mockEtcdJavaWebServer(dispatcher);
+
+        dispatcher.enqueue(new MockResponse().setBody(node("/config/hello", "world", 39)).setResponseCode(200)
+                .addHeader("X-Etcd-Index", "40"));
+        dispatcher.enqueue(new MockResponse().setBody(node("/config/hello", "world", 39)).setResponseCode(200)
+                .addHeader("X-Etcd-Index", "43"));
+        dispatcher.enqueue(new MockResponse().setBody(node("/other", "value", 12)).setResponseCode(200));
+        dispatcher.enqueue(new MockResponse().setBody(node("/other", "value", 12)).setResponseCode(200));
+        EtcdApi etcdApi = api(server.getUrl("/"));
+        KeyNearCache cache = KeyNearCache.builder(etcdApi.keysApi()).prefix("config").build();
+        try {
+            assertNotNull(cache.getKey("config/hello"));
+            assertNotNull(cache.getKey("config/hello", true));
+            assertNotNull(cache.getKey("other"));
+            assertNotNull(cache.getKey("other"));
+            assertTrue(cache.stats().misses() == 2);
+            assertTrue(cache.stats().size() == 1);
+            assertPath(dispatcher, "/keys/config");
+            assertPath(dispatcher, "/keys/config/hello");
+            assertPath(dispatcher, "/keys/config/hello");
+            assertPath(dispatcher, "/keys/other");
+            assertPath(dispatcher, "/keys/other");
+        } finally {
+            cache.close();
+            etcdApi.close();
+            server.shutdown();
+        }
+    }
+
+    public void testEviction() throws Exception {
+        WatchDispatcher dispatcher = watchedDispatcher();
+        MockWebServer server = mockEtcdJavaWebServer(dispatcher);
+
+        dispatcher.enqueue(new MockResponse().setBody(node("/config/one", "1", 39)).setResponseCode(200));
+        dispatcher.enqueue(new MockResponse().setBody(node("/config/two", "2", 40)).setResponseCode(200));
+        dispatcher.enqueue(new MockResponse().setBody(node("/config/one", "1", 39)).setResponseCode(200));
+        EtcdApi etcdApi = api(server.getUrl("/"));
+        KeyNearCache cache = KeyNearCache.builder(etcdApi.keysApi()).prefix("config").maxSize(1)
+                .evictionPolicy(new FifoEvictionPolicy()).build();
+        try {
+            assertNotNull(cache.getKey("config/one"));
+            assertNotNull(cache.getKey("config/two"));
+            assertNotNull(cache.getKey("config/one"));
+            assertTrue(cache.stats().evictions() == 2);
+            assertTrue(cache.stats().hits() == 0);
+            assertTrue(cache.stats().size() == 1);
+        } finally {
+            cache.close();
+            etcdApi.close();
+            server.shutdown();
+        }
+    }
+
+    private WatchDispatcher watchedDispatcher() {
+        return new WatchDispatcher().enqueue(new MockResponse().setBody(payloadFromResource("/keys-dir-list.json"))
+                .setResponseCode(200).addHeader("X-Etcd-Index", "40"));
+    }
+
+    private static String node(String key, String value, int index) {
+        return "{\"action\":\"get\",\"node\":{\"key\":\"" + key + "\",\"value\":\"" + value + "\",\"modifiedIndex\":"
+                + index + ",\"createdIndex\":" + index + "}}";
+    }
+
+    private static boolean awaitValue(KeyNearCache cache, String key, String value) throws InterruptedException {
+        for (int attempt = 0; attempt < 50; attempt++) {
+            Key cached = cache.getKey(key);
+            String current = cached.node() != null ? cached.node().value() : null;
+            if (value == null ? current == null : value.equals(current)) {
+                return true;
+            }
+            TimeUnit.MILLISECONDS.sleep(100);
+        }
+        return false;
+    }
+
+    private static void assertPath(WatchDispatcher dispatcher, String path) throws InterruptedException {
+        assertThat(dispatcher.takeRequest().getPath()).isEqualTo("/" + EtcdApiMetadata.API_VERSION + path);
+    }
+}
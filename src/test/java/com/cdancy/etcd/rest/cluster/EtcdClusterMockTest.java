@@ -0,0 +1,267 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cdancy.etcd.rest.cluster;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.annotations.Test;
+
+import com.cdancy.etcd.rest.EtcdClient;
+import com.cdancy.etcd.rest.domain.keys.Key;
+import com.cdancy.etcd.rest.domain.statistics.Leader;
+import com.cdancy.etcd.rest.features.KeysApi;
+import com.cdancy.etcd.rest.internal.BaseEtcdMockTest;
+import com.cdancy.etcd.rest.internal.KeyEchoDispatcher;
+import com.squareup.okhttp.mockwebserver.Dispatcher;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+import com.squareup.okhttp.mockwebserver.RecordedRequest;
+
+/**
+ * Mock tests for the {@link com.cdancy.etcd.rest.cluster.EtcdCluster} class.
+ */
+@Test(groups = "unit", testName = "EtcdClusterMockTest")
+public class EtcdClusterMockTest extends BaseEtcdMockTest {
+
+    public void testReadsSpreadAcrossMembers() throws Exception {
+        KeyEchoDispatcher leaderKeys = new KeyEchoDispatcher(0);
+        KeyEchoDispatcher followerKeys = new KeyEchoDispatcher(0);
+        MockWebServer follower = mockEtcdJavaWebServer(followerKeys);
+        MembersDispatcher members = new MembersDispatcher(leaderKeys);
+        MockWebServer leader = mockEtcdJavaWebServer(members);
+        String leaderUrl = url(leader);
+        String followerUrl = url(follower);
+        members.members(leaderUrl, followerUrl);
+
+        EtcdClient seed = new EtcdClient(leaderUrl, "");
+        EtcdCluster cluster = EtcdCluster.builder(seed).build();
+        try {
+            assertThat(cluster.readers()).extracting("url").containsExactly(leaderUrl, followerUrl);
+            KeysApi keysApi = cluster.keysApi();
+            for (int i = 0; i < 4; i++) {
+                Key key = keysApi.getKey("hello", i % 2 == 0);
+                assertTrue(key.node().value().equals("value-of-hello"));
+            }
+            assertTrue(leaderKeys.requests("hello") == 2);
+            assertTrue(followerKeys.requests("hello") == 2);
+
+            Key created = keysApi.createKey("hello", "world");
+            assertTrue(created.node().value().equals("world"));
+            assertTrue(leaderKeys.requests("hello") == 3);
+            assertTrue(followerKeys.requests("hello") == 2);
+        } finally {
+            cluster.close();
+            seed.api().close();
+            leader.shutdown();
+            follower.shutdown();
+        }
+    }
+
+    public void testFailoverToHealthyEndpoint() throws Exception {
+        MockWebServer down = mockEtcdJavaWebServer();
+        String downUrl = url(down);
+        down.shutdown();
+        KeyEchoDispatcher keys = new KeyEchoDispatcher(0);
+        MockWebServer up = mockEtcdJavaWebServer(keys);
+
+        EtcdClient client = EtcdClient.builder().endPoints(Arrays.asList(downUrl, url(up))).build();
+        try {
+            assertTrue(client.endPoint().equals(downUrl));
+            EtcdCluster cluster = client.cluster();
+            Key key = client.api().keysApi().getKey("hello");
+            assertTrue(key.node().value().equals("value-of-hello"));
+            assertFalse(cluster.readers().get(0).healthy());
+            assertTrue(cluster.readers().get(1).healthy());
+            assertTrue(cluster.writer().url().equals(url(up)));
+
+            Key created = client.api().keysApi().createKey("hello", "world");
+            assertTrue(created.node().value().equals("world"));
+            assertTrue(keys.requests("hello") == 2);
+
+            cluster.checkHealth();
+            assertFalse(cluster.readers().get(0).healthy());
+            assertTrue(cluster.readers().get(1).healthy());
+        } finally {
+            client.api().close();
+            up.shutdown();
+        }
+    }
+
+    public void testWritesFollowLeader() throws Exception {
+        KeyEchoDispatcher seedKeys = new KeyEchoDispatcher(0);
+        KeyEchoDispatcher leaderKeys = new KeyEchoDispatcher(0);
+        MembersDispatcher seedMembers = new MembersDispatcher(seedKeys);
+        MembersDispatcher leaderMembers = new MembersDispatcher(leaderKeys);
+        MockWebServer seedServer = mockEtcdJavaWebServer(seedMembers);
+        MockWebServer leaderServer = mockEtcdJavaWebServer(leaderMembers);
+        String seedUrl = url(seedServer);
+        String leaderUrl = url(leaderServer);
+        for (MembersDispatcher members : Arrays.asList(seedMembers, leaderMembers)) {
+            members.members(seedUrl, leaderUrl);
+            members.leader("1");
+        }
+
+        EtcdClient seed = new EtcdClient(seedUrl, "");
+        EtcdCluster cluster = EtcdCluster.builder(seed).balanceReads(false).build();
+        try {
+            assertTrue(cluster.leader().url().equals(leaderUrl));
+            cluster.keysApi().createKey("hello", "world");
+            cluster.keysApi().deleteKey("hello");
+            assertTrue(leaderKeys.requests("hello") == 2);
+            assertTrue(seedKeys.requests("hello") == 0);
+
+            for (MembersDispatcher members : Arrays.asList(seedMembers, leaderMembers)) {
+                members.leader("0");
+            }
+            seedKeys.raftTerm(2);
+            leaderKeys.raftTerm(2);
+            cluster.keysApi().getKey("hello");
+            for (int attempt = 0; attempt < 50 && !cluster.leader().url().equals(seedUrl); attempt++) {
+                TimeUnit.MILLISECONDS.sleep(100);
+            }
+            assertTrue(cluster.leader().url().equals(seedUrl));
+            cluster.keysApi().createKey("hello", "again");
+            assertTrue(seedKeys.requests("hello") == 1);
+        } finally {
+            cluster.close();
+            seed.api().close();
+            seedServer.shutdown();
+            leaderServer.shutdown();
+        }
+    }
+
+    public void testLatencyAwareReads() throws Exception {
+        KeyEchoDispatcher fastKeys = new KeyEchoDispatcher(0);
+        KeyEchoDispatcher slowKeys = new KeyEchoDispatcher(200);
+        MembersDispatcher members = new MembersDispatcher(slowKeys);
+        MockWebServer slow = mockEtcdJavaWebServer(members);
+        MockWebServer fast = mockEtcdJavaWebServer(fastKeys);
+        members.members(url(slow), url(fast));
+
+        EtcdClient seed = new EtcdClient(url(slow), "");
+        EtcdCluster cluster = EtcdCluster.builder(seed).selector(new LatencyAwareSelector())
+                .healthCheckInterval(0, TimeUnit.SECONDS).build();
+        try {
+            assertTrue(cluster.latencies().get(url(fast)) < 0);
+            cluster.checkHealth();
+            for (int i = 0; i < 10; i++) {
+                cluster.keysApi().getKey("hello");
+            }
+            Map<String, Double> latencies = cluster.latencies();
+            assertTrue(latencies.get(url(slow)) > latencies.get(url(fast)));
+            assertTrue(fastKeys.requests("hello") == 10);
+            assertTrue(slowKeys.requests("hello") == 0);
+        } finally {
+            cluster.close();
+            seed.api().close();
+            slow.shutdown();
+            fast.shutdown();
+        }
+    }
+
+    public void testLeaderStatisticsGoToLeader() throws Exception {
+        MembersDispatcher seedMembers = new MembersDispatcher(new KeyEchoDispatcher(0));
+        MembersDispatcher leaderMembers = new MembersDispatcher(new KeyEchoDispatcher(0));
+        MockWebServer seedServer = mockEtcdJavaWebServer(seedMembers);
+        MockWebServer leaderServer = mockEtcdJavaWebServer(leaderMembers);
+        for (MembersDispatcher members : Arrays.asList(seedMembers, leaderMembers)) {
+            members.members(url(seedServer), url(leaderServer));
+            members.leader("1");
+        }
+
+        EtcdClient seed = new EtcdClient(url(seedServer), "");
+        EtcdCluster cluster = EtcdCluster.builder(seed).healthCheckInterval(0, TimeUnit.SECONDS).build();
+        try {
+            assertTrue(cluster.readers().size() == 2);
+            for (int i = 0; i < 4; i++) {
+                Leader leader = cluster.api().statisticsApi().leader();
+                assertTrue(leader.leader().equals("1"));
+            }
+            assertTrue(leaderMembers.leaderStatsRequests() == 4);
+            assertTrue(seedMembers.leaderStatsRequests() == 0);
+        } finally {
+            cluster.close();
+            seed.api().close();
+            seedServer.shutdown();
+            leaderServer.shutdown();
+        }
+    }
+
+    private static String url(MockWebServer server) {
+        String url = server.getUrl("/").toString();
+        return url.substring(0, url.length() - 1);
+    }
+
+    /**
+     * Answers MembersApi.list() with the configured client urls, member ids
+     * being their position, StatisticsApi.self() and StatisticsApi.leader()
+     * with the configured leader id and hands everything else to a
+     * KeyEchoDispatcher.
+     */
+    static class MembersDispatcher extends Dispatcher {
+        private final KeyEchoDispatcher keys;
+        private volatile String members = "{\"members\":[]}";
+        private volatile String leader = "0";
+        private final AtomicInteger leaderStatsRequests = new AtomicInteger();
+
+        MembersDispatcher(KeyEchoDispatcher keys) {
+            this.keys = keys;
+        }
+
+        void members(String... clientUrls) {
+            StringBuilder json = new StringBuilder("{\"members\":[");
+            for (int i = 0; i < clientUrls.length; i++) {
+                json.append(i > 0 ? "," : "").append("{\"id\":\"").append(i).append("\",\"name\":\"infra")
+                        .append(i).append("\",\"peerURLs\":[],\"clientURLs\":[\"").append(clientUrls[i])
+                        .append("\"]}");
+            }
+            members = json.append("]}").toString();
+        }
+
+        void leader(String leader) {
+            this.leader = leader;
+        }
+
+        int leaderStatsRequests() {
+            return leaderStatsRequests.get();
+        }
+
+        @Override
+        public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+            if (request.getPath().endsWith("/members")) {
+                return new MockResponse().setResponseCode(200).setBody(members);
+            } else if (request.getPath().endsWith("/stats/self")) {
+                return new MockResponse().setResponseCode(200).setBody("{\"id\":\"0\",\"name\":\"infra0\","
+                        + "\"leaderInfo\":{\"leader\":\"" + leader + "\",\"startTime\":\"\",\"uptime\":\"\"},"
+                        + "\"startTime\":\"\",\"state\":\"StateFollower\"}");
+            } else if (request.getPath().endsWith("/stats/leader")) {
+                leaderStatsRequests.incrementAndGet();
+                return new MockResponse().setResponseCode(200)
+                        .setBody("{\"leader\":\"" + leader + "\",\"followers\":{}}");
+            }
+            return keys.dispatch(request);
+        }
+    }
+}
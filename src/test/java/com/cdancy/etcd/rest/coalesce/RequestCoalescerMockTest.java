@@ -0,0 +1,128 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cdancy.etcd.rest.coalesce;
+
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.testng.annotations.Test;
+
+import com.cdancy.etcd.rest.EtcdApi;
+import com.cdancy.etcd.rest.domain.keys.Key;
+import com.cdancy.etcd.rest.features.KeysApi;
+import com.cdancy.etcd.rest.internal.BaseEtcdMockTest;
+import com.cdancy.etcd.rest.internal.KeyEchoDispatcher;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+
+/**
+ * Mock tests for the {@link com.cdancy.etcd.rest.coalesce.RequestCoalescer}
+ * class.
+ */
+@Test(groups = "unit", testName = "RequestCoalescerMockTest")
+public class RequestCoalescerMockTest extends BaseEtcdMockTest {
+
+    public void testConcurrentReadsShareRequest() throws Exception {
+        KeyEchoDispatcher dispatcher = new KeyEchoDispatcher(500);
+        MockWebServer server = mockEtcdJavaWebServer(dispatcher);
+
+        RequestCoalescer coalescer = RequestCoalescer.create(api(server.getUrl("/")));
+        ExecutorService executor = Executors.newFixedThreadPool(10);
+        try {
+            final KeysApi keysApi = coalescer.keysApi();
+            final CountDownLatch start = new CountDownLatch(1);
+            List<Future<Key>> results = new ArrayList<Future<Key>>();
+            for (int i = 0; i < 10; i++) {
+                results.add(executor.submit(new Callable<Key>() {
+                    @Override
+                    public Key call() throws Exception {
+                        start.await();
+                        return keysApi.getKey("hello");
+                    }
+                }));
+            }
+            start.countDown();
+            Key first = results.get(0).get();
+            for (Future<Key> result : results) {
+                assertTrue(result.get() == first);
+            }
+            assertTrue(first.node().value().equals("value-of-hello"));
+            assertTrue(dispatcher.requests("hello") == 1);
+            CoalescingStats stats = coalescer.stats();
+            assertTrue(stats.calls() == 10);
+            assertTrue(stats.executed() == 1);
+            assertTrue(stats.coalesced() == 9);
+
+            keysApi.getKey("hello");
+            keysApi.getKey("world");
+            keysApi.createKey("hello", "world");
+            assertTrue(dispatcher.requests("hello") == 3);
+            assertTrue(coalescer.stats().calls() == 12);
+        } finally {
+            executor.shutdownNow();
+            coalescer.api().close();
+            server.shutdown();
+        }
+    }
+
+    public void testQuorumReadsAndWaitsAreNotShared() throws Exception {
+        KeyEchoDispatcher dispatcher = new KeyEchoDispatcher(500);
+        MockWebServer server = mockEtcdJavaWebServer(dispatcher);
+
+        RequestCoalescer coalescer = RequestCoalescer.create(api(server.getUrl("/")));
+        ExecutorService executor = Executors.newFixedThreadPool(10);
+        try {
+            final KeysApi keysApi = coalescer.keysApi();
+            final CountDownLatch start = new CountDownLatch(1);
+            List<Future<Key>> results = new ArrayList<Future<Key>>();
+            for (int i = 0; i < 5; i++) {
+                results.add(executor.submit(new Callable<Key>() {
+                    @Override
+                    public Key call() throws Exception {
+                        start.await();
+                        return keysApi.getKey("quorum", true);
+                    }
+                }));
+                results.add(executor.submit(new Callable<Key>() {
+                    @Override
+                    public Key call() throws Exception {
+                        start.await();
+                        return keysApi.waitKey("watched");
+                    }
+                }));
+            }
+            start.countDown();
+            for (Future<Key> result : results) {
+                assertTrue(result.get() != null);
+            }
+            assertTrue(dispatcher.requests("quorum") == 5);
+            assertTrue(dispatcher.requests("watched") == 5);
+            assertTrue(coalescer.stats().coalesced() == 0);
+        } finally {
+            executor.shutdownNow();
+            coalescer.api().close();
+            server.shutdown();
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cdancy.etcd.rest.config;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.fail;
+
+import java.util.Properties;
+
+import org.jclouds.ContextBuilder;
+import org.jclouds.http.HttpCommandExecutorService;
+import org.jclouds.http.internal.JavaUrlHttpCommandExecutorService;
+import org.jclouds.http.okhttp.OkHttpCommandExecutorService;
+import org.testng.annotations.Test;
+
+import com.cdancy.etcd.rest.EtcdApi;
+import com.cdancy.etcd.rest.EtcdApiMetadata;
+import com.cdancy.etcd.rest.domain.keys.Key;
+import com.cdancy.etcd.rest.internal.BaseEtcdMockTest;
+import com.google.inject.Injector;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+import com.squareup.okhttp.mockwebserver.RecordedRequest;
+
+/**
+ * Mock tests for the HTTP transports {@link EtcdHttpApiModule} can be
+ * configured with.
+ */
+@Test(groups = "unit", testName = "EtcdHttpApiModuleMockTest")
+public class EtcdHttpApiModuleMockTest extends BaseEtcdMockTest {
+
+    public void testDefaultTransportIsOkHttp() throws Exception {
+        MockWebServer server = mockEtcdJavaWebServer();
+        try {
+            Injector injector = injector(server, setupProperties());
+            assertThat(injector.getInstance(HttpCommandExecutorService.class))
+                    .isInstanceOf(OkHttpCommandExecutorService.class);
+        } finally {
+            server.shutdown();
+        }
+    }
+
+    public void testJavaUrlTransport() throws Exception {
+        MockWebServer server = mockEtcdJavaWebServer();
+
+        server.enqueue(new MockResponse().setBody(payloadFromResource("/keys-get.json")).setResponseCode(200)
+                .addHeader("X-Etcd-Index", "40"));
+        server.enqueue(new MockResponse().setBody(payloadFromResource("/keys-get.json")).setResponseCode(200)
+                .addHeader("X-Etcd-Index", "41"));
+        Properties overrides = setupProperties();
+        overrides.setProperty(EtcdApiMetadata.HTTP_TRANSPORT, EtcdApiMetadata.TRANSPORT_JAVA_URL);
+        Injector injector = injector(server, overrides);
+        EtcdApi etcdApi = injector.getInstance(EtcdApi.class);
+        try {
+            assertThat(injector.getInstance(HttpCommandExecutorService.class))
+                    .isInstanceOf(JavaUrlHttpCommandExecutorService.class);
+            Key foundKey = etcdApi.keysApi().getKey("hello");
+            assertEquals(foundKey.node().value(), "world");
+            assertEquals(foundKey.etcdIndex().intValue(), 40);
+            assertEquals(etcdApi.keysApi().getKey("hello").etcdIndex().intValue(), 41);
+            assertSent(server, "GET", "/" + EtcdApiMetadata.API_VERSION + "/keys/hello");
+            RecordedRequest second = assertSent(server, "GET", "/" + EtcdApiMetadata.API_VERSION + "/keys/hello");
+            // the second request went out over the connection the first one left open
+            assertEquals(second.getSequenceNumber(), 1);
+        } finally {
+            etcdApi.close();
+            server.shutdown();
+        }
+    }
+
+    public void testUnknownTransportFails() throws Exception {
+        MockWebServer server = mockEtcdJavaWebServer();
+        Properties overrides = setupProperties();
+        overrides.setProperty(EtcdApiMetadata.HTTP_TRANSPORT, "carrier-pigeon");
+        try {
+            injector(server, overrides).getInstance(EtcdApi.class);
+            fail("expected the unknown transport to be rejected");
+        } catch (RuntimeException e) {
+            assertThat(e.getMessage()).contains("carrier-pigeon");
+        } finally {
+            server.shutdown();
+        }
+    }
+
+    private static Injector injector(MockWebServer server, Properties overrides) {
+        return ContextBuilder.newBuilder("etcd").endpoint(server.getUrl("/").toString()).overrides(overrides)
+                .buildInjector();
+    }
+}
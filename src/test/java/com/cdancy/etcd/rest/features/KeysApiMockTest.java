@@ -17,15 +17,29 @@
 
 package com.cdancy.etcd.rest.features;
 
+import static org.assertj.core.api.Assertions.assertThat;
 import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
 import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
 
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jclouds.rest.ResourceNotFoundException;
 import org.testng.annotations.Test;
 
 import com.cdancy.etcd.rest.EtcdApi;
 import com.cdancy.etcd.rest.EtcdApiMetadata;
 import com.cdancy.etcd.rest.domain.keys.Key;
+import com.cdancy.etcd.rest.domain.keys.Node;
+import com.cdancy.etcd.rest.error.ErrorMessage;
+import com.cdancy.etcd.rest.error.EtcdError;
+import com.cdancy.etcd.rest.fallbacks.EtcdFallbacks;
 import com.cdancy.etcd.rest.internal.BaseEtcdMockTest;
+import com.cdancy.etcd.rest.parsers.KeyStreamReader;
+import com.cdancy.etcd.rest.parsers.NodeStreamReader;
+import com.cdancy.etcd.rest.parsers.NodeVisitor;
 import com.squareup.okhttp.mockwebserver.MockResponse;
 import com.squareup.okhttp.mockwebserver.MockWebServer;
 
@@ -75,6 +89,64 @@ public class KeysApiMockTest extends BaseEtcdMockTest {
         }
     }
 
+    public void testRefreshKey() throws Exception {
+        MockWebServer server = mockEtcdJavaWebServer();
+
+        server.enqueue(new MockResponse().setBody(payloadFromResource("/keys-refresh.json")).setResponseCode(200));
+        EtcdApi etcdApi = api(server.getUrl("/"));
+        KeysApi api = etcdApi.keysApi();
+        try {
+            Key refreshedKey = api.refreshKey("hello", 30);
+            assertNotNull(refreshedKey);
+            assertNull(refreshedKey.errorMessage());
+            assertTrue(refreshedKey.node().ttl() == 30);
+            assertTrue(refreshedKey.node().value().equals("world"));
+            assertSentWithFormData(server, "PUT", "/" + EtcdApiMetadata.API_VERSION + "/keys/hello",
+                    "refresh=true&prevExist=true&ttl=30");
+        } finally {
+            etcdApi.close();
+            server.shutdown();
+        }
+    }
+
+    public void testRefreshKeyNonExistent() throws Exception {
+        MockWebServer server = mockEtcdJavaWebServer();
+
+        server.enqueue(new MockResponse().setBody(payloadFromResource("/keys-get-delete-nonexistent.json"))
+                .setResponseCode(404));
+        EtcdApi etcdApi = api(server.getUrl("/"));
+        KeysApi api = etcdApi.keysApi();
+        try {
+            Key refreshedKey = api.refreshKey("foo", 30);
+            assertNotNull(refreshedKey);
+            assertNull(refreshedKey.node());
+            assertTrue(refreshedKey.errorMessage().errorCode() == ErrorMessage.KEY_NOT_FOUND);
+        } finally {
+            etcdApi.close();
+            server.shutdown();
+        }
+    }
+
+    public void testRefreshKeyCompareFailed() throws Exception {
+        MockWebServer server = mockEtcdJavaWebServer();
+
+        server.enqueue(new MockResponse().setBody(payloadFromResource("/keys-compare-and-swap-value-fail.json"))
+                .setResponseCode(412));
+        EtcdApi etcdApi = api(server.getUrl("/"));
+        KeysApi api = etcdApi.keysApi();
+        try {
+            Key refreshedKey = api.refreshKey("foo", "hello", 30);
+            assertNotNull(refreshedKey);
+            assertNull(refreshedKey.node());
+            assertTrue(refreshedKey.errorMessage().errorCode() == ErrorMessage.COMPARE_FAILED);
+            assertSentWithFormData(server, "PUT", "/" + EtcdApiMetadata.API_VERSION + "/keys/foo?prevValue=hello",
+                    "refresh=true&prevExist=true&ttl=30");
+        } finally {
+            etcdApi.close();
+            server.shutdown();
+        }
+    }
+
     public void testCreateInOrderKey() throws Exception {
         MockWebServer server = mockEtcdJavaWebServer();
 
@@ -139,7 +211,8 @@ public class KeysApiMockTest extends BaseEtcdMockTest {
     public void testGetKey() throws Exception {
         MockWebServer server = mockEtcdJavaWebServer();
 
-        server.enqueue(new MockResponse().setBody(payloadFromResource("/keys-get.json")).setResponseCode(200));
+        server.enqueue(new MockResponse().setBody(payloadFromResource("/keys-get.json")).setResponseCode(200)
+                .addHeader("X-Etcd-Index", "40"));
         EtcdApi etcdApi = api(server.getUrl("/"));
         KeysApi api = etcdApi.keysApi();
         try {
@@ -147,6 +220,7 @@ public class KeysApiMockTest extends BaseEtcdMockTest {
             assertNotNull(foundKey);
             assertTrue(foundKey.node().key().equals("/hello"));
             assertTrue(foundKey.node().value().equals("world"));
+            assertTrue(foundKey.etcdIndex() == 40);
             assertSent(server, "GET", "/" + EtcdApiMetadata.API_VERSION + "/keys/hello");
         } finally {
             etcdApi.close();
@@ -154,6 +228,23 @@ public class KeysApiMockTest extends BaseEtcdMockTest {
         }
     }
 
+    public void testGetKeyWithQuorum() throws Exception {
+        MockWebServer server = mockEtcdJavaWebServer();
+
+        server.enqueue(new MockResponse().setBody(payloadFromResource("/keys-get.json")).setResponseCode(200));
+        EtcdApi etcdApi = api(server.getUrl("/"));
+        KeysApi api = etcdApi.keysApi();
+        try {
+            Key foundKey = api.getKey("hello", true);
+            assertNotNull(foundKey);
+            assertTrue(foundKey.node().value().equals("world"));
+            assertSent(server, "GET", "/" + EtcdApiMetadata.API_VERSION + "/keys/hello?quorum=true");
+        } finally {
+            etcdApi.close();
+            server.shutdown();
+        }
+    }
+
     public void testGetNonExistentKey() throws Exception {
         MockWebServer server = mockEtcdJavaWebServer();
 
@@ -165,6 +256,7 @@ public class KeysApiMockTest extends BaseEtcdMockTest {
             Key nonExistentKey = api.getKey("NonExistentKeyToGet");
             assertNotNull(nonExistentKey);
             assertTrue(nonExistentKey.errorMessage().message().equals("Key not found"));
+            assertTrue(nonExistentKey.etcdIndex() == 16);
             assertSent(server, "GET", "/" + EtcdApiMetadata.API_VERSION + "/keys/NonExistentKeyToGet");
         } finally {
             etcdApi.close();
@@ -243,6 +335,75 @@ public class KeysApiMockTest extends BaseEtcdMockTest {
         }
     }
 
+    public void testWaitRecursiveKey() throws Exception {
+        MockWebServer server = mockEtcdJavaWebServer();
+
+        server.enqueue(new MockResponse().setBody(payloadFromResource("/keys-wait-recursive.json"))
+                .setResponseCode(200).addHeader("X-Etcd-Index", "41"));
+        EtcdApi etcdApi = api(server.getUrl("/"));
+        KeysApi api = etcdApi.keysApi();
+        try {
+            Key waitedOnKey = api.waitKey("hello", true, 41);
+            assertNotNull(waitedOnKey);
+            assertTrue(waitedOnKey.action().equals("set"));
+            assertTrue(waitedOnKey.node().key().equals("/hello/world"));
+            assertTrue(waitedOnKey.etcdIndex() == 41);
+            assertSent(server, "GET",
+                    "/" + EtcdApiMetadata.API_VERSION + "/keys/hello?wait=true&recursive=true&waitIndex=41");
+        } finally {
+            etcdApi.close();
+            server.shutdown();
+        }
+    }
+
+    public void testWaitRecursiveKeyIndexCleared() throws Exception {
+        MockWebServer server = mockEtcdJavaWebServer();
+
+        server.enqueue(new MockResponse().setBody(payloadFromResource("/keys-wait-index-cleared.json"))
+                .setResponseCode(400));
+        EtcdApi etcdApi = api(server.getUrl("/"));
+        KeysApi api = etcdApi.keysApi();
+        try {
+            Key waitedOnKey = api.waitKey("hello", true, 5);
+            assertNotNull(waitedOnKey);
+            assertTrue(waitedOnKey.errorMessage().errorCode() == 401);
+            assertTrue(waitedOnKey.etcdIndex() == 2007);
+            assertSent(server, "GET",
+                    "/" + EtcdApiMetadata.API_VERSION + "/keys/hello?wait=true&recursive=true&waitIndex=5");
+        } finally {
+            etcdApi.close();
+            server.shutdown();
+        }
+    }
+
+    public void testStreamKey() throws Exception {
+        MockWebServer server = mockEtcdJavaWebServer();
+
+        String events = payloadFromResource("/keys-wait-recursive.json") + payloadFromResource("/keys-wait.json");
+        server.enqueue(new MockResponse().setChunkedBody(events, 32).setResponseCode(200));
+        EtcdApi etcdApi = api(server.getUrl("/"));
+        KeysApi api = etcdApi.keysApi();
+        KeyStreamReader reader = null;
+        try {
+            reader = new KeyStreamReader(api.streamKey("hello", true, 41));
+            Key first = reader.next();
+            assertTrue(first.action().equals("set"));
+            assertTrue(first.node().key().equals("/hello/world"));
+            Key second = reader.next();
+            assertTrue(second.action().equals("expire"));
+            assertTrue(second.prevNode().value().equals("world"));
+            assertNull(reader.next());
+            assertSent(server, "GET", "/" + EtcdApiMetadata.API_VERSION
+                    + "/keys/hello?wait=true&stream=true&recursive=true&waitIndex=41");
+        } finally {
+            if (reader != null) {
+                reader.close();
+            }
+            etcdApi.close();
+            server.shutdown();
+        }
+    }
+
     public void testCompareAndDeleteKeyValue() throws Exception {
         MockWebServer server = mockEtcdJavaWebServer();
 
@@ -281,6 +442,68 @@ public class KeysApiMockTest extends BaseEtcdMockTest {
         }
     }
 
+    public void testCompareAndSwapKeyFailureDecodedDirectly() throws Exception {
+        MockWebServer server = mockEtcdJavaWebServer();
+
+        server.enqueue(new MockResponse().setBody(payloadFromResource("/keys-compare-and-swap-value-fail.json"))
+                .setResponseCode(412).addHeader("X-Etcd-Index", "9").addHeader("X-Raft-Term", "2"));
+        EtcdApi etcdApi = api(server.getUrl("/"));
+        KeysApi api = etcdApi.keysApi();
+        try {
+            Key failedKey = api.compareAndSwapKeyValue("foo", "hello", "world");
+            assertTrue(failedKey.errorMessage().errorCode() == ErrorMessage.COMPARE_FAILED);
+            assertTrue(failedKey.errorMessage().index() == 8);
+            assertTrue(failedKey.etcdIndex() == 9);
+            assertTrue(failedKey.raftTerm() == 2);
+            assertNull(failedKey.node());
+        } finally {
+            etcdApi.close();
+            server.shutdown();
+        }
+    }
+
+    @Test(expectedExceptions = ResourceNotFoundException.class)
+    public void testGetKeyUnexpectedNotFound() throws Exception {
+        MockWebServer server = mockEtcdJavaWebServer();
+
+        server.enqueue(new MockResponse().setBody("404 page not found").setResponseCode(404));
+        EtcdApi etcdApi = api(server.getUrl("/"));
+        try {
+            etcdApi.keysApi().getKey("hello");
+        } finally {
+            etcdApi.close();
+            server.shutdown();
+        }
+    }
+
+    public void testGetKeyUnexpectedErrorCarriesErrorMessage() throws Exception {
+        MockWebServer server = mockEtcdJavaWebServer();
+
+        server.enqueue(new MockResponse().setBody(
+                "{\"errorCode\":209,\"message\":\"Invalid field\",\"cause\":\"invalid value for quorum\",\"index\":12}")
+                .setResponseCode(400));
+        EtcdApi etcdApi = api(server.getUrl("/"));
+        try {
+            etcdApi.keysApi().getKey("hello");
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("Invalid field"));
+            ErrorMessage error = EtcdError.errorMessage(e);
+            assertNotNull(error);
+            assertTrue(error.errorCode() == 209);
+            assertTrue(error.cause().equals("invalid value for quorum"));
+            assertTrue(error.index() == 12);
+        } finally {
+            etcdApi.close();
+            server.shutdown();
+        }
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class, expectedExceptionsMessageRegExp = "not an etcd error: .*")
+    public void testCreateKeyFromNonJsonErrorMessage() {
+        EtcdFallbacks.createKeyFromErrorMessage("502 Bad Gateway");
+    }
+
     public void testCompareAndDeleteKeyIndex() throws Exception {
         MockWebServer server = mockEtcdJavaWebServer();
 
@@ -301,6 +524,25 @@ public class KeysApiMockTest extends BaseEtcdMockTest {
         }
     }
 
+    public void testCompareAndDeleteKeyIndexNonExistent() throws Exception {
+        MockWebServer server = mockEtcdJavaWebServer();
+
+        server.enqueue(new MockResponse().setBody(payloadFromResource("/keys-get-delete-nonexistent.json"))
+                .setResponseCode(404));
+        EtcdApi etcdApi = api(server.getUrl("/"));
+        KeysApi api = etcdApi.keysApi();
+        try {
+            Key deletedKey = api.compareAndDeleteKey("foo", 8);
+            assertNotNull(deletedKey);
+            assertNull(deletedKey.node());
+            assertTrue(deletedKey.errorMessage().errorCode() == ErrorMessage.KEY_NOT_FOUND);
+            assertSent(server, "DELETE", "/" + EtcdApiMetadata.API_VERSION + "/keys/foo?prevIndex=8");
+        } finally {
+            etcdApi.close();
+            server.shutdown();
+        }
+    }
+
     public void testCompareAndDeleteKeyValueWithWrongIndex() throws Exception {
         MockWebServer server = mockEtcdJavaWebServer();
 
@@ -436,6 +678,25 @@ public class KeysApiMockTest extends BaseEtcdMockTest {
         }
     }
 
+    public void testCompareAndSwapKeyExistWithTTL() throws Exception {
+        MockWebServer server = mockEtcdJavaWebServer();
+
+        server.enqueue(new MockResponse().setBody(payloadFromResource("/keys-create-ttl.json")).setResponseCode(201));
+        EtcdApi etcdApi = api(server.getUrl("/"));
+        KeysApi api = etcdApi.keysApi();
+        try {
+            Key key = api.compareAndSwapKeyExist("hello", false, "world", 5);
+            assertNotNull(key);
+            assertNull(key.errorMessage());
+            assertTrue(key.node().ttl() == 5);
+            assertSentWithFormData(server, "PUT", "/" + EtcdApiMetadata.API_VERSION + "/keys/hello?prevExist=false",
+                    "value=world&ttl=5");
+        } finally {
+            etcdApi.close();
+            server.shutdown();
+        }
+    }
+
     public void testCreateDir() throws Exception {
         MockWebServer server = mockEtcdJavaWebServer();
 
@@ -532,6 +793,56 @@ public class KeysApiMockTest extends BaseEtcdMockTest {
         }
     }
 
+    public void testStreamDir() throws Exception {
+        MockWebServer server = mockEtcdJavaWebServer();
+
+        server.enqueue(new MockResponse().setChunkedBody(payloadFromResource("/keys-dir-list-recursive.json"), 64)
+                .setResponseCode(200).addHeader("X-Etcd-Index", "50"));
+        EtcdApi etcdApi = api(server.getUrl("/"));
+        KeysApi api = etcdApi.keysApi();
+        NodeStreamReader reader = null;
+        try {
+            reader = new NodeStreamReader(api.streamDir("services", true));
+            assertTrue(reader.etcdIndex() == 50);
+            final List<String> visited = new ArrayList<String>();
+            int count = reader.accept(new NodeVisitor() {
+                @Override
+                public boolean visit(Node node) {
+                    assertTrue(node.nodes().isEmpty());
+                    visited.add(node.key());
+                    return true;
+                }
+            });
+            assertTrue(count == 6);
+            assertThat(visited).containsExactly("/services/db/1", "/services/db", "/services/web/1",
+                    "/services/web/2", "/services/web", "/services");
+            assertNull(reader.next());
+            assertSent(server, "GET", "/" + EtcdApiMetadata.API_VERSION + "/keys/services/?recursive=true");
+        } finally {
+            if (reader != null) {
+                reader.close();
+            }
+            etcdApi.close();
+            server.shutdown();
+        }
+    }
+
+    public void testStreamDirNonExistent() throws Exception {
+        MockWebServer server = mockEtcdJavaWebServer();
+
+        server.enqueue(new MockResponse().setBody(payloadFromResource("/keys-get-delete-nonexistent.json"))
+                .setResponseCode(404));
+        EtcdApi etcdApi = api(server.getUrl("/"));
+        KeysApi api = etcdApi.keysApi();
+        try {
+            assertNull(api.streamDir("hello", true));
+            assertSent(server, "GET", "/" + EtcdApiMetadata.API_VERSION + "/keys/hello/?recursive=true");
+        } finally {
+            etcdApi.close();
+            server.shutdown();
+        }
+    }
+
     public void testDeleteDir() throws Exception {
         MockWebServer server = mockEtcdJavaWebServer();
 
@@ -0,0 +1,115 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cdancy.etcd.rest.filters;
+
+import static com.google.common.io.BaseEncoding.base64;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import org.jclouds.domain.Credentials;
+import org.jclouds.http.HttpRequest;
+import org.testng.annotations.Test;
+
+import com.google.common.base.Suppliers;
+import com.google.common.net.HttpHeaders;
+
+/**
+ * Measures the per-request cost of {@link EtcdAuthentication} against the
+ * previous filter, which encoded and validated the credential on every call.
+ */
+@Test(groups = "benchmark", testName = "EtcdAuthenticationBenchmark")
+public class EtcdAuthenticationBenchmark {
+
+    private static final int WARMUP = 50000;
+    private static final int ITERATIONS = 500000;
+    private static final String REGEX = "^([A-Za-z0-9+/]{4})*([A-Za-z0-9+/]{4}|[A-Za-z0-9+/]{3}=|[A-Za-z0-9+/]{2}==)$";
+
+    private final HttpRequest request = HttpRequest.builder().method("GET")
+            .endpoint("http://127.0.0.1:2379/v2/keys/foo").build();
+
+    /**
+     * Time both filters with and without credentials and print the cost per
+     * request of each.
+     */
+    public void benchmarkFilter() {
+        compare("admin:password");
+        compare("");
+    }
+
+    private void compare(final String credential) {
+        final EtcdAuthentication cached = new EtcdAuthentication(
+                Suppliers.ofInstance(new Credentials("N/A", credential)));
+        Filter current = new Filter() {
+            @Override
+            public HttpRequest filter(HttpRequest request) {
+                return cached.filter(request);
+            }
+        };
+        Filter previous = new Filter() {
+            @Override
+            public HttpRequest filter(HttpRequest request) {
+                return previousFilter(credential, request);
+            }
+        };
+        assertEquals(current.filter(request).getFirstHeaderOrNull(HttpHeaders.AUTHORIZATION),
+                previous.filter(request).getFirstHeaderOrNull(HttpHeaders.AUTHORIZATION));
+
+        time(previous, WARMUP);
+        time(current, WARMUP);
+        double previousNanos = time(previous, ITERATIONS);
+        double currentNanos = time(current, ITERATIONS);
+        System.out.println(String.format("filter %s: per request %.0f ns/op, cached %.0f ns/op (%.1fx)",
+                credential.isEmpty() ? "without credentials" : "with credentials", previousNanos, currentNanos,
+                previousNanos / currentNanos));
+        assertTrue(currentNanos > 0);
+    }
+
+    private double time(Filter filter, int iterations) {
+        int sink = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            sink += filter.filter(request).getHeaders().size();
+        }
+        long elapsed = System.nanoTime() - start;
+        assertTrue(sink >= 0);
+        return (double) elapsed / iterations;
+    }
+
+    private static HttpRequest previousFilter(String credential, HttpRequest request) {
+        if (credential != null && credential.trim().length() > 0) {
+            String foundCredential = credential;
+            if (foundCredential.contains(":")) {
+                foundCredential = base64().encode(foundCredential.getBytes());
+            }
+            if (foundCredential.matches(REGEX)) {
+                return request.toBuilder().addHeader(HttpHeaders.AUTHORIZATION, "Basic " + foundCredential).build();
+            } else {
+                throw new IllegalArgumentException("Credential is not in base64 format: credential=" + foundCredential);
+            }
+        } else {
+            return request.toBuilder().build();
+        }
+    }
+
+    /**
+     * One of the filters being compared.
+     */
+    private interface Filter {
+        HttpRequest filter(HttpRequest request);
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cdancy.etcd.rest.filters;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.jclouds.domain.Credentials;
+import org.jclouds.http.HttpRequest;
+import org.testng.annotations.Test;
+
+import com.cdancy.etcd.rest.EtcdApi;
+import com.cdancy.etcd.rest.EtcdClient;
+import com.cdancy.etcd.rest.internal.BaseEtcdMockTest;
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import com.google.common.net.HttpHeaders;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+
+/**
+ * Mock tests for the {@link EtcdAuthentication} filter.
+ */
+@Test(groups = "unit", testName = "EtcdAuthenticationMockTest")
+public class EtcdAuthenticationMockTest extends BaseEtcdMockTest {
+
+    private static final String ADMIN = "YWRtaW46cGFzc3dvcmQ=";
+
+    public void testNoCredentialsLeavesRequestUntouched() throws Exception {
+        EtcdAuthentication filter = new EtcdAuthentication(Suppliers.ofInstance(new Credentials("N/A", "")));
+        HttpRequest request = HttpRequest.builder().method("GET").endpoint("http://127.0.0.1:2379/version").build();
+        assertSame(filter.filter(request), request);
+    }
+
+    public void testColonDelimitedCredentialsAreEncoded() throws Exception {
+        EtcdAuthentication filter = new EtcdAuthentication(
+                Suppliers.ofInstance(new Credentials("N/A", "admin:password")));
+        HttpRequest request = HttpRequest.builder().method("GET").endpoint("http://127.0.0.1:2379/version").build();
+        assertEquals(filter.filter(request).getFirstHeaderOrNull(HttpHeaders.AUTHORIZATION), "Basic " + ADMIN);
+        assertEquals(filter.filter(request).getFirstHeaderOrNull(HttpHeaders.AUTHORIZATION), "Basic " + ADMIN);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testInvalidCredentials() throws Exception {
+        EtcdAuthentication filter = new EtcdAuthentication(Suppliers.ofInstance(new Credentials("N/A", "not*base64")));
+        filter.filter(HttpRequest.builder().method("GET").endpoint("http://127.0.0.1:2379/version").build());
+    }
+
+    public void testRotatedCredentialsTakeEffect() throws Exception {
+        MockWebServer server = mockEtcdJavaWebServer();
+
+        server.enqueue(new MockResponse().setBody("{\"etcdserver\":\"2.2.1\",\"etcdcluster\":\"2.2.0\"}"));
+        server.enqueue(new MockResponse().setBody("{\"etcdserver\":\"2.2.1\",\"etcdcluster\":\"2.2.0\"}"));
+        server.enqueue(new MockResponse().setBody("{\"etcdserver\":\"2.2.1\",\"etcdcluster\":\"2.2.0\"}"));
+        final AtomicReference<Credentials> current = new AtomicReference<Credentials>(
+                new Credentials("N/A", "admin:password"));
+        EtcdApi etcdApi = EtcdClient.createApi(server.getUrl("/").toString(), new Supplier<Credentials>() {
+            @Override
+            public Credentials get() {
+                return current.get();
+            }
+        });
+        try {
+            etcdApi.miscellaneousApi().version();
+            assertEquals(server.takeRequest().getHeader(HttpHeaders.AUTHORIZATION), "Basic " + ADMIN);
+
+            current.set(new Credentials("N/A", "root:secret"));
+            etcdApi.miscellaneousApi().version();
+            assertEquals(server.takeRequest().getHeader(HttpHeaders.AUTHORIZATION), "Basic cm9vdDpzZWNyZXQ=");
+
+            current.set(new Credentials("N/A", null));
+            etcdApi.miscellaneousApi().version();
+            assertNull(server.takeRequest().getHeader(HttpHeaders.AUTHORIZATION));
+        } finally {
+            etcdApi.close();
+            server.shutdown();
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cdancy.etcd.rest.handlers;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import org.jclouds.ContextBuilder;
+import org.jclouds.Fallback;
+import org.jclouds.http.HttpCommand;
+import org.jclouds.http.HttpRequest;
+import org.jclouds.http.HttpResponse;
+import org.jclouds.reflect.Invocation;
+import org.jclouds.rest.internal.GeneratedHttpRequest;
+import org.testng.annotations.Test;
+
+import com.cdancy.etcd.rest.domain.keys.Key;
+import com.cdancy.etcd.rest.fallbacks.EtcdFallbacks.KeyOnNonFoundOrCompareFailed;
+import com.cdancy.etcd.rest.features.KeysApi;
+import com.cdancy.etcd.rest.internal.BaseEtcdMockTest;
+import com.cdancy.etcd.rest.parsers.KeyWithEtcdIndex;
+import com.google.common.collect.ImmutableList;
+import com.google.common.reflect.Invokable;
+import com.google.inject.Injector;
+
+/**
+ * Compares the cost of turning a failed compare-and-swap response into a Key
+ * by way of an exception and a fallback with decoding it directly through
+ * {@link com.cdancy.etcd.rest.annotations.ExpectedErrors}.
+ */
+@Test(groups = "benchmark", testName = "ErrorDecodingBenchmark")
+public class ErrorDecodingBenchmark extends BaseEtcdMockTest {
+
+    private static final int WARMUP = 20000;
+    private static final int ITERATIONS = 100000;
+    private static final int ROUNDS = 3;
+    private static final String URL = "http://127.0.0.1:2379/v2/keys/foo?prevValue=hello";
+
+    private EtcdErrorHandler handler;
+    private KeyWithEtcdIndex parser;
+    private String body;
+
+    /**
+     * Time both ways of decoding a failed compare-and-swap, taking the best of
+     * a few interleaved rounds, and print the cost per call of each. Fails if
+     * decoding directly is not the cheaper of the two.
+     * 
+     * @throws Exception
+     *             if either decoding fails
+     */
+    public void benchmarkFailedCompareAndSwap() throws Exception {
+        Injector injector = ContextBuilder.newBuilder("etcd").endpoint("http://127.0.0.1:2379").buildInjector();
+        handler = injector.getInstance(EtcdErrorHandler.class);
+        parser = injector.getInstance(KeyWithEtcdIndex.class);
+        body = payloadFromResource("/keys-compare-and-swap-value-fail.json");
+
+        final HttpRequest plain = HttpRequest.builder().method("PUT").endpoint(URL).build();
+        final GeneratedHttpRequest generated = GeneratedHttpRequest.builder().method("PUT").endpoint(URL)
+                .invocation(Invocation.create(
+                        Invokable.from(KeysApi.class.getMethod("compareAndSwapKeyValue", String.class, String.class,
+                                String.class)),
+                        ImmutableList.<Object> of("foo", "hello", "world")))
+                .build();
+        final Fallback<Object> fallback = new KeyOnNonFoundOrCompareFailed();
+
+        DecodePath viaFallback = new DecodePath() {
+            @Override
+            public Key decode() throws Exception {
+                HttpCommand command = new HttpCommand(plain);
+                handler.handleError(command, response());
+                return (Key) fallback.createOrPropagate(command.getException());
+            }
+        };
+        DecodePath direct = new DecodePath() {
+            @Override
+            public Key decode() throws Exception {
+                HttpCommand command = new HttpCommand(generated);
+                HttpResponse response = response();
+                handler.handleError(command, response);
+                return parser.apply(response);
+            }
+        };
+
+        Key expected = viaFallback.decode();
+        Key actual = direct.decode();
+        assertEquals(actual.errorMessage(), expected.errorMessage());
+
+        time(viaFallback, WARMUP);
+        time(direct, WARMUP);
+        double fallbackNanos = Double.MAX_VALUE;
+        double directNanos = Double.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            fallbackNanos = Math.min(fallbackNanos, time(viaFallback, ITERATIONS));
+            directNanos = Math.min(directNanos, time(direct, ITERATIONS));
+        }
+        String result = String.format("failed compare-and-swap: exception + fallback %.0f ns/op, "
+                + "decoded directly %.0f ns/op (%.1fx)", fallbackNanos, directNanos, fallbackNanos / directNanos);
+        System.out.println(result);
+        assertTrue(directNanos < fallbackNanos, "decoding directly is not cheaper, " + result);
+    }
+
+    private HttpResponse response() {
+        return HttpResponse.builder().statusCode(412).message("Precondition Failed").payload(body).build();
+    }
+
+    private static double time(DecodePath path, int iterations) throws Exception {
+        int sink = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            sink += path.decode().errorMessage().index();
+        }
+        long elapsed = System.nanoTime() - start;
+        assertTrue(sink != 0);
+        return (double) elapsed / iterations;
+    }
+
+    /**
+     * A way of turning the error response into a Key.
+     */
+    private interface DecodePath {
+        Key decode() throws Exception;
+    }
+}
@@ -36,7 +36,10 @@ import com.cdancy.etcd.rest.EtcdApi;
 import com.google.common.base.Charsets;
 import com.google.common.base.Throwables;
 import com.google.gson.JsonParser;
+import com.squareup.okhttp.mockwebserver.Dispatcher;
+import com.squareup.okhttp.mockwebserver.MockResponse;
 import com.squareup.okhttp.mockwebserver.MockWebServer;
+import com.squareup.okhttp.mockwebserver.QueueDispatcher;
 import com.squareup.okhttp.mockwebserver.RecordedRequest;
 
 /**
@@ -75,6 +78,40 @@ public class BaseEtcdMockTest {
         return server;
     }
 
+    /**
+     * Get an instance of MockWebServer which answers using dispatcher.
+     * 
+     * @param dispatcher
+     *            the dispatcher to answer requests with
+     * @return instance of MockWebServer
+     * @throws IOException
+     *             if server could not be started
+     */
+    public static MockWebServer mockEtcdJavaWebServer(Dispatcher dispatcher) throws IOException {
+        MockWebServer server = new MockWebServer();
+        server.setDispatcher(dispatcher);
+        server.play();
+        return server;
+    }
+
+    /**
+     * Get an instance of MockWebServer which answers with a 503 once all
+     * enqueued responses have been used up, for code that keeps polling in the
+     * background.
+     * 
+     * @return instance of MockWebServer
+     * @throws IOException
+     *             if server could not be started
+     */
+    public static MockWebServer mockEtcdJavaWebServerFailFast() throws IOException {
+        MockWebServer server = new MockWebServer();
+        QueueDispatcher dispatcher = new QueueDispatcher();
+        dispatcher.setFailFast(new MockResponse().setResponseCode(503));
+        server.setDispatcher(dispatcher);
+        server.play();
+        return server;
+    }
+
     /**
      * Load as a String the given resource path.
      * 
@@ -0,0 +1,121 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cdancy.etcd.rest.internal;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.base.Charsets;
+import com.squareup.okhttp.mockwebserver.Dispatcher;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.RecordedRequest;
+
+/**
+ * Answers key requests from their path rather than from a queue, so that
+ * requests arriving concurrently, in any order, each get their own response.
+ * PUTs echo back the value sent, GETs return "value-of-" followed by the key,
+ * keys starting with "missing" are not found and keys starting with "broken"
+ * fail with a 500. Health checks and version requests always pass and anything else is not found.
+ * Responses carry the configured X-Raft-Term. Also tracks how many requests were being answered at once.
+ */
+public class KeyEchoDispatcher extends Dispatcher {
+
+    private final long delayMillis;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private volatile int raftTerm = 1;
+    private final AtomicInteger maxInFlight = new AtomicInteger();
+    private final ConcurrentMap<String, AtomicInteger> requests = new ConcurrentHashMap<String, AtomicInteger>();
+
+    public KeyEchoDispatcher(long delayMillis) {
+        this.delayMillis = delayMillis;
+    }
+
+    @Override
+    public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+        int current = inFlight.incrementAndGet();
+        try {
+            while (true) {
+                int max = maxInFlight.get();
+                if (current <= max || maxInFlight.compareAndSet(max, current)) {
+                    break;
+                }
+            }
+            TimeUnit.MILLISECONDS.sleep(delayMillis);
+            String path = request.getPath();
+            if (path.equals("/health")) {
+                return new MockResponse().setResponseCode(200).setBody("{\"health\": \"true\"}");
+            } else if (path.equals("/version")) {
+                return new MockResponse().setResponseCode(200)
+                        .setBody("{\"etcdserver\":\"2.3.3\",\"etcdcluster\":\"2.3.0\"}");
+            } else if (!path.contains("/keys/")) {
+                return new MockResponse().setResponseCode(404).setBody("404 page not found");
+            }
+            int query = path.indexOf('?');
+            String key = path.substring(path.indexOf("/keys/") + "/keys/".length(), query < 0 ? path.length() : query);
+            AtomicInteger count = requests.putIfAbsent(key, new AtomicInteger(1));
+            if (count != null) {
+                count.incrementAndGet();
+            }
+            if (key.startsWith("missing")) {
+                return new MockResponse().setResponseCode(404).addHeader("X-Etcd-Index", "7").setBody(
+                        "{\"errorCode\":100,\"message\":\"Key not found\",\"cause\":\"/" + key + "\",\"index\":7}");
+            } else if (key.startsWith("broken")) {
+                return new MockResponse().setResponseCode(500).setBody("{\"message\":\"boom\"}");
+            }
+            String value = "value-of-" + key;
+            String action = "get";
+            if (request.getMethod().equals("PUT")) {
+                action = "set";
+                value = URLDecoder.decode(request.getUtf8Body().substring("value=".length()).split("&")[0],
+                        Charsets.UTF_8.name());
+            }
+            return new MockResponse().setResponseCode(200).addHeader("X-Etcd-Index", "7")
+                    .addHeader("X-Raft-Term", raftTerm).setBody("{\"action\":\""
+                    + action + "\",\"node\":{\"key\":\"/" + key + "\",\"value\":\"" + value
+                    + "\",\"modifiedIndex\":7,\"createdIndex\":7}}");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            inFlight.decrementAndGet();
+        }
+    }
+
+    public void raftTerm(int raftTerm) {
+        this.raftTerm = raftTerm;
+    }
+
+    public int maxInFlight() {
+        return maxInFlight.get();
+    }
+
+    /**
+     * The number of requests made for key.
+     * 
+     * @param key
+     *            the key, without leading slash
+     * @return requests made for key
+     */
+    public int requests(String key) {
+        AtomicInteger count = requests.get(key);
+        return count != null ? count.get() : 0;
+    }
+}
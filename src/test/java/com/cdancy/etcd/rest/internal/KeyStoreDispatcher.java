@@ -0,0 +1,426 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cdancy.etcd.rest.internal;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.base.Charsets;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.squareup.okhttp.mockwebserver.Dispatcher;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.RecordedRequest;
+
+/**
+ * A small in-memory etcd keys store answering requests the way etcd would, so
+ * that recipes made of several dependent calls can be tested end to end. It
+ * supports set, create, in-order create, compare-and-swap, compare-and-delete,
+ * refresh, TTLs, directories and waiting on keys from a given index. Also
+ * counts the waits it answered, so tests can tell how many waiters a change
+ * woke up.
+ */
+public class KeyStoreDispatcher extends Dispatcher {
+
+    private static final long MAX_WAIT_MILLIS = 10000;
+
+    private final Object lock = new Object();
+    private final TreeMap<String, Entry> entries = new TreeMap<String, Entry>();
+    private final List<Event> history = new ArrayList<Event>();
+    private final AtomicInteger waitsAnswered = new AtomicInteger();
+    private final AtomicInteger requests = new AtomicInteger();
+    private int index;
+
+    @Override
+    public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+        requests.incrementAndGet();
+        String path = request.getPath();
+        if (path.equals("/health")) {
+            return new MockResponse().setResponseCode(200).setBody("{\"health\": \"true\"}");
+        } else if (path.equals("/version")) {
+            return new MockResponse().setResponseCode(200).setBody("{\"etcdserver\":\"2.3.3\",\"etcdcluster\":\"2.3.0\"}");
+        } else if (!path.contains("/keys/")) {
+            return new MockResponse().setResponseCode(404).setBody("404 page not found");
+        }
+        int query = path.indexOf('?');
+        String key = path.substring(path.indexOf("/keys/") + "/keys".length(), query < 0 ? path.length() : query);
+        if (key.length() > 1 && key.endsWith("/")) {
+            key = key.substring(0, key.length() - 1);
+        }
+        Map<String, String> params = params(query < 0 ? "" : path.substring(query + 1));
+        params.putAll(params(request.getUtf8Body()));
+
+        String method = request.getMethod();
+        if (method.equals("GET") && "true".equals(params.get("wait"))) {
+            return await(key, params);
+        }
+        synchronized (lock) {
+            expire();
+            if (method.equals("GET")) {
+                return get(key, params);
+            } else if (method.equals("PUT")) {
+                return put(key, params);
+            } else if (method.equals("POST")) {
+                return set(key + "/" + String.format("%020d", index + 1), params.get("value"), ttl(params), null,
+                        "create");
+            } else if (method.equals("DELETE")) {
+                return delete(key, params);
+            }
+        }
+        return new MockResponse().setResponseCode(405);
+    }
+
+    /**
+     * Total number of requests answered.
+     * 
+     * @return number of requests
+     */
+    public int requests() {
+        return requests.get();
+    }
+
+    /**
+     * Number of waits answered with an event.
+     * 
+     * @return number of answered waits
+     */
+    public int waitsAnswered() {
+        return waitsAnswered.get();
+    }
+
+    /**
+     * The current value of key.
+     * 
+     * @param key
+     *            the key, without leading slash
+     * @return value of key or null if it does not exist
+     */
+    public String value(String key) {
+        synchronized (lock) {
+            expire();
+            Entry entry = entries.get("/" + key);
+            return entry != null ? entry.value : null;
+        }
+    }
+
+    /**
+     * The keys directly beneath dir.
+     * 
+     * @param dir
+     *            the directory, without leading slash
+     * @return keys in dir, in order
+     */
+    public List<String> keys(String dir) {
+        synchronized (lock) {
+            expire();
+            List<String> keys = new ArrayList<String>();
+            for (String key : children("/" + dir).keySet()) {
+                keys.add(key.substring(1));
+            }
+            return keys;
+        }
+    }
+
+    private MockResponse get(String key, Map<String, String> params) {
+        Entry entry = entries.get(key);
+        boolean recursive = "true".equals(params.get("recursive"));
+        if (entry != null && !entry.dir) {
+            return respond(200, event("get", entry.toJson(), null));
+        }
+        SortedMap<String, Entry> children = children(key);
+        if (entry == null && children.isEmpty()) {
+            return notFound(key);
+        }
+        JsonObject node = entry != null ? entry.toJson() : dirJson(key);
+        node.add("nodes", nodes(key, recursive));
+        return respond(200, event("get", node, null));
+    }
+
+    private MockResponse put(String key, Map<String, String> params) {
+        Entry existing = entries.get(key);
+        if ("true".equals(params.get("dir"))) {
+            if (existing != null || !children(key).isEmpty()) {
+                return error(403, 102, "Not a file", key);
+            }
+            Entry dir = new Entry(key, null, true, ++index, index, ttl(params));
+            entries.put(key, dir);
+            return respond(201, record(key, event("set", dir.toJson(), null)));
+        }
+        if (existing != null && existing.dir) {
+            return error(403, 102, "Not a file", key);
+        }
+        String prevExist = params.get("prevExist");
+        String prevValue = params.get("prevValue");
+        String prevIndex = params.get("prevIndex");
+        if ("true".equals(params.get("refresh"))) {
+            if (existing == null) {
+                return notFound(key);
+            } else if (prevValue != null && !prevValue.equals(existing.value)) {
+                return error(412, 101, "Compare failed", "[" + prevValue + " != " + existing.value + "]");
+            }
+            existing.ttl(ttl(params));
+            existing.modifiedIndex = ++index;
+            return respond(200, event("update", existing.toJson(), existing.toJson()));
+        }
+        if ("false".equals(prevExist) && existing != null) {
+            return error(412, 105, "Key already exists", key);
+        }
+        if (("true".equals(prevExist) || prevValue != null || prevIndex != null) && existing == null) {
+            return notFound(key);
+        }
+        if (prevValue != null && !prevValue.equals(existing.value)
+                || prevIndex != null && Integer.parseInt(prevIndex) != existing.modifiedIndex) {
+            return error(412, 101, "Compare failed", "[" + prevValue + " != " + existing.value + "]");
+        }
+        String action = prevValue != null || prevIndex != null ? "compareAndSwap"
+                : "false".equals(prevExist) ? "create" : "true".equals(prevExist) ? "update" : "set";
+        return set(key, params.get("value"), ttl(params), existing, action);
+    }
+
+    private MockResponse set(String key, String value, int ttl, Entry existing, String action) {
+        Entry entry = new Entry(key, value, false, existing != null ? existing.createdIndex : ++index, 0, ttl);
+        entry.modifiedIndex = existing != null ? ++index : index;
+        entries.put(key, entry);
+        JsonObject body = event(action, entry.toJson(), existing != null ? existing.toJson() : null);
+        return respond(existing != null || !action.equals("create") ? 200 : 201, record(key, body));
+    }
+
+    private MockResponse delete(String key, Map<String, String> params) {
+        Entry existing = entries.get(key);
+        SortedMap<String, Entry> children = children(key);
+        if (existing == null && children.isEmpty()) {
+            return notFound(key);
+        }
+        String prevValue = params.get("prevValue");
+        String prevIndex = params.get("prevIndex");
+        if (existing != null && (prevValue != null && !prevValue.equals(existing.value)
+                || prevIndex != null && Integer.parseInt(prevIndex) != existing.modifiedIndex)) {
+            return error(412, 101, "Compare failed", "[" + prevValue + " != " + existing.value + "]");
+        }
+        boolean dir = existing == null || existing.dir;
+        if (dir && !"true".equals(params.get("recursive")) && !"true".equals(params.get("dir"))) {
+            return error(403, 102, "Not a file", key);
+        }
+        entries.keySet().removeAll(new ArrayList<String>(children.keySet()));
+        entries.remove(key);
+        JsonObject node = existing != null ? existing.toJson() : dirJson(key);
+        node.addProperty("modifiedIndex", ++index);
+        node.remove("value");
+        String action = prevValue != null || prevIndex != null ? "compareAndDelete" : "delete";
+        return respond(200, record(key, event(action, node, existing != null ? existing.toJson() : dirJson(key))));
+    }
+
+    private MockResponse await(String key, Map<String, String> params) throws InterruptedException {
+        boolean recursive = "true".equals(params.get("recursive"));
+        long deadline = System.currentTimeMillis() + MAX_WAIT_MILLIS;
+        synchronized (lock) {
+            int waitIndex = params.containsKey("waitIndex") ? Integer.parseInt(params.get("waitIndex")) : index + 1;
+            while (true) {
+                expire();
+                Event found = null;
+                for (int i = history.size() - 1; i >= 0 && history.get(i).index >= waitIndex; i--) {
+                    Event event = history.get(i);
+                    if (event.key.equals(key) || recursive && event.key.startsWith(key + "/")) {
+                        found = event;
+                    }
+                }
+                if (found != null) {
+                    waitsAnswered.incrementAndGet();
+                    return respond(200, found.body);
+                }
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    // what a long-poll timing out looks like to the client
+                    return new MockResponse().setResponseCode(503);
+                }
+                lock.wait(Math.min(remaining, 50));
+            }
+        }
+    }
+
+    private void expire() {
+        long now = System.currentTimeMillis();
+        for (Entry entry : new ArrayList<Entry>(entries.values())) {
+            if (entry.expiresAt > 0 && entry.expiresAt <= now) {
+                entries.remove(entry.key);
+                JsonObject node = entry.toJson();
+                node.addProperty("modifiedIndex", ++index);
+                node.remove("value");
+                record(entry.key, event("expire", node, entry.toJson()));
+            }
+        }
+    }
+
+    private JsonObject record(String key, JsonObject body) {
+        history.add(new Event(index, key, body));
+        lock.notifyAll();
+        return body;
+    }
+
+    private SortedMap<String, Entry> children(String key) {
+        String prefix = key.equals("/") ? "/" : key + "/";
+        return entries.subMap(prefix, prefix + Character.MAX_VALUE);
+    }
+
+    private JsonArray nodes(String key, boolean recursive) {
+        String prefix = key.equals("/") ? "/" : key + "/";
+        Map<String, JsonObject> direct = new TreeMap<String, JsonObject>();
+        for (Entry entry : children(key).values()) {
+            String rest = entry.key.substring(prefix.length());
+            int slash = rest.indexOf('/');
+            String child = slash < 0 ? entry.key : prefix + rest.substring(0, slash);
+            if (!direct.containsKey(child)) {
+                Entry childEntry = entries.get(child);
+                JsonObject node = childEntry != null ? childEntry.toJson() : dirJson(child);
+                if (recursive && (childEntry == null || childEntry.dir)) {
+                    node.add("nodes", nodes(child, true));
+                }
+                direct.put(child, node);
+            }
+        }
+        JsonArray nodes = new JsonArray();
+        for (JsonObject node : direct.values()) {
+            nodes.add(node);
+        }
+        return nodes;
+    }
+
+    private static JsonObject dirJson(String key) {
+        JsonObject node = new JsonObject();
+        node.addProperty("key", key);
+        node.addProperty("dir", true);
+        return node;
+    }
+
+    private static JsonObject event(String action, JsonObject node, JsonObject prevNode) {
+        JsonObject body = new JsonObject();
+        body.addProperty("action", action);
+        body.add("node", node);
+        if (prevNode != null) {
+            body.add("prevNode", prevNode);
+        }
+        return body;
+    }
+
+    private MockResponse notFound(String key) {
+        return error(404, 100, "Key not found", key);
+    }
+
+    private MockResponse error(int status, int errorCode, String message, String cause) {
+        JsonObject body = new JsonObject();
+        body.addProperty("errorCode", errorCode);
+        body.addProperty("message", message);
+        body.addProperty("cause", cause);
+        body.addProperty("index", index);
+        return respond(status, body);
+    }
+
+    private MockResponse respond(int status, JsonObject body) {
+        return new MockResponse().setResponseCode(status).addHeader("X-Etcd-Index", index)
+                .addHeader("X-Raft-Term", 1).setBody(body.toString());
+    }
+
+    private static int ttl(Map<String, String> params) {
+        String ttl = params.get("ttl");
+        return ttl != null && !ttl.isEmpty() ? Integer.parseInt(ttl) : 0;
+    }
+
+    private static Map<String, String> params(String encoded) {
+        Map<String, String> params = new HashMap<String, String>();
+        if (encoded == null || encoded.isEmpty()) {
+            return params;
+        }
+        try {
+            for (String pair : encoded.split("&")) {
+                int equals = pair.indexOf('=');
+                String name = URLDecoder.decode(equals < 0 ? pair : pair.substring(0, equals), Charsets.UTF_8.name());
+                String value = equals < 0 ? "" : URLDecoder.decode(pair.substring(equals + 1), Charsets.UTF_8.name());
+                params.put(name, value);
+            }
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        return params;
+    }
+
+    /**
+     * A key or directory held by the store.
+     */
+    private static final class Entry {
+        private final String key;
+        private final String value;
+        private final boolean dir;
+        private final int createdIndex;
+        private int modifiedIndex;
+        private int ttl;
+        private long expiresAt;
+
+        Entry(String key, String value, boolean dir, int createdIndex, int modifiedIndex, int ttl) {
+            this.key = key;
+            this.value = value;
+            this.dir = dir;
+            this.createdIndex = createdIndex;
+            this.modifiedIndex = modifiedIndex;
+            ttl(ttl);
+        }
+
+        void ttl(int seconds) {
+            this.ttl = seconds;
+            this.expiresAt = seconds > 0 ? System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(seconds) : 0;
+        }
+
+        JsonObject toJson() {
+            JsonObject node = new JsonObject();
+            node.addProperty("key", key);
+            if (dir) {
+                node.addProperty("dir", true);
+            } else {
+                node.addProperty("value", value);
+            }
+            if (ttl > 0) {
+                node.addProperty("ttl", Math.max(1, (expiresAt - System.currentTimeMillis() + 999) / 1000));
+            }
+            node.addProperty("modifiedIndex", modifiedIndex);
+            node.addProperty("createdIndex", createdIndex);
+            return node;
+        }
+    }
+
+    /**
+     * A change recorded for those waiting on keys.
+     */
+    private static final class Event {
+        private final int index;
+        private final String key;
+        private final JsonObject body;
+
+        Event(int index, String key, JsonObject body) {
+            this.index = index;
+            this.key = key;
+            this.body = body;
+        }
+    }
+}
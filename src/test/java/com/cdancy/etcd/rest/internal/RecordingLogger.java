@@ -0,0 +1,107 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cdancy.etcd.rest.internal;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.jclouds.logging.BaseLogger;
+
+/**
+ * Keeps the warnings logged to it, along with their Throwable, so tests can
+ * check what a component reported. Every other level is disabled.
+ */
+public class RecordingLogger extends BaseLogger {
+
+    private final BlockingQueue<Throwable> warnings = new LinkedBlockingQueue<Throwable>();
+
+    /**
+     * Wait for the next warning logged with a Throwable.
+     * 
+     * @param timeout
+     *            how long to wait
+     * @param unit
+     *            unit of timeout
+     * @return the Throwable logged or null if none was in time
+     * @throws InterruptedException
+     *             if interrupted while waiting
+     */
+    public Throwable nextWarning(long timeout, TimeUnit unit) throws InterruptedException {
+        return warnings.poll(timeout, unit);
+    }
+
+    @Override
+    protected void logWarn(String message, Throwable throwable) {
+        warnings.add(throwable);
+    }
+
+    @Override
+    protected void logWarn(String message) {
+    }
+
+    @Override
+    protected void logError(String message, Throwable throwable) {
+    }
+
+    @Override
+    protected void logError(String message) {
+    }
+
+    @Override
+    protected void logInfo(String message) {
+    }
+
+    @Override
+    protected void logDebug(String message) {
+    }
+
+    @Override
+    protected void logTrace(String message) {
+    }
+
+    @Override
+    public String getCategory() {
+        return getClass().getName();
+    }
+
+    @Override
+    public boolean isTraceEnabled() {
+        return false;
+    }
+
+    @Override
+    public boolean isDebugEnabled() {
+        return false;
+    }
+
+    @Override
+    public boolean isInfoEnabled() {
+        return false;
+    }
+
+    @Override
+    public boolean isWarnEnabled() {
+        return true;
+    }
+
+    @Override
+    public boolean isErrorEnabled() {
+        return false;
+    }
+}
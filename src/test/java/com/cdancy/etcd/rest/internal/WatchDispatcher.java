@@ -0,0 +1,77 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cdancy.etcd.rest.internal;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.squareup.okhttp.mockwebserver.Dispatcher;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.RecordedRequest;
+
+/**
+ * Dispatcher which answers long-polls (wait=true) and all other requests from
+ * separate queues, so code watching in the background does not consume the
+ * responses meant for the code under test. A long-poll with nothing queued
+ * for it is held for a moment and then answered with a 503, as are other
+ * requests with nothing queued.
+ */
+public class WatchDispatcher extends Dispatcher {
+
+    private final BlockingQueue<MockResponse> waits = new LinkedBlockingQueue<MockResponse>();
+    private final BlockingQueue<MockResponse> others = new LinkedBlockingQueue<MockResponse>();
+    private final BlockingQueue<RecordedRequest> otherRequests = new LinkedBlockingQueue<RecordedRequest>();
+
+    public WatchDispatcher enqueueWait(MockResponse response) {
+        waits.add(response);
+        return this;
+    }
+
+    public WatchDispatcher enqueue(MockResponse response) {
+        others.add(response);
+        return this;
+    }
+
+    /**
+     * Take the next request which was not a long-poll.
+     * 
+     * @return next recorded request
+     * @throws InterruptedException
+     *             if interrupted while waiting
+     */
+    public RecordedRequest takeRequest() throws InterruptedException {
+        return otherRequests.poll(5, TimeUnit.SECONDS);
+    }
+
+    public int pendingRequests() {
+        return otherRequests.size();
+    }
+
+    @Override
+    public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+        MockResponse response;
+        if (request.getPath().contains("wait=true")) {
+            response = waits.poll(500, TimeUnit.MILLISECONDS);
+        } else {
+            otherRequests.add(request);
+            response = others.poll();
+        }
+        return response != null ? response : new MockResponse().setResponseCode(503);
+    }
+}
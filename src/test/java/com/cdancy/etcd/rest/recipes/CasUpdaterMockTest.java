@@ -0,0 +1,166 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cdancy.etcd.rest.recipes;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.Test;
+
+import com.cdancy.etcd.rest.EtcdApi;
+import com.cdancy.etcd.rest.domain.keys.Key;
+import com.cdancy.etcd.rest.error.ErrorMessage;
+import com.cdancy.etcd.rest.internal.BaseEtcdMockTest;
+import com.cdancy.etcd.rest.internal.KeyStoreDispatcher;
+import com.google.common.base.Function;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+
+/**
+ * Mock tests for the {@link CasUpdater} recipe.
+ */
+@Test(groups = "unit", testName = "CasUpdaterMockTest")
+public class CasUpdaterMockTest extends BaseEtcdMockTest {
+
+    private static final Function<String, String> INCREMENT = new Function<String, String>() {
+        @Override
+        public String apply(String value) {
+            return Integer.toString(value != null ? Integer.parseInt(value) + 1 : 1);
+        }
+    };
+
+    public void testUpdateCreatesMissingKey() throws Exception {
+        MockWebServer server = mockEtcdJavaWebServer();
+        KeyStoreDispatcher store = new KeyStoreDispatcher();
+        server.setDispatcher(store);
+        EtcdApi etcdApi = api(server.getUrl("/"));
+        CasUpdater updater = CasUpdater.builder(etcdApi.keysApi()).build();
+        try {
+            Key created = updater.update("counters/hits", INCREMENT);
+            assertNull(created.errorMessage());
+            assertEquals(created.node().value(), "1");
+            Key updated = updater.update("counters/hits", INCREMENT);
+            assertEquals(updated.node().value(), "2");
+            assertEquals(store.value("counters/hits"), "2");
+
+            ConflictStats stats = updater.stats("counters/hits");
+            assertEquals(stats.updates(), 2);
+            assertEquals(stats.attempts(), 2);
+            assertEquals(stats.conflicts(), 0);
+        } finally {
+            etcdApi.close();
+            server.shutdown();
+        }
+    }
+
+    public void testUpdateLeftAloneWhenFunctionReturnsNull() throws Exception {
+        MockWebServer server = mockEtcdJavaWebServer();
+        KeyStoreDispatcher store = new KeyStoreDispatcher();
+        server.setDispatcher(store);
+        EtcdApi etcdApi = api(server.getUrl("/"));
+        CasUpdater updater = CasUpdater.builder(etcdApi.keysApi()).build();
+        try {
+            etcdApi.keysApi().createKey("config/mode", "on");
+            Key current = updater.update("config/mode", new Function<String, String>() {
+                @Override
+                public String apply(String value) {
+                    return null;
+                }
+            });
+            assertEquals(current.action(), "get");
+            assertEquals(store.value("config/mode"), "on");
+            assertEquals(updater.stats("config/mode").attempts(), 0);
+        } finally {
+            etcdApi.close();
+            server.shutdown();
+        }
+    }
+
+    public void testConcurrentUpdatesAllApplied() throws Exception {
+        MockWebServer server = mockEtcdJavaWebServer();
+        KeyStoreDispatcher store = new KeyStoreDispatcher();
+        server.setDispatcher(store);
+        EtcdApi etcdApi = api(server.getUrl("/"));
+        final CasUpdater updater = CasUpdater.builder(etcdApi.keysApi()).maxAttempts(100).build();
+        ExecutorService executor = Executors.newFixedThreadPool(6);
+        try {
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (int i = 0; i < 6; i++) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        for (int i = 0; i < 5; i++) {
+                            assertNull(updater.update("counters/hits", INCREMENT).errorMessage());
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get(60, TimeUnit.SECONDS);
+            }
+            assertEquals(store.value("counters/hits"), "30");
+            ConflictStats stats = updater.stats("counters/hits");
+            assertEquals(stats.updates(), 30);
+            assertEquals(stats.attempts(), 30 + stats.conflicts());
+            assertEquals(stats.exhausted(), 0);
+            assertThat(stats.conflictRate()).isGreaterThanOrEqualTo(0).isLessThan(1);
+            assertTrue(updater.stats().containsKey("counters/hits"));
+        } finally {
+            executor.shutdownNow();
+            etcdApi.close();
+            server.shutdown();
+        }
+    }
+
+    public void testUpdateGivesUpAfterMaxAttempts() throws Exception {
+        MockWebServer server = mockEtcdJavaWebServer();
+        server.setDispatcher(new KeyStoreDispatcher());
+        final EtcdApi etcdApi = api(server.getUrl("/"));
+        CasUpdater updater = CasUpdater.builder(etcdApi.keysApi()).maxAttempts(3).backoff(1, 5).build();
+        try {
+            etcdApi.keysApi().createKey("config/mode", "on");
+            Key failed = updater.update("config/mode", new Function<String, String>() {
+                @Override
+                public String apply(String value) {
+                    // someone else always gets there first
+                    etcdApi.keysApi().createKey("config/mode", value + "!");
+                    return "off";
+                }
+            });
+            assertEquals(failed.errorMessage().errorCode(), ErrorMessage.COMPARE_FAILED);
+            ConflictStats stats = updater.stats("config/mode");
+            assertEquals(stats.attempts(), 3);
+            assertEquals(stats.conflicts(), 3);
+            assertEquals(stats.exhausted(), 1);
+            assertEquals(stats.conflictRate(), 1.0);
+        } finally {
+            etcdApi.close();
+            server.shutdown();
+        }
+    }
+}
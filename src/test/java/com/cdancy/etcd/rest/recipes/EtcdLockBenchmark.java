@@ -0,0 +1,137 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cdancy.etcd.rest.recipes;
+
+import static org.testng.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.testng.annotations.Test;
+
+import com.cdancy.etcd.rest.EtcdApi;
+import com.cdancy.etcd.rest.domain.keys.Key;
+import com.cdancy.etcd.rest.features.KeysApi;
+import com.cdancy.etcd.rest.internal.BaseEtcdMockTest;
+import com.cdancy.etcd.rest.internal.KeyStoreDispatcher;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+
+/**
+ * Measures how long acquiring an {@link EtcdLock} takes as the number of
+ * contenders grows, next to a lock whose waiters all watch the lock
+ * directory, and how many waiters each hand-over wakes in either case.
+ */
+@Test(groups = "benchmark", testName = "EtcdLockBenchmark")
+public class EtcdLockBenchmark extends BaseEtcdMockTest {
+
+    private static final int ROUNDS = 10;
+    private static final int[] CONTENDERS = { 1, 2, 4, 8, 16 };
+
+    /**
+     * Run every contender count against both locks and print the mean time
+     * to acquire and the waits answered per acquisition.
+     * 
+     * @throws Exception
+     *             if a contender fails
+     */
+    public void benchmarkContention() throws Exception {
+        // keep the mock server from logging every request while timing
+        Logger.getLogger(MockWebServer.class.getName()).setLevel(Level.WARNING);
+        run(2, false);
+        run(2, true);
+        for (int contenders : CONTENDERS) {
+            String predecessor = run(contenders, false);
+            String directory = run(contenders, true);
+            System.out.println(String.format("%2d contenders: waiting on predecessor %s, watching directory %s",
+                    contenders, predecessor, directory));
+        }
+    }
+
+    private String run(int contenders, final boolean watchDirectory) throws Exception {
+        MockWebServer server = mockEtcdJavaWebServer();
+        KeyStoreDispatcher store = new KeyStoreDispatcher();
+        server.setDispatcher(store);
+        final EtcdApi etcdApi = api(server.getUrl("/"));
+        final EtcdLock lock = EtcdLock.builder(etcdApi.keysApi(), "locks/bench").build();
+        final AtomicLong waited = new AtomicLong();
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(contenders);
+        try {
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (int i = 0; i < contenders; i++) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        start.await();
+                        for (int round = 0; round < ROUNDS; round++) {
+                            long begin = System.nanoTime();
+                            String key = watchDirectory ? acquireWatchingDirectory(etcdApi.keysApi(), "locks/bench")
+                                    : null;
+                            LockLease lease = watchDirectory ? null : lock.acquire();
+                            waited.addAndGet(System.nanoTime() - begin);
+                            TimeUnit.MILLISECONDS.sleep(2);
+                            if (lease != null) {
+                                lease.release();
+                            } else {
+                                etcdApi.keysApi().deleteKey(key);
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+            start.countDown();
+            for (Future<?> future : futures) {
+                future.get(5, TimeUnit.MINUTES);
+            }
+            assertEquals(store.keys("locks/bench").size(), 0);
+            int acquisitions = contenders * ROUNDS;
+            return String.format("%.2f ms/acquire %.2f wakeups/acquire",
+                    waited.get() / 1e6 / acquisitions, (double) store.waitsAnswered() / acquisitions);
+        } finally {
+            executor.shutdownNow();
+            lock.close();
+            etcdApi.close();
+            server.shutdown();
+        }
+    }
+
+    /**
+     * The lock as commonly written by hand: every waiter watches the whole
+     * directory and checks again after any change to it.
+     */
+    private static String acquireWatchingDirectory(KeysApi keysApi, String dir) {
+        String key = keysApi.createInOrderKey(dir, "", 30).node().key();
+        while (true) {
+            Key listing = keysApi.listInOrderKey(dir);
+            if (listing.node().nodes().get(0).key().equals(key)) {
+                return key.substring(1);
+            }
+            keysApi.waitKey(dir, true, listing.etcdIndex() + 1);
+        }
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cdancy.etcd.rest.recipes;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.annotations.Test;
+
+import com.cdancy.etcd.rest.EtcdApi;
+import com.cdancy.etcd.rest.internal.BaseEtcdMockTest;
+import com.cdancy.etcd.rest.internal.KeyStoreDispatcher;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+
+/**
+ * Mock tests for the {@link EtcdLock} recipe.
+ */
+@Test(groups = "unit", testName = "EtcdLockMockTest")
+public class EtcdLockMockTest extends BaseEtcdMockTest {
+
+    public void testAcquireAndRelease() throws Exception {
+        MockWebServer server = mockEtcdJavaWebServer();
+        KeyStoreDispatcher store = new KeyStoreDispatcher();
+        server.setDispatcher(store);
+        EtcdApi etcdApi = api(server.getUrl("/"));
+        EtcdLock lock = EtcdLock.builder(etcdApi.keysApi(), "locks/orders").value("me").build();
+        try {
+            LockLease lease = lock.acquire();
+            assertTrue(lease.isValid());
+            assertTrue(lease.key().startsWith("locks/orders/"));
+            assertTrue(lease.fencingToken() > 0);
+            assertEquals(store.value(lease.key()), "me");
+
+            assertTrue(lease.release());
+            assertFalse(lease.isValid());
+            assertFalse(lease.release());
+            assertTrue(store.keys("locks/orders").isEmpty());
+
+            LockLease next = lock.acquire();
+            assertTrue(next.fencingToken() > lease.fencingToken());
+            next.close();
+        } finally {
+            lock.close();
+            etcdApi.close();
+            server.shutdown();
+        }
+    }
+
+    public void testTryAcquireWhenTaken() throws Exception {
+        MockWebServer server = mockEtcdJavaWebServer();
+        KeyStoreDispatcher store = new KeyStoreDispatcher();
+        server.setDispatcher(store);
+        EtcdApi etcdApi = api(server.getUrl("/"));
+        EtcdLock lock = EtcdLock.builder(etcdApi.keysApi(), "locks/orders").build();
+        try {
+            LockLease held = lock.tryAcquire();
+            assertNotNull(held);
+            assertNull(lock.tryAcquire());
+            assertEquals(store.keys("locks/orders").size(), 1);
+            held.release();
+            assertNotNull(lock.tryAcquire());
+        } finally {
+            lock.close();
+            etcdApi.close();
+            server.shutdown();
+        }
+    }
+
+    public void testContendersWaitOnPredecessorOnly() throws Exception {
+        MockWebServer server = mockEtcdJavaWebServer();
+        KeyStoreDispatcher store = new KeyStoreDispatcher();
+        server.setDispatcher(store);
+        final EtcdApi etcdApi = api(server.getUrl("/"));
+        final EtcdLock lock = EtcdLock.builder(etcdApi.keysApi(), "locks/orders").build();
+        final int contenders = 6;
+        final AtomicInteger holders = new AtomicInteger();
+        final AtomicInteger maxHolders = new AtomicInteger();
+        final List<Integer> tokens = Collections.synchronizedList(new ArrayList<Integer>());
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(contenders);
+        try {
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (int i = 0; i < contenders; i++) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        start.await();
+                        LockLease lease = lock.acquire();
+                        try {
+                            int current = holders.incrementAndGet();
+                            maxHolders.set(Math.max(maxHolders.get(), current));
+                            tokens.add(lease.fencingToken());
+                            TimeUnit.MILLISECONDS.sleep(20);
+                            holders.decrementAndGet();
+                        } finally {
+                            lease.release();
+                        }
+                        return null;
+                    }
+                }));
+            }
+            start.countDown();
+            for (Future<?> future : futures) {
+                future.get(30, TimeUnit.SECONDS);
+            }
+            assertEquals(maxHolders.get(), 1);
+            assertEquals(tokens.size(), contenders);
+            assertThat(tokens).isSorted();
+            // each release wakes the single waiter behind it
+            assertThat(store.waitsAnswered()).isLessThanOrEqualTo(contenders - 1);
+            assertTrue(store.keys("locks/orders").isEmpty());
+        } finally {
+            executor.shutdownNow();
+            lock.close();
+            etcdApi.close();
+            server.shutdown();
+        }
+    }
+
+    public void testLeaseKeptAliveAndLost() throws Exception {
+        MockWebServer server = mockEtcdJavaWebServer();
+        KeyStoreDispatcher store = new KeyStoreDispatcher();
+        server.setDispatcher(store);
+        EtcdApi etcdApi = api(server.getUrl("/"));
+        EtcdLock lock = EtcdLock.builder(etcdApi.keysApi(), "locks/orders").ttl(1).build();
+        try {
+            LockLease lease = lock.acquire();
+            TimeUnit.MILLISECONDS.sleep(1500);
+            assertTrue(lease.isValid());
+            assertNotNull(store.value(lease.key()));
+
+            etcdApi.keysApi().deleteKey(lease.key());
+            TimeUnit.MILLISECONDS.sleep(800);
+            assertFalse(lease.isValid());
+            assertFalse(lease.release());
+        } finally {
+            lock.close();
+            etcdApi.close();
+            server.shutdown();
+        }
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cdancy.etcd.rest.recipes;
+
+import static org.testng.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.testng.annotations.Test;
+
+import com.cdancy.etcd.rest.EtcdApi;
+import com.cdancy.etcd.rest.domain.keys.Key;
+import com.cdancy.etcd.rest.domain.keys.Node;
+import com.cdancy.etcd.rest.features.KeysApi;
+import com.cdancy.etcd.rest.internal.BaseEtcdMockTest;
+import com.cdancy.etcd.rest.internal.KeyStoreDispatcher;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+
+/**
+ * Compares how many items per second competing consumers get through with
+ * {@link EtcdQueue} against consuming one item at a time by listing the queue
+ * and deleting its head for every item.
+ */
+@Test(groups = "benchmark", testName = "EtcdQueueBenchmark")
+public class EtcdQueueBenchmark extends BaseEtcdMockTest {
+
+    private static final int ITEMS = 200;
+    private static final int CONSUMERS = 4;
+    private static final int BATCH = 16;
+
+    /**
+     * Drain the same queue both ways and print the items per second of each.
+     * 
+     * @throws Exception
+     *             if a consumer fails
+     */
+    public void benchmarkThroughput() throws Exception {
+        // keep the mock server from logging every request while timing
+        Logger.getLogger(MockWebServer.class.getName()).setLevel(Level.WARNING);
+        double listEach = run(false);
+        double batched = run(true);
+        System.out.println(String.format("%d items, %d consumers: list and delete head %.0f items/s, "
+                + "EtcdQueue.poll(%d) %.0f items/s (%.1fx)", ITEMS, CONSUMERS, listEach, BATCH, batched,
+                batched / listEach));
+    }
+
+    private double run(final boolean batched) throws Exception {
+        MockWebServer server = mockEtcdJavaWebServer();
+        server.setDispatcher(new KeyStoreDispatcher());
+        final EtcdApi etcdApi = api(server.getUrl("/"));
+        final EtcdQueue producer = EtcdQueue.builder(etcdApi.keysApi(), "queues/bench").build();
+        ExecutorService executor = Executors.newFixedThreadPool(CONSUMERS * 2);
+        try {
+            List<Future<?>> offers = new ArrayList<Future<?>>();
+            for (int i = 0; i < CONSUMERS * 2; i++) {
+                final int producerId = i;
+                offers.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        for (int item = producerId; item < ITEMS; item += CONSUMERS * 2) {
+                            producer.offer("item-" + item);
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<?> offer : offers) {
+                offer.get(5, TimeUnit.MINUTES);
+            }
+
+            final AtomicInteger consumed = new AtomicInteger();
+            long start = System.nanoTime();
+            List<Future<?>> consumers = new ArrayList<Future<?>>();
+            for (int i = 0; i < CONSUMERS; i++) {
+                consumers.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        if (batched) {
+                            EtcdQueue queue = EtcdQueue.builder(etcdApi.keysApi(), "queues/bench").build();
+                            try {
+                                List<Node> items;
+                                while (!(items = queue.poll(BATCH)).isEmpty()) {
+                                    consumed.addAndGet(items.size());
+                                }
+                            } finally {
+                                queue.close();
+                            }
+                        } else {
+                            while (pollListingEach(etcdApi.keysApi(), "queues/bench")) {
+                                consumed.incrementAndGet();
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<?> consumer : consumers) {
+                consumer.get(5, TimeUnit.MINUTES);
+            }
+            long elapsed = System.nanoTime() - start;
+            assertEquals(consumed.get(), ITEMS);
+            return ITEMS / (elapsed / 1e9);
+        } finally {
+            executor.shutdownNow();
+            producer.close();
+            etcdApi.close();
+            server.shutdown();
+        }
+    }
+
+    /**
+     * Consume a single item the way it is commonly written by hand: list,
+     * try to delete the head, and list again if someone else got there first.
+     */
+    private static boolean pollListingEach(KeysApi keysApi, String dir) {
+        while (true) {
+            Key listing = keysApi.listInOrderKey(dir);
+            if (listing.node() == null || listing.node().nodes().isEmpty()) {
+                return false;
+            }
+            Node head = listing.node().nodes().get(0);
+            if (keysApi.compareAndDeleteKey(head.key().substring(1), head.modifiedIndex()).errorMessage() == null) {
+                return true;
+            }
+        }
+    }
+}
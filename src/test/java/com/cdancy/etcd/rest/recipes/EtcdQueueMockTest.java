@@ -0,0 +1,173 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cdancy.etcd.rest.recipes;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.Test;
+
+import com.cdancy.etcd.rest.EtcdApi;
+import com.cdancy.etcd.rest.domain.keys.Node;
+import com.cdancy.etcd.rest.internal.BaseEtcdMockTest;
+import com.cdancy.etcd.rest.internal.KeyStoreDispatcher;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+
+/**
+ * Mock tests for the {@link EtcdQueue} recipe.
+ */
+@Test(groups = "unit", testName = "EtcdQueueMockTest")
+public class EtcdQueueMockTest extends BaseEtcdMockTest {
+
+    public void testOfferAndPollInOrder() throws Exception {
+        MockWebServer server = mockEtcdJavaWebServer();
+        server.setDispatcher(new KeyStoreDispatcher());
+        EtcdApi etcdApi = api(server.getUrl("/"));
+        EtcdQueue queue = EtcdQueue.builder(etcdApi.keysApi(), "queues/jobs").build();
+        try {
+            assertNull(queue.poll());
+            queue.offer("first");
+            queue.offer("second");
+            queue.offer("third");
+            assertEquals(queue.size(), 3);
+
+            assertEquals(queue.poll().value(), "first");
+            assertEquals(queue.poll().value(), "second");
+            assertEquals(queue.poll().value(), "third");
+            assertNull(queue.poll());
+            assertEquals(queue.size(), 0);
+        } finally {
+            queue.close();
+            etcdApi.close();
+            server.shutdown();
+        }
+    }
+
+    public void testPollBatch() throws Exception {
+        MockWebServer server = mockEtcdJavaWebServer();
+        KeyStoreDispatcher store = new KeyStoreDispatcher();
+        server.setDispatcher(store);
+        EtcdApi etcdApi = api(server.getUrl("/"));
+        EtcdQueue queue = EtcdQueue.builder(etcdApi.keysApi(), "queues/jobs").build();
+        try {
+            for (int i = 0; i < 10; i++) {
+                queue.offer("job-" + i);
+            }
+            List<Node> batch = queue.poll(4);
+            assertEquals(batch.size(), 4);
+            for (int i = 0; i < 4; i++) {
+                assertEquals(batch.get(i).value(), "job-" + i);
+            }
+            assertEquals(store.keys("queues/jobs").size(), 6);
+            assertEquals(queue.poll(10).size(), 6);
+            assertTrue(queue.poll(10).isEmpty());
+        } finally {
+            queue.close();
+            etcdApi.close();
+            server.shutdown();
+        }
+    }
+
+    public void testCompetingConsumersClaimEachItemOnce() throws Exception {
+        MockWebServer server = mockEtcdJavaWebServer();
+        server.setDispatcher(new KeyStoreDispatcher());
+        final EtcdApi etcdApi = api(server.getUrl("/"));
+        EtcdQueue producer = EtcdQueue.builder(etcdApi.keysApi(), "queues/jobs").build();
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            for (int i = 0; i < 30; i++) {
+                producer.offer("job-" + i);
+            }
+            final List<String> taken = Collections.synchronizedList(new ArrayList<String>());
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (int i = 0; i < 3; i++) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        EtcdQueue consumer = EtcdQueue.builder(etcdApi.keysApi(), "queues/jobs").build();
+                        try {
+                            List<Node> items;
+                            while (!(items = consumer.poll(4)).isEmpty()) {
+                                for (Node item : items) {
+                                    taken.add(item.value());
+                                }
+                            }
+                        } finally {
+                            consumer.close();
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get(30, TimeUnit.SECONDS);
+            }
+            assertEquals(taken.size(), 30);
+            assertThat(taken).doesNotHaveDuplicates();
+        } finally {
+            executor.shutdownNow();
+            producer.close();
+            etcdApi.close();
+            server.shutdown();
+        }
+    }
+
+    public void testTakeWaitsForOffer() throws Exception {
+        MockWebServer server = mockEtcdJavaWebServer();
+        KeyStoreDispatcher store = new KeyStoreDispatcher();
+        server.setDispatcher(store);
+        final EtcdApi etcdApi = api(server.getUrl("/"));
+        final EtcdQueue queue = EtcdQueue.builder(etcdApi.keysApi(), "queues/jobs").build();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Node> taken = executor.submit(new Callable<Node>() {
+                @Override
+                public Node call() throws Exception {
+                    return queue.take();
+                }
+            });
+            TimeUnit.MILLISECONDS.sleep(500);
+            final int requestsWhileWaiting = store.requests();
+            queue.offer("late");
+
+            Node item = taken.get(5, TimeUnit.SECONDS);
+            assertNotNull(item);
+            assertEquals(item.value(), "late");
+            // waiting is a single long-poll, not repeated listing
+            assertThat(requestsWhileWaiting).isLessThanOrEqualTo(3);
+            assertEquals(queue.size(), 0);
+        } finally {
+            executor.shutdownNow();
+            queue.close();
+            etcdApi.close();
+            server.shutdown();
+        }
+    }
+}
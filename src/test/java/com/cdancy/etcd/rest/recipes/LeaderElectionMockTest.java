@@ -0,0 +1,172 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cdancy.etcd.rest.recipes;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.Test;
+
+import com.cdancy.etcd.rest.EtcdApi;
+import com.cdancy.etcd.rest.internal.BaseEtcdMockTest;
+import com.cdancy.etcd.rest.internal.KeyStoreDispatcher;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+
+/**
+ * Mock tests for the {@link LeaderElection} recipe.
+ */
+@Test(groups = "unit", testName = "LeaderElectionMockTest")
+public class LeaderElectionMockTest extends BaseEtcdMockTest {
+
+    public void testSingleCandidateLeadsAndResigns() throws Exception {
+        MockWebServer server = mockEtcdJavaWebServer();
+        KeyStoreDispatcher store = new KeyStoreDispatcher();
+        server.setDispatcher(store);
+        EtcdApi etcdApi = api(server.getUrl("/"));
+        RecordingListener listener = new RecordingListener();
+        LeaderElection election = LeaderElection.builder(etcdApi.keysApi(), "election/scheduler").candidate("a")
+                .ttl(1).build().addListener(listener);
+        try {
+            election.start();
+            assertEquals(listener.next(), "elected a");
+            assertTrue(election.isLeader());
+            assertEquals(election.leader(), "a");
+
+            // refreshed well past its ttl
+            TimeUnit.MILLISECONDS.sleep(1500);
+            assertTrue(election.isLeader());
+            assertEquals(store.value("election/scheduler"), "a");
+            assertEquals(election.stats().elections(), 1);
+            assertEquals(election.stats().failovers(), 0);
+
+            election.close();
+            assertEquals(listener.next(), "revoked a");
+            assertFalse(election.isLeader());
+            assertNull(store.value("election/scheduler"));
+        } finally {
+            election.close();
+            etcdApi.close();
+            server.shutdown();
+        }
+    }
+
+    public void testFollowerTakesOverWhenLeaderResigns() throws Exception {
+        MockWebServer server = mockEtcdJavaWebServer();
+        server.setDispatcher(new KeyStoreDispatcher());
+        EtcdApi etcdApi = api(server.getUrl("/"));
+        RecordingListener listener = new RecordingListener();
+        LeaderElection first = LeaderElection.builder(etcdApi.keysApi(), "election/scheduler").candidate("a")
+                .build().addListener(listener);
+        LeaderElection second = LeaderElection.builder(etcdApi.keysApi(), "election/scheduler").candidate("b")
+                .build().addListener(listener);
+        try {
+            first.start();
+            assertEquals(listener.next(), "elected a");
+            second.start();
+            TimeUnit.MILLISECONDS.sleep(200);
+            assertFalse(second.isLeader());
+
+            first.close();
+            assertEquals(listener.next(), "revoked a");
+            assertEquals(listener.next(), "elected b");
+            assertEquals(second.leader(), "b");
+            assertEquals(second.stats().failovers(), 1);
+            assertThat(second.stats().lastFailoverMillis()).isGreaterThanOrEqualTo(0).isLessThan(1000);
+        } finally {
+            first.close();
+            second.close();
+            etcdApi.close();
+            server.shutdown();
+        }
+    }
+
+    public void testFollowerTakesOverWhenLeaderKeyExpires() throws Exception {
+        MockWebServer server = mockEtcdJavaWebServer();
+        server.setDispatcher(new KeyStoreDispatcher());
+        EtcdApi etcdApi = api(server.getUrl("/"));
+        RecordingListener listener = new RecordingListener();
+        // a leader which went away without resigning
+        etcdApi.keysApi().createKey("election/scheduler", "gone", 1);
+        LeaderElection election = LeaderElection.builder(etcdApi.keysApi(), "election/scheduler").candidate("b")
+                .build().addListener(listener);
+        try {
+            election.start();
+            assertEquals(election.leader(), "gone");
+            assertEquals(listener.next(), "elected b");
+            assertEquals(election.stats().elections(), 1);
+            assertEquals(election.stats().failovers(), 1);
+            assertThat(election.stats().maxFailoverMillis()).isLessThan(1000);
+        } finally {
+            election.close();
+            etcdApi.close();
+            server.shutdown();
+        }
+    }
+
+    public void testLeaderRevokedWhenKeyTakenAway() throws Exception {
+        MockWebServer server = mockEtcdJavaWebServer();
+        server.setDispatcher(new KeyStoreDispatcher());
+        EtcdApi etcdApi = api(server.getUrl("/"));
+        RecordingListener listener = new RecordingListener();
+        LeaderElection election = LeaderElection.builder(etcdApi.keysApi(), "election/scheduler").candidate("a")
+                .build().addListener(listener);
+        try {
+            election.start();
+            assertEquals(listener.next(), "elected a");
+
+            etcdApi.keysApi().deleteKey("election/scheduler");
+            assertEquals(listener.next(), "revoked a");
+            // the vacancy is taken straight back
+            assertEquals(listener.next(), "elected a");
+            assertEquals(election.stats().elections(), 2);
+        } finally {
+            election.close();
+            etcdApi.close();
+            server.shutdown();
+        }
+    }
+
+    /**
+     * Records every callback as "elected" or "revoked" followed by the
+     * candidate.
+     */
+    private static class RecordingListener implements LeadershipListener {
+        private final BlockingQueue<String> events = new LinkedBlockingQueue<String>();
+
+        @Override
+        public void elected(LeaderElection election) {
+            events.add("elected " + election.candidate());
+        }
+
+        @Override
+        public void revoked(LeaderElection election) {
+            events.add("revoked " + election.candidate());
+        }
+
+        String next() throws InterruptedException {
+            return events.poll(5, TimeUnit.SECONDS);
+        }
+    }
+}
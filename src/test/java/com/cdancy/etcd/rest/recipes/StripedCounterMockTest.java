@@ -0,0 +1,190 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cdancy.etcd.rest.recipes;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.testng.annotations.Test;
+
+import com.cdancy.etcd.rest.EtcdApi;
+import com.cdancy.etcd.rest.internal.BaseEtcdMockTest;
+import com.cdancy.etcd.rest.internal.KeyStoreDispatcher;
+import com.squareup.okhttp.mockwebserver.Dispatcher;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+import com.squareup.okhttp.mockwebserver.RecordedRequest;
+
+/**
+ * Mock tests for the {@link StripedCounter} recipe.
+ */
+@Test(groups = "unit", testName = "StripedCounterMockTest")
+public class StripedCounterMockTest extends BaseEtcdMockTest {
+
+    public void testGetWithNothingAdded() throws Exception {
+        MockWebServer server = mockEtcdJavaWebServer();
+        server.setDispatcher(new KeyStoreDispatcher());
+        EtcdApi etcdApi = api(server.getUrl("/"));
+        StripedCounter counter = StripedCounter.builder(etcdApi.keysApi(), "counters/hits").build();
+        try {
+            assertEquals(counter.get(), 0);
+        } finally {
+            counter.close();
+            etcdApi.close();
+            server.shutdown();
+        }
+    }
+
+    public void testConcurrentAddsSpreadOverStripes() throws Exception {
+        MockWebServer server = mockEtcdJavaWebServer();
+        KeyStoreDispatcher store = new KeyStoreDispatcher();
+        server.setDispatcher(store);
+        EtcdApi etcdApi = api(server.getUrl("/"));
+        final StripedCounter counter = StripedCounter.builder(etcdApi.keysApi(), "counters/hits").stripes(4).build();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (int i = 0; i < 4; i++) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        for (int i = 0; i < 5; i++) {
+                            assertNull(counter.increment().errorMessage());
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get(60, TimeUnit.SECONDS);
+            }
+            counter.add(-3);
+            assertEquals(counter.get(), 17);
+            assertThat(store.keys("counters/hits").size()).isBetween(1, 4);
+        } finally {
+            executor.shutdownNow();
+            counter.close();
+            etcdApi.close();
+            server.shutdown();
+        }
+    }
+
+    public void testBatchedAddsFlushAsOneWrite() throws Exception {
+        MockWebServer server = mockEtcdJavaWebServer();
+        KeyStoreDispatcher store = new KeyStoreDispatcher();
+        server.setDispatcher(store);
+        EtcdApi etcdApi = api(server.getUrl("/"));
+        StripedCounter counter = StripedCounter.builder(etcdApi.keysApi(), "counters/hits")
+                .flushInterval(1, TimeUnit.HOURS).build();
+        try {
+            for (int i = 0; i < 100; i++) {
+                assertNull(counter.increment());
+            }
+            assertEquals(counter.pending(), 100);
+            assertEquals(store.requests(), 0);
+            assertEquals(counter.get(), 0);
+
+            assertNull(counter.flush().errorMessage());
+            assertEquals(counter.pending(), 0);
+            assertEquals(counter.get(), 100);
+            // one read and one write for the flush, one listing for each get
+            assertEquals(store.requests(), 4);
+            assertNull(counter.flush());
+        } finally {
+            counter.close();
+            etcdApi.close();
+            server.shutdown();
+        }
+    }
+
+    public void testCloseFlushesPendingAdds() throws Exception {
+        MockWebServer server = mockEtcdJavaWebServer();
+        server.setDispatcher(new KeyStoreDispatcher());
+        EtcdApi etcdApi = api(server.getUrl("/"));
+        StripedCounter counter = StripedCounter.builder(etcdApi.keysApi(), "counters/hits")
+                .flushInterval(1, TimeUnit.HOURS).build();
+        try {
+            counter.add(42);
+            counter.close();
+            assertEquals(counter.pending(), 0);
+            assertEquals(StripedCounter.builder(etcdApi.keysApi(), "counters/hits").build().get(), 42);
+        } finally {
+            etcdApi.close();
+            server.shutdown();
+        }
+    }
+
+    public void testCloseWaitsForFlushInProgress() throws Exception {
+        final KeyStoreDispatcher store = new KeyStoreDispatcher();
+        final CountDownLatch writing = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        MockWebServer server = mockEtcdJavaWebServer(new Dispatcher() {
+            private final AtomicBoolean failed = new AtomicBoolean();
+
+            @Override
+            public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+                if (request.getMethod().equals("PUT") && failed.compareAndSet(false, true)) {
+                    // hold up the first write and then fail it
+                    writing.countDown();
+                    release.await(10, TimeUnit.SECONDS);
+                    return new MockResponse().setResponseCode(500).setBody("{\"errorCode\":300,\"message\":\"Raft Internal Error\"}");
+                }
+                return store.dispatch(request);
+            }
+        });
+        EtcdApi etcdApi = api(server.getUrl("/"));
+        final StripedCounter counter = StripedCounter.builder(etcdApi.keysApi(), "counters/hits")
+                .flushInterval(20, TimeUnit.MILLISECONDS).build();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            counter.add(5);
+            assertTrue(writing.await(10, TimeUnit.SECONDS));
+            Future<?> closed = executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    counter.close();
+                }
+            });
+            TimeUnit.MILLISECONDS.sleep(200);
+            assertFalse(closed.isDone());
+            release.countDown();
+            closed.get(10, TimeUnit.SECONDS);
+
+            assertEquals(counter.pending(), 0);
+            assertEquals(counter.get(), 5);
+        } finally {
+            release.countDown();
+            executor.shutdownNow();
+            etcdApi.close();
+            server.shutdown();
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cdancy.etcd.rest.recipes;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.Test;
+
+import com.cdancy.etcd.rest.EtcdApi;
+import com.cdancy.etcd.rest.domain.keys.Key;
+import com.cdancy.etcd.rest.internal.BaseEtcdMockTest;
+import com.cdancy.etcd.rest.internal.KeyEchoDispatcher;
+import com.cdancy.etcd.rest.internal.KeyStoreDispatcher;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+
+/**
+ * Mock tests for the {@link TtlKeepAlive} recipe.
+ */
+@Test(groups = "unit", testName = "TtlKeepAliveMockTest")
+public class TtlKeepAliveMockTest extends BaseEtcdMockTest {
+
+    public void testKeysKeptAliveWithoutChanges() throws Exception {
+        MockWebServer server = mockEtcdJavaWebServer();
+        KeyStoreDispatcher store = new KeyStoreDispatcher();
+        server.setDispatcher(store);
+        EtcdApi etcdApi = api(server.getUrl("/"));
+        TtlKeepAlive keepAlive = TtlKeepAlive.builder(etcdApi.keysApi()).tick(20).build();
+        try {
+            for (int i = 0; i < 5; i++) {
+                etcdApi.keysApi().createKey("services/web/" + i, "10.0.0." + i, 1);
+                keepAlive.register("services/web/" + i, 1);
+            }
+            final Key before = etcdApi.keysApi().getKey("services/web/0");
+
+            TimeUnit.MILLISECONDS.sleep(2500);
+            assertEquals(store.keys("services/web").size(), 5);
+            assertEquals(store.value("services/web/3"), "10.0.0.3");
+            assertTrue(keepAlive.atRisk().isEmpty());
+            assertTrue(keepAlive.lost().isEmpty());
+
+            // refreshes never show up as changes to those waiting on the key
+            keepAlive.unregister("services/web/0");
+            etcdApi.keysApi().deleteKey("services/web/0");
+            Key change = etcdApi.keysApi().waitKey("services/web/0", false, before.etcdIndex() + 1);
+            assertEquals(change.action(), "delete");
+        } finally {
+            keepAlive.close();
+            etcdApi.close();
+            server.shutdown();
+        }
+    }
+
+    public void testMissingKeyReportedLost() throws Exception {
+        MockWebServer server = mockEtcdJavaWebServer();
+        KeyStoreDispatcher store = new KeyStoreDispatcher();
+        server.setDispatcher(store);
+        EtcdApi etcdApi = api(server.getUrl("/"));
+        TtlKeepAlive keepAlive = TtlKeepAlive.builder(etcdApi.keysApi()).tick(20).build();
+        try {
+            etcdApi.keysApi().createKey("services/web/1", "10.0.0.1", 1);
+            keepAlive.register("services/web/1", 1);
+            etcdApi.keysApi().deleteKey("services/web/1");
+
+            TimeUnit.MILLISECONDS.sleep(600);
+            assertTrue(keepAlive.lost().contains("services/web/1"));
+            assertFalse(keepAlive.keys().contains("services/web/1"));
+            assertTrue(keepAlive.atRisk().isEmpty());
+        } finally {
+            keepAlive.close();
+            etcdApi.close();
+            server.shutdown();
+        }
+    }
+
+    public void testFailingRefreshReportedAtRisk() throws Exception {
+        MockWebServer server = mockEtcdJavaWebServer();
+        server.setDispatcher(new KeyEchoDispatcher(0));
+        EtcdApi etcdApi = api(server.getUrl("/"));
+        TtlKeepAlive keepAlive = TtlKeepAlive.builder(etcdApi.keysApi()).tick(20).build();
+        try {
+            keepAlive.register("healthy", 1);
+            keepAlive.register("broken", 1);
+
+            TimeUnit.MILLISECONDS.sleep(800);
+            assertEquals(keepAlive.atRisk().keySet().size(), 1);
+            assertThat(keepAlive.atRisk().get("broken")).isLessThan(500L);
+            assertEquals(keepAlive.keys().size(), 2);
+        } finally {
+            keepAlive.close();
+            etcdApi.close();
+            server.shutdown();
+        }
+    }
+
+    public void testConcurrentRefreshesBounded() throws Exception {
+        MockWebServer server = mockEtcdJavaWebServer();
+        KeyEchoDispatcher dispatcher = new KeyEchoDispatcher(50);
+        server.setDispatcher(dispatcher);
+        EtcdApi etcdApi = api(server.getUrl("/"));
+        TtlKeepAlive keepAlive = TtlKeepAlive.builder(etcdApi.keysApi()).tick(20).maxInFlight(4).jitter(0).build();
+        try {
+            for (int i = 0; i < 20; i++) {
+                keepAlive.register("key-" + i, 1);
+            }
+            TimeUnit.MILLISECONDS.sleep(1000);
+            assertThat(dispatcher.maxInFlight()).isLessThanOrEqualTo(4).isGreaterThan(1);
+            for (int i = 0; i < 20; i++) {
+                assertThat(dispatcher.requests("key-" + i)).isGreaterThanOrEqualTo(1);
+            }
+        } finally {
+            keepAlive.close();
+            etcdApi.close();
+            server.shutdown();
+        }
+    }
+}
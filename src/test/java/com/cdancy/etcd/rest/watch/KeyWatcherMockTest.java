@@ -0,0 +1,172 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cdancy.etcd.rest.watch;
+
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertTrue;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.Test;
+
+import com.cdancy.etcd.rest.EtcdApi;
+import com.cdancy.etcd.rest.EtcdApiMetadata;
+import com.cdancy.etcd.rest.domain.keys.Key;
+import com.cdancy.etcd.rest.internal.BaseEtcdMockTest;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+
+/**
+ * Mock tests for the {@link com.cdancy.etcd.rest.watch.KeyWatcher} class.
+ */
+@Test(groups = "unit", testName = "KeyWatcherMockTest")
+public class KeyWatcherMockTest extends BaseEtcdMockTest {
+
+    public void testWatchTracksNextIndex() throws Exception {
+        MockWebServer server = mockEtcdJavaWebServerFailFast();
+
+        server.enqueue(new MockResponse().setBody(payloadFromResource("/keys-dir-list.json")).setResponseCode(200)
+                .addHeader("X-Etcd-Index", "40"));
+        server.enqueue(new MockResponse().setBody(payloadFromResource("/keys-wait-recursive.json"))
+                .setResponseCode(200));
+        server.enqueue(new MockResponse().setBody(payloadFromResource("/keys-wait-recursive.json"))
+                .setResponseCode(200));
+        EtcdApi etcdApi = api(server.getUrl("/"));
+        CollectingListener listener = new CollectingListener();
+        KeyWatcher watcher = KeyWatcher.builder(etcdApi.keysApi(), "hello").recursive(true).build()
+                .addListener(listener);
+        try {
+            watcher.start();
+            Key event = listener.events.poll(5, TimeUnit.SECONDS);
+            assertNotNull(event);
+            assertTrue(event.node().key().equals("/hello/world"));
+            assertNotNull(listener.events.poll(5, TimeUnit.SECONDS));
+            assertSent(server, "GET", "/" + EtcdApiMetadata.API_VERSION + "/keys/hello");
+            assertSent(server, "GET",
+                    "/" + EtcdApiMetadata.API_VERSION + "/keys/hello?wait=true&recursive=true&waitIndex=41");
+            assertSent(server, "GET",
+                    "/" + EtcdApiMetadata.API_VERSION + "/keys/hello?wait=true&recursive=true&waitIndex=42");
+            assertTrue(watcher.nextIndex() == 42);
+        } finally {
+            watcher.close();
+            etcdApi.close();
+            server.shutdown();
+        }
+    }
+
+    public void testWatchResumesAfterIndexCleared() throws Exception {
+        MockWebServer server = mockEtcdJavaWebServerFailFast();
+
+        server.enqueue(new MockResponse().setBody(payloadFromResource("/keys-wait-index-cleared.json"))
+                .setResponseCode(400));
+        server.enqueue(new MockResponse().setBody(payloadFromResource("/keys-wait-recursive.json"))
+                .setResponseCode(200));
+        EtcdApi etcdApi = api(server.getUrl("/"));
+        CollectingListener listener = new CollectingListener();
+        KeyWatcher watcher = KeyWatcher.builder(etcdApi.keysApi(), "hello").recursive(true).fromIndex(5).build()
+                .addListener(listener);
+        try {
+            watcher.start();
+            Throwable error = listener.errors.poll(5, TimeUnit.SECONDS);
+            assertTrue(error instanceof EventIndexClearedException);
+            assertTrue(EventIndexClearedException.class.cast(error).lastIndex() == 5);
+            assertTrue(EventIndexClearedException.class.cast(error).resumeIndex() == 2008);
+            assertNotNull(listener.events.poll(5, TimeUnit.SECONDS));
+            assertSent(server, "GET",
+                    "/" + EtcdApiMetadata.API_VERSION + "/keys/hello?wait=true&recursive=true&waitIndex=5");
+            assertSent(server, "GET",
+                    "/" + EtcdApiMetadata.API_VERSION + "/keys/hello?wait=true&recursive=true&waitIndex=2008");
+        } finally {
+            watcher.close();
+            etcdApi.close();
+            server.shutdown();
+        }
+    }
+
+    public void testWatchRetriesFromSameIndexAfterError() throws Exception {
+        MockWebServer server = mockEtcdJavaWebServerFailFast();
+
+        server.enqueue(new MockResponse().setBody("unavailable").setResponseCode(503));
+        server.enqueue(new MockResponse().setBody(payloadFromResource("/keys-wait-recursive.json"))
+                .setResponseCode(200));
+        EtcdApi etcdApi = api(server.getUrl("/"));
+        CollectingListener listener = new CollectingListener();
+        KeyWatcher watcher = KeyWatcher.builder(etcdApi.keysApi(), "hello").recursive(true).fromIndex(10).build()
+                .addListener(listener);
+        try {
+            watcher.start();
+            assertNotNull(listener.errors.poll(5, TimeUnit.SECONDS));
+            assertNotNull(listener.events.poll(5, TimeUnit.SECONDS));
+            assertSent(server, "GET",
+                    "/" + EtcdApiMetadata.API_VERSION + "/keys/hello?wait=true&recursive=true&waitIndex=10");
+            assertSent(server, "GET",
+                    "/" + EtcdApiMetadata.API_VERSION + "/keys/hello?wait=true&recursive=true&waitIndex=10");
+        } finally {
+            watcher.close();
+            etcdApi.close();
+            server.shutdown();
+        }
+    }
+
+    public void testStreamingWatch() throws Exception {
+        MockWebServer server = mockEtcdJavaWebServerFailFast();
+
+        String events = event(41) + "\n" + event(42) + "\n" + event(45) + "\n";
+        server.enqueue(new MockResponse().setChunkedBody(events, 16).setResponseCode(200));
+        EtcdApi etcdApi = api(server.getUrl("/"));
+        CollectingListener listener = new CollectingListener();
+        KeyWatcher watcher = KeyWatcher.builder(etcdApi.keysApi(), "hello").recursive(true).stream(true)
+                .fromIndex(41).build().addListener(listener);
+        try {
+            watcher.start();
+            assertTrue(listener.events.poll(5, TimeUnit.SECONDS).node().modifiedIndex() == 41);
+            assertTrue(listener.events.poll(5, TimeUnit.SECONDS).node().modifiedIndex() == 42);
+            assertTrue(listener.events.poll(5, TimeUnit.SECONDS).node().value().equals("45"));
+            assertSent(server, "GET", "/" + EtcdApiMetadata.API_VERSION
+                    + "/keys/hello?wait=true&stream=true&recursive=true&waitIndex=41");
+            assertSent(server, "GET", "/" + EtcdApiMetadata.API_VERSION
+                    + "/keys/hello?wait=true&stream=true&recursive=true&waitIndex=46");
+        } finally {
+            watcher.close();
+            etcdApi.close();
+            server.shutdown();
+        }
+    }
+
+    private static String event(int index) {
+        return "{\"action\":\"set\",\"node\":{\"key\":\"/hello/world\",\"value\":\"" + index
+                + "\",\"modifiedIndex\":" + index + ",\"createdIndex\":" + index + "}}";
+    }
+
+    private static class CollectingListener implements WatchListener {
+        private final BlockingQueue<Key> events = new LinkedBlockingQueue<Key>();
+        private final BlockingQueue<Throwable> errors = new LinkedBlockingQueue<Throwable>();
+
+        @Override
+        public void onEvent(Key event) {
+            events.add(event);
+        }
+
+        @Override
+        public void onError(Throwable error) {
+            errors.add(error);
+        }
+    }
+}
@@ -0,0 +1,296 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cdancy.etcd.rest.watch;
+
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.jclouds.logging.Logger;
+import org.testng.annotations.Test;
+
+import com.cdancy.etcd.rest.EtcdApi;
+import com.cdancy.etcd.rest.EtcdApiMetadata;
+import com.cdancy.etcd.rest.domain.keys.Key;
+import com.cdancy.etcd.rest.domain.keys.Node;
+import com.cdancy.etcd.rest.internal.BaseEtcdMockTest;
+import com.cdancy.etcd.rest.internal.KeyStoreDispatcher;
+import com.cdancy.etcd.rest.internal.RecordingLogger;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.squareup.okhttp.mockwebserver.Dispatcher;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+import com.squareup.okhttp.mockwebserver.RecordedRequest;
+
+/**
+ * Mock tests for the {@link com.cdancy.etcd.rest.watch.WatchMultiplexer} class.
+ */
+@Test(groups = "unit", testName = "WatchMultiplexerMockTest")
+public class WatchMultiplexerMockTest extends BaseEtcdMockTest {
+
+    public void testRegistrationsShareOneWatch() throws Exception {
+        MockWebServer server = mockEtcdJavaWebServerFailFast();
+
+        server.enqueue(new MockResponse().setBody(payloadFromResource("/keys-dir-list.json")).setResponseCode(200)
+                .addHeader("X-Etcd-Index", "40"));
+        server.enqueue(new MockResponse().setBody(payloadFromResource("/keys-wait-recursive.json"))
+                .setResponseCode(200).setBodyDelayTimeMs(500));
+        EtcdApi etcdApi = api(server.getUrl("/"));
+        WatchMultiplexer multiplexer = WatchMultiplexer.builder(etcdApi.keysApi()).build();
+        CollectingListener exact = new CollectingListener();
+        CollectingListener prefix = new CollectingListener();
+        CollectingListener other = new CollectingListener();
+        try {
+            multiplexer.watch("/hello/world", exact);
+            multiplexer.watchPrefix("hello", prefix);
+            multiplexer.watch("hello/other/", other);
+            assertTrue(multiplexer.activeWatches() == 1);
+            assertNotNull(exact.events.poll(5, TimeUnit.SECONDS));
+            assertNotNull(prefix.events.poll(5, TimeUnit.SECONDS));
+            assertNull(other.events.poll(500, TimeUnit.MILLISECONDS));
+            assertSent(server, "GET", "/" + EtcdApiMetadata.API_VERSION + "/keys/hello");
+            assertSent(server, "GET",
+                    "/" + EtcdApiMetadata.API_VERSION + "/keys/hello?wait=true&recursive=true&waitIndex=41");
+        } finally {
+            multiplexer.close();
+            etcdApi.close();
+            server.shutdown();
+        }
+    }
+
+    public void testClosingLastRegistrationStopsWatch() throws Exception {
+        MockWebServer server = mockEtcdJavaWebServerFailFast();
+
+        server.enqueue(new MockResponse().setBody(payloadFromResource("/keys-dir-list.json")).setResponseCode(200)
+                .addHeader("X-Etcd-Index", "40"));
+        EtcdApi etcdApi = api(server.getUrl("/"));
+        WatchMultiplexer multiplexer = WatchMultiplexer.builder(etcdApi.keysApi()).build();
+        try {
+            WatchRegistration first = multiplexer.watch("hello/world", new CollectingListener());
+            WatchRegistration second = multiplexer.watch("hello/other", new CollectingListener());
+            first.close();
+            assertTrue(multiplexer.activeWatches() == 1);
+            second.close();
+            assertTrue(multiplexer.activeWatches() == 0);
+        } finally {
+            multiplexer.close();
+            etcdApi.close();
+            server.shutdown();
+        }
+    }
+
+    public void testSlowListenerDropsOldest() throws Exception {
+        MockWebServer server = mockEtcdJavaWebServerFailFast();
+
+        server.enqueue(new MockResponse().setBody(payloadFromResource("/keys-dir-list.json")).setResponseCode(200)
+                .addHeader("X-Etcd-Index", "40"));
+        for (int index = 41; index <= 43; index++) {
+            server.enqueue(new MockResponse().setBody(event(index)).setResponseCode(200).setBodyDelayTimeMs(200));
+        }
+        EtcdApi etcdApi = api(server.getUrl("/"));
+        WatchMultiplexer multiplexer = WatchMultiplexer.builder(etcdApi.keysApi()).queueCapacity(1).build();
+        BlockingListener slow = new BlockingListener();
+        CollectingListener fast = new CollectingListener();
+        try {
+            WatchRegistration slowRegistration = multiplexer.watchPrefix("hello", slow);
+            multiplexer.watchPrefix("hello", fast);
+            for (int index = 41; index <= 43; index++) {
+                assertTrue(fast.events.poll(5, TimeUnit.SECONDS).node().modifiedIndex() == index);
+            }
+            assertTrue(slowRegistration.dropped() == 1);
+            slow.release.countDown();
+            assertTrue(slow.events.poll(5, TimeUnit.SECONDS).node().modifiedIndex() == 41);
+            assertTrue(slow.events.poll(5, TimeUnit.SECONDS).node().modifiedIndex() == 43);
+        } finally {
+            multiplexer.close();
+            etcdApi.close();
+            server.shutdown();
+        }
+    }
+
+    public void testSlowListenerDisconnected() throws Exception {
+        MockWebServer server = mockEtcdJavaWebServerFailFast();
+
+        server.enqueue(new MockResponse().setBody(payloadFromResource("/keys-dir-list.json")).setResponseCode(200)
+                .addHeader("X-Etcd-Index", "40"));
+        for (int index = 41; index <= 43; index++) {
+            server.enqueue(new MockResponse().setBody(event(index)).setResponseCode(200).setBodyDelayTimeMs(200));
+        }
+        EtcdApi etcdApi = api(server.getUrl("/"));
+        WatchMultiplexer multiplexer = WatchMultiplexer.builder(etcdApi.keysApi()).queueCapacity(1)
+                .overflowPolicy(OverflowPolicy.DISCONNECT).build();
+        BlockingListener slow = new BlockingListener();
+        CollectingListener fast = new CollectingListener();
+        try {
+            WatchRegistration slowRegistration = multiplexer.watchPrefix("hello", slow);
+            multiplexer.watchPrefix("hello", fast);
+            for (int index = 41; index <= 43; index++) {
+                assertNotNull(fast.events.poll(5, TimeUnit.SECONDS));
+            }
+            assertTrue(slowRegistration.disconnected());
+            assertTrue(multiplexer.activeWatches() == 1);
+            slow.release.countDown();
+            assertTrue(slow.events.poll(5, TimeUnit.SECONDS).node().modifiedIndex() == 41);
+            assertNotNull(slow.errors.poll(5, TimeUnit.SECONDS));
+            assertFalse(fast.errors.poll(100, TimeUnit.MILLISECONDS) instanceof IllegalStateException);
+        } finally {
+            multiplexer.close();
+            etcdApi.close();
+            server.shutdown();
+        }
+    }
+
+    public void testSlowStartDoesNotHoldUpOtherRegistrations() throws Exception {
+        final KeyStoreDispatcher store = new KeyStoreDispatcher();
+        final CountDownLatch lookingUp = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        MockWebServer server = mockEtcdJavaWebServer(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+                if (request.getPath().endsWith("/keys/slow")) {
+                    lookingUp.countDown();
+                    release.await(10, TimeUnit.SECONDS);
+                } else if (request.getPath().contains("wait=true")) {
+                    // nothing changes, end long-polls early so the server can shut down
+                    return new MockResponse().setResponseCode(503);
+                }
+                return store.dispatch(request);
+            }
+        });
+        EtcdApi etcdApi = api(server.getUrl("/"));
+        final WatchMultiplexer multiplexer = WatchMultiplexer.builder(etcdApi.keysApi()).build();
+        ExecutorService registering = Executors.newSingleThreadExecutor();
+        try {
+            final Future<WatchRegistration> slow = registering.submit(new Callable<WatchRegistration>() {
+                @Override
+                public WatchRegistration call() {
+                    return multiplexer.watch("slow/key", new CollectingListener());
+                }
+            });
+            assertTrue(lookingUp.await(10, TimeUnit.SECONDS));
+
+            final long start = System.nanoTime();
+            multiplexer.watch("fast/key", new CollectingListener());
+            assertTrue(multiplexer.activeWatches() == 2);
+            assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 2000);
+            assertFalse(slow.isDone());
+
+            release.countDown();
+            assertNotNull(slow.get(10, TimeUnit.SECONDS));
+        } finally {
+            release.countDown();
+            registering.shutdownNow();
+            multiplexer.close();
+            etcdApi.close();
+            server.shutdown();
+        }
+    }
+
+    public void testDropOldestKeepsQueuedError() throws Exception {
+        final List<Runnable> scheduled = new ArrayList<Runnable>();
+        CollectingListener listener = new CollectingListener();
+        ListenerDispatcher dispatcher = new ListenerDispatcher(listener, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                scheduled.add(command);
+            }
+        }, 2, OverflowPolicy.DROP_OLDEST, Logger.NULL);
+        IllegalStateException error = new IllegalStateException("watch failed");
+        dispatcher.dispatchError(error);
+        assertTrue(dispatcher.dispatch(key(1)));
+        assertTrue(dispatcher.dispatch(key(2)));
+        assertTrue(dispatcher.dispatch(key(3)));
+        assertTrue(dispatcher.dropped() == 2);
+
+        scheduled.get(0).run();
+        assertTrue(listener.errors.poll() == error);
+        assertTrue(listener.events.poll().node().modifiedIndex() == 3);
+        assertNull(listener.events.poll());
+    }
+
+    public void testFailingListenerIsLoggedAndKeepsReceiving() throws Exception {
+        CollectingListener listener = new CollectingListener() {
+            @Override
+            public void onEvent(Key event) {
+                super.onEvent(event);
+                if (event.node().modifiedIndex() == 1) {
+                    throw new IllegalStateException("broken listener");
+                }
+            }
+        };
+        RecordingLogger logger = new RecordingLogger();
+        ListenerDispatcher dispatcher = new ListenerDispatcher(listener, MoreExecutors.directExecutor(), logger);
+        assertTrue(dispatcher.dispatch(key(1)));
+        assertTrue(dispatcher.dispatch(key(2)));
+
+        assertTrue(logger.nextWarning(0, TimeUnit.SECONDS).getMessage().equals("broken listener"));
+        assertTrue(listener.events.poll().node().modifiedIndex() == 1);
+        assertTrue(listener.events.poll().node().modifiedIndex() == 2);
+    }
+
+    private static Key key(int index) {
+        return Key.create("set", Node.create(index, false, null, null, "/hello/world", index, 0, "" + index), null, null);
+    }
+
+    private static String event(int index) {
+        return "{\"action\":\"set\",\"node\":{\"key\":\"/hello/world\",\"value\":\"" + index
+                + "\",\"modifiedIndex\":" + index + ",\"createdIndex\":" + index + "}}";
+    }
+
+    private static class CollectingListener implements WatchListener {
+        final BlockingQueue<Key> events = new LinkedBlockingQueue<Key>();
+        final BlockingQueue<Throwable> errors = new LinkedBlockingQueue<Throwable>();
+
+        @Override
+        public void onEvent(Key event) {
+            events.add(event);
+        }
+
+        @Override
+        public void onError(Throwable error) {
+            errors.add(error);
+        }
+    }
+
+    private static class BlockingListener extends CollectingListener {
+        final CountDownLatch release = new CountDownLatch(1);
+
+        @Override
+        public void onEvent(Key event) {
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            super.onEvent(event);
+        }
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cdancy.etcd.rest.watch;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import org.testng.annotations.Test;
+
+import com.cdancy.etcd.rest.EtcdApi;
+import com.cdancy.etcd.rest.domain.keys.Key;
+import com.cdancy.etcd.rest.internal.BaseEtcdMockTest;
+import com.cdancy.etcd.rest.internal.KeyStoreDispatcher;
+import com.cdancy.etcd.rest.internal.RecordingLogger;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+
+/**
+ * Mock tests for the {@link WatchPublisher} class.
+ */
+@Test(groups = "unit", testName = "WatchPublisherMockTest")
+public class WatchPublisherMockTest extends BaseEtcdMockTest {
+
+    public void testPublishesOnlyOnDemand() throws Exception {
+        MockWebServer server = mockEtcdJavaWebServer();
+        KeyStoreDispatcher store = new KeyStoreDispatcher();
+        server.setDispatcher(store);
+        EtcdApi etcdApi = api(server.getUrl("/"));
+        CollectingSubscriber subscriber = new CollectingSubscriber();
+        try {
+            WatchPublisher.builder(etcdApi.keysApi(), "config").recursive(true).build().subscribe(subscriber);
+            awaitRequests(store, 1);
+            etcdApi.keysApi().createKey("config/a", "1");
+            etcdApi.keysApi().createKey("config/b", "2");
+            etcdApi.keysApi().createKey("config/c", "3");
+
+            subscriber.subscription.request(2);
+            assertEquals(subscriber.next().node().key(), "/config/a");
+            assertEquals(subscriber.next().node().key(), "/config/b");
+            final int requestsWithoutDemand = store.requests();
+            assertNull(subscriber.events.poll(500, TimeUnit.MILLISECONDS));
+            assertEquals(store.requests(), requestsWithoutDemand);
+
+            subscriber.subscription.request(1);
+            assertEquals(subscriber.next().node().key(), "/config/c");
+            assertNull(subscriber.error);
+        } finally {
+            subscriber.subscription.cancel();
+            etcdApi.close();
+            server.shutdown();
+        }
+    }
+
+    public void testCancelStopsPublishing() throws Exception {
+        MockWebServer server = mockEtcdJavaWebServer();
+        KeyStoreDispatcher store = new KeyStoreDispatcher();
+        server.setDispatcher(store);
+        EtcdApi etcdApi = api(server.getUrl("/"));
+        CollectingSubscriber subscriber = new CollectingSubscriber();
+        try {
+            WatchPublisher.builder(etcdApi.keysApi(), "config/a").build().subscribe(subscriber);
+            subscriber.subscription.request(Long.MAX_VALUE);
+            awaitRequests(store, 2);
+            etcdApi.keysApi().createKey("config/a", "1");
+            assertEquals(subscriber.next().node().value(), "1");
+
+            subscriber.subscription.cancel();
+            etcdApi.keysApi().createKey("config/a", "2");
+            assertNull(subscriber.events.poll(500, TimeUnit.MILLISECONDS));
+        } finally {
+            etcdApi.close();
+            server.shutdown();
+        }
+    }
+
+    public void testIndexClearedFailsSubscriber() throws Exception {
+        MockWebServer server = mockEtcdJavaWebServerFailFast();
+
+        server.enqueue(new MockResponse().setBody(payloadFromResource("/keys-wait-index-cleared.json"))
+                .setResponseCode(400));
+        EtcdApi etcdApi = api(server.getUrl("/"));
+        CollectingSubscriber subscriber = new CollectingSubscriber();
+        try {
+            WatchPublisher.builder(etcdApi.keysApi(), "hello").fromIndex(5).build().subscribe(subscriber);
+            subscriber.subscription.request(1);
+            Throwable error = subscriber.failure();
+            assertThat(error).isInstanceOf(EventIndexClearedException.class);
+            assertEquals(((EventIndexClearedException) error).lastIndex(), 5);
+            assertEquals(((EventIndexClearedException) error).resumeIndex(), 2008);
+            assertNull(subscriber.events.poll());
+        } finally {
+            etcdApi.close();
+            server.shutdown();
+        }
+    }
+
+    public void testNonPositiveRequestFailsSubscriber() throws Exception {
+        MockWebServer server = mockEtcdJavaWebServer();
+        KeyStoreDispatcher store = new KeyStoreDispatcher();
+        server.setDispatcher(store);
+        EtcdApi etcdApi = api(server.getUrl("/"));
+        CollectingSubscriber subscriber = new CollectingSubscriber();
+        try {
+            WatchPublisher.builder(etcdApi.keysApi(), "hello").fromIndex(1).build().subscribe(subscriber);
+            subscriber.subscription.request(0);
+            assertThat(subscriber.failure()).isInstanceOf(IllegalArgumentException.class);
+            assertEquals(store.requests(), 0);
+        } finally {
+            etcdApi.close();
+            server.shutdown();
+        }
+    }
+
+    public void testFailingSubscriberIsLoggedAndCancelled() throws Exception {
+        MockWebServer server = mockEtcdJavaWebServer();
+        KeyStoreDispatcher store = new KeyStoreDispatcher();
+        server.setDispatcher(store);
+        EtcdApi etcdApi = api(server.getUrl("/"));
+        RecordingLogger logger = new RecordingLogger();
+        CollectingSubscriber subscriber = new CollectingSubscriber() {
+            @Override
+            public void onNext(Key event) {
+                super.onNext(event);
+                throw new IllegalStateException("broken subscriber");
+            }
+        };
+        try {
+            WatchPublisher.builder(etcdApi.keysApi(), "config/a").logger(logger).build().subscribe(subscriber);
+            subscriber.subscription.request(Long.MAX_VALUE);
+            awaitRequests(store, 2);
+            etcdApi.keysApi().createKey("config/a", "1");
+            assertEquals(subscriber.next().node().value(), "1");
+
+            Throwable warning = logger.nextWarning(10, TimeUnit.SECONDS);
+            assertNotNull(warning);
+            assertEquals(warning.getMessage(), "broken subscriber");
+
+            etcdApi.keysApi().createKey("config/a", "2");
+            assertNull(subscriber.events.poll(500, TimeUnit.MILLISECONDS));
+        } finally {
+            etcdApi.close();
+            server.shutdown();
+        }
+    }
+
+    private static void awaitRequests(KeyStoreDispatcher store, int requests) throws InterruptedException {
+        for (int i = 0; i < 100 && store.requests() < requests; i++) {
+            TimeUnit.MILLISECONDS.sleep(50);
+        }
+        // give a wait which was just answered time to be re-issued
+        TimeUnit.MILLISECONDS.sleep(100);
+    }
+
+    /**
+     * Keeps everything it is handed, requesting nothing of its own accord.
+     */
+    private static class CollectingSubscriber implements Subscriber<Key> {
+        private final BlockingQueue<Key> events = new LinkedBlockingQueue<Key>();
+        private final BlockingQueue<Throwable> errors = new LinkedBlockingQueue<Throwable>();
+        private volatile Subscription subscription;
+        private volatile Throwable error;
+
+        @Override
+        public void onSubscribe(Subscription subscription) {
+            this.subscription = subscription;
+        }
+
+        @Override
+        public void onNext(Key event) {
+            events.add(event);
+        }
+
+        @Override
+        public void onError(Throwable error) {
+            this.error = error;
+            errors.add(error);
+        }
+
+        @Override
+        public void onComplete() {
+        }
+
+        Key next() throws InterruptedException {
+            Key event = events.poll(10, TimeUnit.SECONDS);
+            assertNotNull(event);
+            return event;
+        }
+
+        Throwable failure() throws InterruptedException {
+            Throwable failure = errors.poll(10, TimeUnit.SECONDS);
+            assertNotNull(failure);
+            return failure;
+        }
+    }
+}